@@ -0,0 +1,84 @@
+package nl.futureedge.jta4spring.benchmark;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import nl.futureedge.jta4spring.JtaMonitor;
+import nl.futureedge.jta4spring.JtaTransaction;
+
+/**
+ * Benchmarks of the transaction coordinator (begin, enlist and commit) using in-memory xa resources.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = "-Dlog4j.configurationFile=log4j2-benchmark.xml")
+public class CoordinatorBenchmark {
+
+	@Param({"1", "2", "8"})
+	private int branches;
+
+	private JtaMonitor jtaMonitor;
+	private FakeXAResource[] xaResources;
+	private String[] resourceNames;
+
+	@Setup
+	public void setup() throws Exception {
+		jtaMonitor = new JtaMonitor();
+		jtaMonitor.setUniqueName("benchmark");
+		jtaMonitor.setJmxEnabled(false);
+		jtaMonitor.afterPropertiesSet();
+
+		xaResources = new FakeXAResource[branches];
+		resourceNames = new String[branches];
+		for(int i = 0; i < branches; i++) {
+			xaResources[i] = new FakeXAResource();
+			resourceNames[i] = "resource-" + i;
+		}
+	}
+
+	@TearDown
+	public void tearDown() throws Exception {
+		jtaMonitor.destroy();
+	}
+
+	/**
+	 * Begin a transaction, enlist the resources and commit (one-phase for a single branch, two-phase otherwise).
+	 */
+	@Benchmark
+	public void commit() throws Exception {
+		jtaMonitor.begin();
+		final JtaTransaction transaction = jtaMonitor.getTransaction();
+		for(int i = 0; i < branches; i++) {
+			transaction.enlistResource(xaResources[i], resourceNames[i]);
+		}
+		transaction.commit();
+	}
+
+	/**
+	 * Begin a transaction, enlist the resources and rollback.
+	 */
+	@Benchmark
+	public void rollback() throws Exception {
+		jtaMonitor.begin();
+		final JtaTransaction transaction = jtaMonitor.getTransaction();
+		for(int i = 0; i < branches; i++) {
+			transaction.enlistResource(xaResources[i], resourceNames[i]);
+		}
+		transaction.rollback();
+	}
+}
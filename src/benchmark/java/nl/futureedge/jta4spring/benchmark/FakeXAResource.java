@@ -0,0 +1,60 @@
+package nl.futureedge.jta4spring.benchmark;
+
+import javax.transaction.xa.XAResource;
+import javax.transaction.xa.Xid;
+
+/**
+ * In-memory xa resource; every call succeeds immediately (every instance is a distinct resource manager).
+ */
+final class FakeXAResource implements XAResource {
+
+	@Override
+	public void start(final Xid xid, final int flags) {
+		// Nothing
+	}
+
+	@Override
+	public void end(final Xid xid, final int flags) {
+		// Nothing
+	}
+
+	@Override
+	public int prepare(final Xid xid) {
+		return XA_OK;
+	}
+
+	@Override
+	public void commit(final Xid xid, final boolean onePhase) {
+		// Nothing
+	}
+
+	@Override
+	public void rollback(final Xid xid) {
+		// Nothing
+	}
+
+	@Override
+	public void forget(final Xid xid) {
+		// Nothing
+	}
+
+	@Override
+	public Xid[] recover(final int flag) {
+		return new Xid[0];
+	}
+
+	@Override
+	public boolean isSameRM(final XAResource xaResource) {
+		return this == xaResource;
+	}
+
+	@Override
+	public int getTransactionTimeout() {
+		return 0;
+	}
+
+	@Override
+	public boolean setTransactionTimeout(final int seconds) {
+		return true;
+	}
+}
@@ -0,0 +1,82 @@
+package nl.futureedge.jta4spring.benchmark;
+
+import java.sql.Connection;
+import java.util.concurrent.TimeUnit;
+
+import javax.sql.DataSource;
+
+import org.hsqldb.jdbc.pool.JDBCXADataSource;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import nl.futureedge.jta4spring.JtaMonitor;
+import nl.futureedge.jta4spring.JtaTransactionManager;
+import nl.futureedge.jta4spring.jdbc.XADataSourceWrapper;
+
+/**
+ * Benchmark of obtaining a (pooled, enlisted) connection from the data source adapter, using an embedded (in-memory)
+ * HSQLDB database.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = "-Dlog4j.configurationFile=log4j2-benchmark.xml")
+public class JdbcBenchmark {
+
+	private JtaMonitor jtaMonitor;
+	private JtaTransactionManager transactionManager;
+	private XADataSourceWrapper dataSourceWrapper;
+	private DataSource dataSource;
+
+	@Setup
+	public void setup() throws Exception {
+		jtaMonitor = new JtaMonitor();
+		jtaMonitor.setUniqueName("benchmark");
+		jtaMonitor.setJmxEnabled(false);
+		jtaMonitor.afterPropertiesSet();
+		transactionManager = new JtaTransactionManager();
+		transactionManager.setJtaMonitor(jtaMonitor);
+
+		final JDBCXADataSource xaDataSource = new JDBCXADataSource();
+		xaDataSource.setUrl("jdbc:hsqldb:mem:benchmark");
+		xaDataSource.setUser("sa");
+		xaDataSource.setPassword("");
+
+		dataSourceWrapper = new XADataSourceWrapper();
+		dataSourceWrapper.setBeanName("dataSource");
+		dataSourceWrapper.setXaDataSource(xaDataSource);
+		dataSourceWrapper.setTransactionManager(transactionManager);
+		dataSourceWrapper.afterPropertiesSet();
+		dataSource = dataSourceWrapper.getObject();
+	}
+
+	@TearDown
+	public void tearDown() throws Exception {
+		jtaMonitor.stop();
+		dataSourceWrapper.destroy();
+		jtaMonitor.destroy();
+	}
+
+	/**
+	 * Begin a transaction, get a connection (enlisted in the transaction), close it and commit.
+	 */
+	@Benchmark
+	public void getConnection() throws Exception {
+		transactionManager.begin();
+		try (Connection connection = dataSource.getConnection()) {
+			// Only obtain the connection
+		}
+		transactionManager.commit();
+	}
+}
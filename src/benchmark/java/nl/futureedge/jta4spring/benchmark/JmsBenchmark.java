@@ -0,0 +1,86 @@
+package nl.futureedge.jta4spring.benchmark;
+
+import java.util.concurrent.TimeUnit;
+
+import javax.jms.Connection;
+import javax.jms.Session;
+
+import org.apache.activemq.ActiveMQXAConnectionFactory;
+import org.apache.activemq.broker.BrokerService;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import nl.futureedge.jta4spring.JtaMonitor;
+import nl.futureedge.jta4spring.JtaTransactionManager;
+import nl.futureedge.jta4spring.jms.XAConnectionFactoryWrapper;
+
+/**
+ * Benchmark of creating a (enlisted) session on a connection of the connection factory adapter, using an embedded
+ * (non-persistent) ActiveMQ broker.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = "-Dlog4j.configurationFile=log4j2-benchmark.xml")
+public class JmsBenchmark {
+
+	private BrokerService broker;
+	private JtaMonitor jtaMonitor;
+	private JtaTransactionManager transactionManager;
+	private Connection connection;
+
+	@Setup
+	public void setup() throws Exception {
+		broker = new BrokerService();
+		broker.setBrokerName("benchmark");
+		broker.setPersistent(false);
+		broker.setUseJmx(false);
+		broker.setAdvisorySupport(false);
+		broker.setUseShutdownHook(false);
+		broker.start();
+
+		jtaMonitor = new JtaMonitor();
+		jtaMonitor.setUniqueName("benchmark");
+		jtaMonitor.setJmxEnabled(false);
+		jtaMonitor.afterPropertiesSet();
+		transactionManager = new JtaTransactionManager();
+		transactionManager.setJtaMonitor(jtaMonitor);
+
+		final XAConnectionFactoryWrapper connectionFactoryWrapper = new XAConnectionFactoryWrapper();
+		connectionFactoryWrapper.setBeanName("connectionFactory");
+		connectionFactoryWrapper.setXaConnectionFactory(new ActiveMQXAConnectionFactory("vm://benchmark?create=false"));
+		connectionFactoryWrapper.setTransactionManager(transactionManager);
+		connectionFactoryWrapper.afterPropertiesSet();
+		connection = connectionFactoryWrapper.getObject().createConnection();
+	}
+
+	@TearDown
+	public void tearDown() throws Exception {
+		jtaMonitor.stop();
+		connection.close();
+		jtaMonitor.destroy();
+		broker.stop();
+	}
+
+	/**
+	 * Begin a transaction, create a session (enlisted in the transaction), close it and commit.
+	 */
+	@Benchmark
+	public void createSession() throws Exception {
+		transactionManager.begin();
+		final Session session = connection.createSession(true, Session.SESSION_TRANSACTED);
+		session.close();
+		transactionManager.commit();
+	}
+}
@@ -0,0 +1,218 @@
+package nl.futureedge.jta4spring;
+
+import java.util.concurrent.TimeUnit;
+import java.util.function.LongSupplier;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Hashed wheel timer.
+ *
+ * Timeouts are kept in a wheel of buckets (doubly linked lists); scheduling and cancelling a timeout are constant time
+ * operations. A worker thread advances the wheel every tick and expires the timeouts of the current bucket whose
+ * deadline has passed. Timeouts expire with a precision of one tick; the tasks are executed by the worker thread and
+ * should not block.
+ */
+final class HashedWheelTimer {
+
+	private static final Logger LOGGER = LoggerFactory.getLogger(HashedWheelTimer.class);
+
+	private final LongSupplier clock;
+	private final long tickInNanos;
+	private final Bucket[] wheel;
+	private final int mask;
+	private final long startTime;
+	private final Thread worker;
+	private volatile boolean stopped = false;
+	// Last tick of which the bucket has been expired by the worker; written while holding the lock of the bucket
+	private volatile long expiredTick = 0;
+
+	/**
+	 * Constructor; starts the worker thread.
+	 * @param threadName name of the worker thread
+	 * @param tickDuration duration of a tick
+	 * @param unit unit of the tick duration
+	 * @param ticksPerWheel number of buckets in the wheel (rounded up to a power of two)
+	 */
+	HashedWheelTimer(final String threadName, final long tickDuration, final TimeUnit unit, final int ticksPerWheel) {
+		this(threadName, tickDuration, unit, ticksPerWheel, System::nanoTime);
+	}
+
+	/**
+	 * Constructor; starts the worker thread.
+	 * @param threadName name of the worker thread
+	 * @param tickDuration duration of a tick
+	 * @param unit unit of the tick duration
+	 * @param ticksPerWheel number of buckets in the wheel (rounded up to a power of two)
+	 * @param clock clock (in nanoseconds)
+	 */
+	HashedWheelTimer(final String threadName, final long tickDuration, final TimeUnit unit, final int ticksPerWheel, final LongSupplier clock) {
+		this.clock = clock;
+		tickInNanos = unit.toNanos(tickDuration);
+		int size = 1;
+		while(size < ticksPerWheel) {
+			size <<= 1;
+		}
+		wheel = new Bucket[size];
+		for(int i = 0; i < size; i++) {
+			wheel[i] = new Bucket();
+		}
+		mask = size - 1;
+		startTime = clock.getAsLong();
+
+		worker = new Thread(this::run, threadName);
+		worker.setDaemon(true);
+		worker.start();
+	}
+
+	/**
+	 * Schedule a task.
+	 * @param task task
+	 * @param delay delay
+	 * @param unit unit of the delay
+	 * @return timeout (can be used to cancel the task)
+	 */
+	Timeout schedule(final Runnable task, final long delay, final TimeUnit unit) {
+		final long deadline = clock.getAsLong() - startTime + unit.toNanos(delay);
+		// Expire on the first tick at or after the deadline; a tick the worker has already passed would only expire after a full revolution
+		long tick = Math.max((deadline + tickInNanos - 1) / tickInNanos, expiredTick + 1);
+		while(true) {
+			final Timeout timeout = new Timeout(task, deadline, tick);
+			if(wheel[(int) (tick & mask)].add(timeout)) {
+				return timeout;
+			}
+			// The worker passed the tick while scheduling
+			tick = expiredTick + 1;
+		}
+	}
+
+	/**
+	 * Stop the worker thread; timeouts that have not expired are not executed.
+	 */
+	void stop() {
+		stopped = true;
+		worker.interrupt();
+	}
+
+	private void run() {
+		long tick = 1;
+		while(!stopped) {
+			final long sleepInNanos = tick * tickInNanos - (clock.getAsLong() - startTime);
+			if(sleepInNanos > 0) {
+				try {
+					TimeUnit.NANOSECONDS.sleep(sleepInNanos);
+				} catch (final InterruptedException e) {
+					continue;
+				}
+			}
+			wheel[(int) (tick & mask)].expire(tick);
+			tick++;
+		}
+	}
+
+	/**
+	 * Bucket; doubly linked list of timeouts.
+	 */
+	private final class Bucket {
+		private Timeout head;
+
+		/**
+		 * Add a timeout.
+		 * @return false, if the tick of the timeout has already been expired by the worker
+		 */
+		synchronized boolean add(final Timeout timeout) {
+			if(timeout.tick <= expiredTick) {
+				return false;
+			}
+			timeout.bucket = this;
+			timeout.next = head;
+			if(head != null) {
+				head.previous = timeout;
+			}
+			head = timeout;
+			return true;
+		}
+
+		synchronized boolean remove(final Timeout timeout) {
+			if(timeout.bucket != this) {
+				return false;
+			}
+			if(timeout.previous == null) {
+				head = timeout.next;
+			} else {
+				timeout.previous.next = timeout.next;
+			}
+			if(timeout.next != null) {
+				timeout.next.previous = timeout.previous;
+			}
+			timeout.bucket = null;
+			timeout.next = null;
+			timeout.previous = null;
+			return true;
+		}
+
+		void expire(final long tick) {
+			Timeout expired = null;
+			synchronized(this) {
+				Timeout timeout = head;
+				while(timeout != null) {
+					final Timeout next = timeout.next;
+					if(timeout.tick <= tick) {
+						remove(timeout);
+						timeout.next = expired;
+						expired = timeout;
+					}
+					timeout = next;
+				}
+				expiredTick = tick;
+			}
+
+			// Execute outside of the lock
+			while(expired != null) {
+				final Timeout next = expired.next;
+				expired.next = null;
+				try {
+					expired.task.run();
+				} catch (final RuntimeException e) {
+					LOGGER.warn("Unexpected exception during execution of timeout", e);
+				}
+				expired = next;
+			}
+		}
+	}
+
+	/**
+	 * Scheduled task.
+	 */
+	static final class Timeout {
+		private final Runnable task;
+		private final long deadline;
+		private final long tick;
+
+		// Guarded by the bucket
+		private volatile Bucket bucket;
+		private Timeout previous;
+		private Timeout next;
+
+		private Timeout(final Runnable task, final long deadline, final long tick) {
+			this.task = task;
+			this.deadline = deadline;
+			this.tick = tick;
+		}
+
+		/**
+		 * Cancel the task.
+		 * @return true, if the task was cancelled; false if the task has already expired (or was cancelled)
+		 */
+		boolean cancel() {
+			final Bucket current = bucket;
+			return current != null && current.remove(this);
+		}
+
+		@Override
+		public String toString() {
+			return "Timeout [deadline=" + deadline + ", tick=" + tick + "]";
+		}
+	}
+}
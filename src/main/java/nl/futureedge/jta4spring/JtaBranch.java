@@ -0,0 +1,89 @@
+package nl.futureedge.jta4spring;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import javax.transaction.xa.XAResource;
+import javax.transaction.xa.Xid;
+
+/**
+ * Transaction branch.
+ *
+ * A branch is started on one xa resource (which is used to prepare, commit or rollback the branch); other xa resources
+ * of the same resource manager can join the branch.
+ */
+final class JtaBranch {
+
+	private final Xid xid;
+	private final XAResource xaResource;
+	private final String resourceName;
+	private final List<XAResource> xaResources = new ArrayList<>();
+
+	/**
+	 * Constructor.
+	 * @param xid xid of the branch
+	 * @param xaResource xa resource the branch was started on
+	 * @param resourceName name of the resource
+	 */
+	JtaBranch(final Xid xid, final XAResource xaResource, final String resourceName) {
+		this.xid = xid;
+		this.xaResource = xaResource;
+		this.resourceName = resourceName;
+		xaResources.add(xaResource);
+	}
+
+	/**
+	 * @return name of the resource
+	 */
+	String getResourceName() {
+		return resourceName;
+	}
+
+	/**
+	 * @return xid of the branch
+	 */
+	Xid getXid() {
+		return xid;
+	}
+
+	/**
+	 * @return xa resource the branch was started on
+	 */
+	XAResource getXaResource() {
+		return xaResource;
+	}
+
+	/**
+	 * @return all xa resources associated with the branch (the xa resource the branch was started on and the joined xa resources)
+	 */
+	List<XAResource> getXaResources() {
+		return Collections.unmodifiableList(xaResources);
+	}
+
+	/**
+	 * Register a xa resource that joined the branch.
+	 * @param joinedXaResource xa resource
+	 */
+	void join(final XAResource joinedXaResource) {
+		xaResources.add(joinedXaResource);
+	}
+
+	/**
+	 * @param enlistedXaResource xa resource
+	 * @return true, if the xa resource is associated with this branch
+	 */
+	boolean contains(final XAResource enlistedXaResource) {
+		for(final XAResource branchXaResource : xaResources) {
+			if(branchXaResource == enlistedXaResource) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	@Override
+	public String toString() {
+		return "JtaBranch [resourceName=" + resourceName + ", xaResource=" + xaResource + ", joined=" + (xaResources.size() - 1) + "]";
+	}
+}
@@ -0,0 +1,139 @@
+package nl.futureedge.jta4spring;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.FutureTask;
+
+import javax.transaction.xa.XAException;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Executes an operation (prepare, commit or rollback) on transaction branches.
+ *
+ * Without an executor the operation is executed sequentially in the calling thread; with an executor the operation is
+ * executed concurrently on all branches and the calling thread waits for all outcomes.
+ */
+final class JtaBranchExecutor {
+
+	private static final Logger LOGGER = LoggerFactory.getLogger(JtaBranchExecutor.class);
+
+	private final Executor executor;
+
+	/**
+	 * Constructor.
+	 * @param executor executor (null to execute sequentially)
+	 */
+	JtaBranchExecutor(final Executor executor) {
+		this.executor = executor;
+	}
+
+	/**
+	 * Execute the operation on all branches.
+	 * @param branches branches
+	 * @param operation operation
+	 * @return outcomes (in the order of the given branches)
+	 */
+	<T> List<Outcome<T>> execute(final List<JtaBranch> branches, final BranchOperation<T> operation) {
+		final List<Outcome<T>> outcomes = new ArrayList<>(branches.size());
+		if(executor == null || branches.size() < 2) {
+			for(final JtaBranch branch : branches) {
+				outcomes.add(executeOperation(branch, operation));
+			}
+			return outcomes;
+		}
+
+		final List<FutureTask<Outcome<T>>> tasks = new ArrayList<>(branches.size());
+		for(final JtaBranch branch : branches) {
+			final FutureTask<Outcome<T>> task = new FutureTask<>(() -> executeOperation(branch, operation));
+			tasks.add(task);
+			executor.execute(task);
+		}
+		for(int i = 0; i < tasks.size(); i++) {
+			outcomes.add(await(branches.get(i), tasks.get(i)));
+		}
+		return outcomes;
+	}
+
+	private static <T> Outcome<T> executeOperation(final JtaBranch branch, final BranchOperation<T> operation) {
+		try {
+			return new Outcome<>(branch, operation.execute(branch), null);
+		} catch (final XAException e) {
+			return new Outcome<>(branch, null, e);
+		} catch (final RuntimeException e) {
+			LOGGER.warn("Unexpected exception during execution of operation on branch {}", branch, e);
+			final XAException xaException = new XAException(XAException.XAER_RMERR);
+			xaException.initCause(e);
+			return new Outcome<>(branch, null, xaException);
+		}
+	}
+
+	private static <T> Outcome<T> await(final JtaBranch branch, final FutureTask<Outcome<T>> task) {
+		// The outcome of every branch is needed to complete the transaction; interruption is deferred until all outcomes are known
+		boolean interrupted = false;
+		try {
+			while(true) {
+				try {
+					return task.get();
+				} catch (final InterruptedException e) {
+					interrupted = true;
+				} catch (final ExecutionException e) {
+					LOGGER.warn("Unexpected exception during execution of operation on branch {}", branch, e);
+					final XAException xaException = new XAException(XAException.XAER_RMERR);
+					xaException.initCause(e.getCause());
+					return new Outcome<>(branch, null, xaException);
+				}
+			}
+		} finally {
+			if(interrupted) {
+				Thread.currentThread().interrupt();
+			}
+		}
+	}
+
+	/**
+	 * Operation on a branch.
+	 * @param <T> result type
+	 */
+	@FunctionalInterface
+	interface BranchOperation<T> {
+		/**
+		 * Execute the operation.
+		 * @param branch branch
+		 * @return result
+		 * @throws XAException thrown by the xa resource
+		 */
+		T execute(JtaBranch branch) throws XAException;
+	}
+
+	/**
+	 * Outcome of an operation on a branch.
+	 * @param <T> result type
+	 */
+	static final class Outcome<T> {
+		private final JtaBranch branch;
+		private final T result;
+		private final XAException exception;
+
+		Outcome(final JtaBranch branch, final T result, final XAException exception) {
+			this.branch = branch;
+			this.result = result;
+			this.exception = exception;
+		}
+
+		JtaBranch getBranch() {
+			return branch;
+		}
+
+		T getResult() {
+			return result;
+		}
+
+		XAException getException() {
+			return exception;
+		}
+	}
+}
@@ -1,27 +1,72 @@
 package nl.futureedge.jta4spring;
 
-import java.util.concurrent.atomic.AtomicLong;
+import java.lang.management.ManagementFactory;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
+import javax.transaction.InvalidTransactionException;
 import javax.transaction.NotSupportedException;
 import javax.transaction.RollbackException;
 import javax.transaction.Status;
 import javax.transaction.Synchronization;
 import javax.transaction.SystemException;
+import javax.transaction.Transaction;
+import javax.transaction.xa.Xid;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.DisposableBean;
 import org.springframework.beans.factory.InitializingBean;
+import org.springframework.beans.factory.SmartInitializingSingleton;
 import org.springframework.beans.factory.annotation.Required;
+import org.springframework.context.SmartLifecycle;
 
-public class JtaMonitor implements InitializingBean, DisposableBean, Synchronization {
+import nl.futureedge.jta4spring.metrics.TransactionMetrics;
+import nl.futureedge.jta4spring.xa.RecoverableResource;
+import nl.futureedge.jta4spring.xa.TransactionLog;
+
+public class JtaMonitor implements InitializingBean, SmartInitializingSingleton, SmartLifecycle, DisposableBean, Synchronization {
 
 	private static final Logger LOGGER = LoggerFactory.getLogger(JtaMonitor.class);
 
-	private final AtomicLong TRANSACTION_ID = new AtomicLong(1);
+	// Stopped after all other lifecycle components (for example message listener containers)
+	private static final int PHASE = Integer.MIN_VALUE;
+	private static final long DRAIN_POLL_INTERVAL = 100;
+
+	private final JtaTransactionIdAllocator transactionIds = new JtaTransactionIdAllocator();
 	private final ThreadLocal<JtaTransaction> transaction = new ThreadLocal<>();
+	private final ThreadLocal<Integer> transactionTimeout = new ThreadLocal<>();
 
 	private String uniqueName;
+	private byte[] encodedUniqueName;
+	private boolean parallelCompletion = false;
+	private Executor executor;
+	private ExecutorService ownedExecutor;
+	private TransactionLog transactionLog;
+	private boolean rollbackOnTimeout = false;
+	private HashedWheelTimer timer;
+	private int recoveryInterval = 60;
+	private int recoveryMaxInterval = 600;
+	private JtaRecovery recovery;
+	private final List<RecoverableResource> recoverableResources = new CopyOnWriteArrayList<>();
+	private final JtaTransactionRegistry activeTransactions = new JtaTransactionRegistry();
+	private volatile boolean recoveryStarted = false;
+	private ScheduledExecutorService recoveryScanner;
+	private int recoveryDelay;
+	private int shutdownTimeout = 30;
+	private boolean jmxEnabled = true;
+	private TransactionMetrics metrics;
+	private final Object completionLock = new Object();
+	private volatile boolean running = false;
+	private volatile boolean shuttingDown = false;
 
 	@Required
 	public void setUniqueName(final String uniqueName) {
@@ -29,18 +74,325 @@ public class JtaMonitor implements InitializingBean, DisposableBean, Synchroniza
 	}
 
 	/**
-	 * Startup; read transaction store; rollback everything found.
+	 * Execute prepare, commit and rollback calls concurrently on all branches of a transaction (default false).
+	 * @param parallelCompletion true, to complete branches concurrently
+	 */
+	public void setParallelCompletion(final boolean parallelCompletion) {
+		this.parallelCompletion = parallelCompletion;
+	}
+
+	/**
+	 * Set the executor used to complete branches concurrently (when parallel completion is enabled), to rollback the
+	 * branches of transactions that time out (when rollback on timeout is enabled) and to recover resources concurrently.
+	 * If not set, the monitor creates (and shuts down) its own executor.
+	 * @param executor executor
+	 */
+	public void setExecutor(final Executor executor) {
+		this.executor = executor;
+	}
+
+	/**
+	 * Rollback the branches of a transaction when the transaction times out (default false). A transaction that times
+	 * out is always marked for rollback; rolling back the branches releases the locks held by the resources before the
+	 * application completes the transaction.
+	 *
+	 * The branches are ended (TMFAIL) and rolled back on another thread than the application thread, which may still be
+	 * using the connections of the resources. The XA specification leaves this to the resource manager, so whether it
+	 * is supported depends on the driver; only enable this option when the drivers of all resources support ending a
+	 * branch from another thread. The application thread fails with a rollback exception when it completes the
+	 * transaction; statements it executes in the meantime may fail in a driver specific way.
+	 * @param rollbackOnTimeout true, to rollback the branches of a transaction when it times out
+	 */
+	public void setRollbackOnTimeout(final boolean rollbackOnTimeout) {
+		this.rollbackOnTimeout = rollbackOnTimeout;
+	}
+
+	/**
+	 * Set the transaction log used to log commit decisions (optional; without a log in-doubt transactions can not be
+	 * completed after a failure).
+	 * @param transactionLog transaction log
+	 */
+	public void setTransactionLog(final TransactionLog transactionLog) {
+		this.transactionLog = transactionLog;
+	}
+
+	/**
+	 * Set the interval (in seconds) of the background recovery of in-doubt branches (default 60; 0 disables). Background
+	 * recovery is disabled if no transaction log is used.
+	 * @param recoveryInterval recovery interval in seconds
+	 */
+	public void setRecoveryInterval(final int recoveryInterval) {
+		this.recoveryInterval = recoveryInterval;
+	}
+
+	/**
+	 * Set the maximum interval (in seconds) of the background recovery (default 600). When a background recovery does
+	 * not complete all in-doubt branches (for example because a resource is not available) the interval is doubled, up
+	 * to this maximum, until a recovery completes.
+	 * @param recoveryMaxInterval maximum recovery interval in seconds
+	 */
+	public void setRecoveryMaxInterval(final int recoveryMaxInterval) {
+		this.recoveryMaxInterval = recoveryMaxInterval;
+	}
+
+	/**
+	 * Set the maximum time (in seconds) to wait for active transactions to complete on shutdown (default 30); active
+	 * transactions that have not completed after this time are rolled back.
+	 * @param shutdownTimeout shutdown timeout in seconds
+	 */
+	public void setShutdownTimeout(final int shutdownTimeout) {
+		this.shutdownTimeout = shutdownTimeout;
+	}
+
+	/**
+	 * Register the metrics of the transaction manager and its resources as MBeans with the platform MBean server
+	 * (default true).
+	 * @param jmxEnabled true, to register the metrics as MBeans
+	 */
+	public void setJmxEnabled(final boolean jmxEnabled) {
+		this.jmxEnabled = jmxEnabled;
+	}
+
+	/**
+	 * @return metrics of the transaction manager
+	 */
+	public TransactionMetrics getMetrics() {
+		return metrics;
+	}
+
+	/**
+	 * Register a resource for recovery. Resources registered during startup are recovered when all singletons have been
+	 * instantiated; resources registered later are recovered immediately.
+	 * @param recoverableResource resource
+	 */
+	public void registerRecoverableResource(final RecoverableResource recoverableResource) {
+		LOGGER.trace("registerRecoverableResource(recoverableResource={})", recoverableResource);
+		recoverableResources.add(recoverableResource);
+		if(recoveryStarted) {
+			recovery.recover(Collections.singletonList(recoverableResource));
+		}
+	}
+
+	/**
+	 * Startup; read transaction store.
 	 */
 	@Override
 	public void afterPropertiesSet() throws Exception {
+		encodedUniqueName = JtaXid.encodeUniqueName(uniqueName);
+		if(transactionLog != null) {
+			transactionLog.open();
+		}
+		if(executor == null) {
+			// Threads are only created when needed (and are reused by completion, timeouts and recovery)
+			final AtomicInteger threadNumber = new AtomicInteger(1);
+			ownedExecutor = Executors.newCachedThreadPool(runnable -> {
+				final Thread thread = new Thread(runnable, "jta4spring-worker-" + threadNumber.getAndIncrement());
+				thread.setDaemon(true);
+				return thread;
+			});
+			executor = ownedExecutor;
+		}
+		recovery = new JtaRecovery(uniqueName, transactionLog, activeTransactions, executor);
+		metrics = new TransactionMetrics(uniqueName, activeTransactions::size);
+		if(jmxEnabled) {
+			metrics.registerMBeans(ManagementFactory.getPlatformMBeanServer());
+		}
+		timer = new HashedWheelTimer("jta4spring-timeout", 100, TimeUnit.MILLISECONDS, 512);
 	}
 
 	/**
-	 * Shutdown; wait for all transactions to end.
+	 * Startup recovery; commit or rollback all in-doubt branches of the registered resources.
 	 */
 	@Override
-	public void destroy() throws Exception {
+	public void afterSingletonsInstantiated() {
+		recoveryStarted = true;
+		recover();
+
+		if(recoveryInterval > 0 && transactionLog == null) {
+			// Without commit decisions recovery can only report in-doubt branches
+			LOGGER.info("No transaction log configured; background recovery is disabled");
+		} else if(recoveryInterval > 0) {
+			recoveryScanner = Executors.newSingleThreadScheduledExecutor(runnable -> {
+				final Thread thread = new Thread(runnable, "jta4spring-recovery-scanner");
+				thread.setDaemon(true);
+				thread.setPriority(Thread.MIN_PRIORITY);
+				return thread;
+			});
+			recoveryDelay = recoveryInterval;
+			recoveryScanner.schedule(this::backgroundRecovery, recoveryDelay, TimeUnit.SECONDS);
+		}
+	}
+
+	/**
+	 * Recover all registered resources; in-doubt branches are committed (if a commit decision has been logged) or rolled
+	 * back. Without a transaction log in-doubt branches are only reported. Branches of active transactions are skipped.
+	 * @return true, if all resources have been recovered and all in-doubt branches have been completed
+	 */
+	public boolean recover() {
+		LOGGER.debug("Starting recovery of {} resource(s)", recoverableResources.size());
+		return recovery.recover(recoverableResources);
+	}
+
+	private void backgroundRecovery() {
+		boolean completed = false;
+		try {
+			completed = recover();
+		} catch (final RuntimeException e) {
+			LOGGER.warn("Unexpected exception during background recovery", e);
+		}
+
+		// Back-off while in-doubt branches can not be completed
+		if(completed) {
+			recoveryDelay = recoveryInterval;
+		} else {
+			recoveryDelay = Math.min(recoveryDelay * 2, Math.max(recoveryInterval, recoveryMaxInterval));
+			LOGGER.info("Background recovery not completed; next recovery in {} seconds", recoveryDelay);
+		}
+		if(!recoveryScanner.isShutdown()) {
+			recoveryScanner.schedule(this::backgroundRecovery, recoveryDelay, TimeUnit.SECONDS);
+		}
+	}
+
+	/* ***************************** */
+	/* *** LIFECYCLE *************** */
+	/* ***************************** */
 
+	@Override
+	public void start() {
+		running = true;
+	}
+
+	/**
+	 * Shutdown; drain the active transactions (see {@link #drain()}). The transaction manager is stopped after the other
+	 * lifecycle components, but before any bean is destroyed, so the resources of the active transactions are still
+	 * available.
+	 */
+	@Override
+	public void stop() {
+		drain();
+		running = false;
+	}
+
+	@Override
+	public void stop(final Runnable callback) {
+		stop();
+		callback.run();
+	}
+
+	@Override
+	public boolean isRunning() {
+		return running;
+	}
+
+	@Override
+	public boolean isAutoStartup() {
+		return true;
+	}
+
+	@Override
+	public int getPhase() {
+		return PHASE;
+	}
+
+	/**
+	 * Drain the active transactions. New transactions are rejected; active transactions are given the shutdown timeout
+	 * to complete, after which the branches of the remaining active transactions are rolled back on the shutdown thread
+	 * (see {@link #setRollbackOnTimeout(boolean)} for the restrictions). The threads associated with these transactions
+	 * still complete them (commit fails with a rollback exception). Transactions that are already being completed
+	 * (prepared or committing) are left to recovery.
+	 */
+	public synchronized void drain() {
+		if(shuttingDown) {
+			return;
+		}
+		shuttingDown = true;
+		if(recoveryScanner != null) {
+			recoveryScanner.shutdownNow();
+		}
+
+		final int active = activeTransactions.size();
+		if(active > 0) {
+			LOGGER.info("Shutting down; waiting (at most {} seconds) for {} active transaction(s) to complete", shutdownTimeout, active);
+		}
+		awaitCompletion(TimeUnit.SECONDS.toNanos(shutdownTimeout));
+
+		int rolledBack = 0;
+		int completing = 0;
+		for(final JtaTransaction straggler : activeTransactions.getTransactions()) {
+			activeTransactions.deregister(straggler);
+			// The thread associated with the transaction completes it (and notifies the synchronizations)
+			if(straggler.shutdown()) {
+				if(straggler.rollbackBranches()) {
+					rolledBack++;
+				}
+			} else if(!isCompleted(straggler.getStatus())) {
+				LOGGER.warn("Transaction {} is still completing (status {}) on shutdown; left to recovery", straggler.getXid(), straggler.getStatus());
+				completing++;
+			}
+		}
+		if(active > 0) {
+			LOGGER.info("Shutdown completed; {} transaction(s) completed while draining, {} rolled back, {} left to recovery",
+					active - rolledBack - completing, rolledBack, completing);
+		}
+	}
+
+	private void awaitCompletion(final long timeoutInNanos) {
+		final long deadline = System.nanoTime() + timeoutInNanos;
+		synchronized(completionLock) {
+			while(removeCompleted() > 0) {
+				final long remaining = deadline - System.nanoTime();
+				if(remaining <= 0) {
+					return;
+				}
+				try {
+					// Poll to remove transactions that have been rolled back after a timeout
+					completionLock.wait(Math.min(DRAIN_POLL_INTERVAL, TimeUnit.NANOSECONDS.toMillis(remaining) + 1));
+				} catch (final InterruptedException e) {
+					LOGGER.warn("Interrupted while waiting for active transactions to complete");
+					Thread.currentThread().interrupt();
+					return;
+				}
+			}
+		}
+	}
+
+	/**
+	 * Remove the completed transactions from the active transactions (transactions rolled back after a timeout are
+	 * only deregistered when the application completes them).
+	 * @return number of active transactions
+	 */
+	private int removeCompleted() {
+		for(final JtaTransaction activeTransaction : activeTransactions.getTransactions()) {
+			if(isCompleted(activeTransaction.getStatus())) {
+				activeTransactions.deregister(activeTransaction);
+			}
+		}
+		return activeTransactions.size();
+	}
+
+	private static boolean isCompleted(final int status) {
+		return Status.STATUS_COMMITTED == status || Status.STATUS_ROLLEDBACK == status || Status.STATUS_UNKNOWN == status;
+	}
+
+	/**
+	 * Shutdown; drain the active transactions (when not already drained on stop) and release the timer, executor and
+	 * transaction log.
+	 */
+	@Override
+	public void destroy() throws Exception {
+		drain();
+		if(metrics != null) {
+			metrics.unregisterMBeans();
+		}
+		if(timer != null) {
+			timer.stop();
+		}
+		if(ownedExecutor != null) {
+			ownedExecutor.shutdown();
+		}
+		if(transactionLog != null) {
+			transactionLog.close();
+		}
 	}
 
 	/**
@@ -60,8 +412,11 @@ public class JtaMonitor implements InitializingBean, DisposableBean, Synchroniza
 		if(transaction.get() != null) {
 			throw new NotSupportedException("Transaction already started");
 		}
+		if(shuttingDown) {
+			throw new SystemException("Transaction manager is shutting down");
+		}
 
-		final JtaTransaction result = new JtaTransaction(new JtaXid(uniqueName, TRANSACTION_ID.getAndIncrement()));
+		final JtaTransaction result = new JtaTransaction(JtaXid.create(encodedUniqueName, transactionIds.allocate()), parallelCompletion ? executor : null, transactionLog, activeTransactions, metrics);
 		try {
 			result.registerSynchronization(this);
 		} catch (IllegalStateException | RollbackException e) {
@@ -69,9 +424,42 @@ public class JtaMonitor implements InitializingBean, DisposableBean, Synchroniza
 			systemException.initCause(e);
 			throw systemException;
 		}
+		final Integer timeoutInSeconds = transactionTimeout.get();
+		if(timeoutInSeconds != null) {
+			result.setTransactionTimeout(timeoutInSeconds);
+		}
+		scheduleTimeout(result);
+		activeTransactions.register(result);
 		transaction.set(result);
 	}
 
+	/**
+	 * Modify the timeout value that is associated with transactions started by the current thread with the begin method
+	 * (and the transaction currently associated with the thread).
+	 * @param seconds timeout in seconds (0 restores the default timeout)
+	 * @throws SystemException if the value is negative
+	 */
+	public void setTransactionTimeout(final int seconds) throws SystemException {
+		if(seconds < 0) {
+			throw new SystemException("Timeout may not be a negative value");
+		}
+		transactionTimeout.set(seconds == 0 ? null : seconds);
+
+		final JtaTransaction current = transaction.get();
+		if(current != null) {
+			current.setTransactionTimeout(seconds);
+			scheduleTimeout(current);
+		}
+	}
+
+	private void scheduleTimeout(final JtaTransaction timedTransaction) {
+		timedTransaction.setTimeout(timer.schedule(() -> {
+			if(timedTransaction.timeout() && rollbackOnTimeout) {
+				executor.execute(timedTransaction::rollbackBranches);
+			}
+		}, timedTransaction.getTransactionTimeout(), TimeUnit.SECONDS));
+	}
+
 	/**
 	 * Get the transaction object that represents the transaction
 	 * context of the calling thread.
@@ -92,6 +480,64 @@ public class JtaMonitor implements InitializingBean, DisposableBean, Synchroniza
 		return result;
 	}
 
+	/**
+	 * Get the active transactions (of all threads); for diagnostics.
+	 * @return snapshot of the active transactions
+	 */
+	public Collection<JtaTransaction> getActiveTransactions() {
+		return activeTransactions.getTransactions();
+	}
+
+	/**
+	 * Get an active transaction.
+	 * @param xid xid (of any branch) of the transaction
+	 * @return the transaction, or null if the transaction is not active
+	 */
+	public JtaTransaction getActiveTransaction(final Xid xid) {
+		return activeTransactions.get(xid);
+	}
+
+	/**
+	 * Suspend the transaction currently associated with the calling thread.
+	 * @return the suspended transaction, or null if the thread is not associated with a transaction
+	 * @throws SystemException if the transaction could not be suspended
+	 */
+	public Transaction suspend() throws SystemException {
+		final JtaTransaction result = transaction.get();
+		if(result == null) {
+			return null;
+		}
+		// Disassociate from the thread, even when the xa resources could not be suspended
+		transaction.set(null);
+		result.suspend();
+		return result;
+	}
+
+	/**
+	 * Resume the transaction context association of the calling thread with the given transaction.
+	 * @param suspendedTransaction transaction (as returned by {@link #suspend()})
+	 * @throws InvalidTransactionException if the transaction is not a suspended transaction of this transaction manager
+	 * @throws IllegalStateException if the thread is already associated with a transaction
+	 * @throws SystemException if the transaction could not be resumed
+	 */
+	public void resume(final Transaction suspendedTransaction) throws InvalidTransactionException, SystemException {
+		if(!(suspendedTransaction instanceof JtaTransaction)) {
+			throw new InvalidTransactionException("Transaction not created by this transaction manager");
+		}
+		if(transaction.get() != null) {
+			throw new IllegalStateException("Thread already associated with a transaction");
+		}
+		final JtaTransaction resumed = (JtaTransaction) suspendedTransaction;
+		try {
+			resumed.resume();
+		} catch (final SystemException e) {
+			// Associate the transaction (marked for rollback) with the thread, so it can be rolled back
+			transaction.set(resumed);
+			throw e;
+		}
+		transaction.set(resumed);
+	}
+
 	/**
 	 * Obtain the status of the transaction associated with the current thread.
 	 *
@@ -118,6 +564,12 @@ public class JtaMonitor implements InitializingBean, DisposableBean, Synchroniza
 
 	@Override
 	public void afterCompletion(final int status) {
+		// The transaction deregisters itself from the active transactions
+		if(shuttingDown) {
+			synchronized(completionLock) {
+				completionLock.notifyAll();
+			}
+		}
 		transaction.set(null);
 	}
 
@@ -0,0 +1,325 @@
+package nl.futureedge.jta4spring;
+
+import java.io.IOException;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
+
+import javax.transaction.xa.XAException;
+import javax.transaction.xa.XAResource;
+import javax.transaction.xa.Xid;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import nl.futureedge.jta4spring.xa.RecoverableResource;
+import nl.futureedge.jta4spring.xa.TransactionLog;
+import nl.futureedge.jta4spring.xa.TransactionLogRecord;
+
+/**
+ * Recovery of in-doubt branches.
+ *
+ * Every resource is asked for its prepared branches; branches created by this transaction manager (format id and
+ * unique name of the xid) are committed if the transaction log contains a commit decision for the transaction and
+ * rolled back otherwise (presumed abort). Presumed abort requires a transaction log: without a log a missing commit
+ * decision does not mean the transaction was not committed, so in-doubt branches are only reported (and have to be
+ * completed manually). Branches of transactions that are active are skipped.
+ *
+ * Resources are recovered concurrently on the executor of the monitor. When all resources of a commit decision have
+ * been recovered without errors, the completion of the transaction is logged.
+ */
+final class JtaRecovery {
+
+	private static final Logger LOGGER = LoggerFactory.getLogger(JtaRecovery.class);
+
+	private final byte[] encodedUniqueName;
+	private final TransactionLog transactionLog;
+	private final JtaTransactionRegistry activeTransactions;
+	private final Executor executor;
+
+	/**
+	 * Constructor.
+	 * @param uniqueName unique name of the transaction manager
+	 * @param transactionLog transaction log (null if no transaction log is used)
+	 * @param activeTransactions registry of the transactions that are active; branches of active transactions are skipped
+	 * @param executor executor to recover the resources on
+	 */
+	JtaRecovery(final String uniqueName, final TransactionLog transactionLog, final JtaTransactionRegistry activeTransactions,
+			final Executor executor) {
+		encodedUniqueName = JtaXid.encodeUniqueName(uniqueName);
+		this.transactionLog = transactionLog;
+		this.activeTransactions = activeTransactions;
+		this.executor = executor;
+	}
+
+	/**
+	 * Recover the given resources.
+	 * @param resources resources
+	 * @return true, if all resources have been recovered and all in-doubt branches have been completed
+	 */
+	synchronized boolean recover(final Collection<RecoverableResource> resources) {
+		LOGGER.trace("recover(resources={})", resources);
+
+		// Recover resources concurrently
+		final Set<String> recoveredResourceNames = ConcurrentHashMap.newKeySet();
+		final Set<ByteBuffer> unresolvedTransactions = ConcurrentHashMap.newKeySet();
+		final List<FutureTask<Void>> tasks = new ArrayList<>(resources.size());
+		for(final RecoverableResource resource : resources) {
+			final FutureTask<Void> task = new FutureTask<>(() -> {
+				if(recoverResource(resource, unresolvedTransactions)) {
+					recoveredResourceNames.add(resource.getName());
+				}
+				return null;
+			});
+			tasks.add(task);
+			try {
+				executor.execute(task);
+			} catch (final RejectedExecutionException e) {
+				// Executor is shut down; recover the resource on the calling thread
+				task.run();
+			}
+		}
+		for(final FutureTask<Void> task : tasks) {
+			if(!await(task)) {
+				// Interrupted; the outcome of the recovery is unknown, so no completions are logged
+				return false;
+			}
+		}
+
+		// Log completion of commit decisions for which all resources have been recovered
+		for(final TransactionLogRecord record : getCommitDecisions().values()) {
+			final RecoveredXid recoveredXid = new RecoveredXid(record.getFormatId(), record.getGlobalTransactionId());
+			if(activeTransactions.isActive(recoveredXid)) {
+				continue;
+			}
+			if(recoveredResourceNames.containsAll(record.getResourceNames()) && !unresolvedTransactions.contains(record.getKey())) {
+				logCompletion(recoveredXid);
+			} else {
+				LOGGER.debug("Commit decision {} could not be completed during recovery", record);
+			}
+		}
+
+		return recoveredResourceNames.size() == resources.size() && unresolvedTransactions.isEmpty();
+	}
+
+	private Map<ByteBuffer, TransactionLogRecord> getCommitDecisions() {
+		final Map<ByteBuffer, TransactionLogRecord> result = new HashMap<>();
+		if(transactionLog != null) {
+			for(final TransactionLogRecord record : transactionLog.getCommitDecisions()) {
+				result.put(record.getKey(), record);
+			}
+		}
+		return result;
+	}
+
+	private static boolean await(final FutureTask<Void> task) {
+		try {
+			task.get();
+			return true;
+		} catch (final InterruptedException e) {
+			LOGGER.warn("Interrupted while waiting for recovery");
+			Thread.currentThread().interrupt();
+			return false;
+		} catch (final ExecutionException e) {
+			LOGGER.warn("Unexpected exception during recovery", e.getCause());
+			return true;
+		}
+	}
+
+	private void logCompletion(final Xid xid) {
+		try {
+			transactionLog.logCompletion(xid);
+		} catch (final IOException e) {
+			LOGGER.warn("Could not log completion of recovered transaction", e);
+		}
+	}
+
+	/**
+	 * Recover a resource.
+	 * @return true, if the resource could be scanned (unresolved branches are added to the given set)
+	 */
+	private boolean recoverResource(final RecoverableResource resource, final Set<ByteBuffer> unresolvedTransactions) {
+		LOGGER.debug("Starting recovery of resource {}", resource.getName());
+		try {
+			resource.recover(xaResource -> {
+				// Skip branches of active transactions (these are completed by the transaction itself)
+				final List<Xid> inDoubtXids = new ArrayList<>();
+				for(final Xid scannedXid : scan(xaResource)) {
+					final JtaXid xid = JtaXid.parse(scannedXid, encodedUniqueName);
+					if(xid == null) {
+						LOGGER.trace("Skipping xid {}; not created by this transaction manager", scannedXid);
+					} else if(activeTransactions.isActive(xid)) {
+						LOGGER.trace("Skipping xid {}; transaction is active", xid);
+					} else {
+						inDoubtXids.add(xid);
+					}
+				}
+
+				// Commit decisions are read after checking the active transactions; a transaction that is not active has logged its decision
+				final Map<ByteBuffer, TransactionLogRecord> commitDecisions = getCommitDecisions();
+				for(final Xid xid : inDoubtXids) {
+					final ByteBuffer key = TransactionLogRecord.key(xid);
+					final boolean resolved;
+					if(transactionLog == null) {
+						LOGGER.error("In-doubt branch {} of resource {} can not be completed; no transaction log is configured. "
+								+ "Complete the branch manually!", xid, resource.getName());
+						resolved = false;
+					} else if(commitDecisions.containsKey(key)) {
+						resolved = commit(resource, xaResource, xid);
+					} else {
+						resolved = rollback(resource, xaResource, xid);
+					}
+					if(!resolved) {
+						unresolvedTransactions.add(key);
+					}
+				}
+			});
+		} catch (final XAException e) {
+			LOGGER.warn("Could not recover resource {}", resource.getName(), e);
+			return false;
+		}
+		LOGGER.debug("Recovery of resource {} completed", resource.getName());
+		return true;
+	}
+
+	/**
+	 * Scan the prepared branches of a resource (using a recovery scan; a resource may return the branches in multiple calls).
+	 * @param xaResource xa resource
+	 * @return xids of the prepared branches
+	 * @throws XAException thrown by the xa resource
+	 */
+	private static List<Xid> scan(final XAResource xaResource) throws XAException {
+		final List<Xid> result = new ArrayList<>();
+		final Set<ByteBuffer> scanned = new HashSet<>();
+		Xid[] xids = xaResource.recover(XAResource.TMSTARTRSCAN);
+		while(add(xids, result, scanned)) {
+			xids = xaResource.recover(XAResource.TMNOFLAGS);
+		}
+		add(xaResource.recover(XAResource.TMENDRSCAN), result, scanned);
+		return result;
+	}
+
+	/**
+	 * Add the xids (of one call to recover) to the result.
+	 * @return true, if a xid has been added (some resources return all branches on every call; the scan ends when no new branches are returned)
+	 */
+	private static boolean add(final Xid[] xids, final List<Xid> result, final Set<ByteBuffer> scanned) {
+		boolean added = false;
+		if(xids != null) {
+			for(final Xid xid : xids) {
+				final byte[] globalTransactionId = xid.getGlobalTransactionId();
+				final byte[] branchQualifier = xid.getBranchQualifier();
+				final ByteBuffer key = ByteBuffer.allocate(4 + globalTransactionId.length + branchQualifier.length);
+				key.putInt(xid.getFormatId()).put(globalTransactionId).put(branchQualifier);
+				((Buffer) key).flip();
+				if(scanned.add(key)) {
+					result.add(xid);
+					added = true;
+				}
+			}
+		}
+		return added;
+	}
+
+	private static boolean commit(final RecoverableResource resource, final XAResource xaResource, final Xid xid) {
+		try {
+			LOGGER.debug("Calling xa_commit (recovery) on {}", resource.getName());
+			xaResource.commit(xid, false);
+			LOGGER.info("In-doubt branch {} of resource {} committed", xid, resource.getName());
+			return true;
+		} catch (final XAException e) {
+			switch(e.errorCode) {
+				case XAException.XAER_NOTA:
+					LOGGER.debug("In-doubt branch {} of resource {} already completed", xid, resource.getName());
+					return true;
+				case XAException.XA_HEURCOM:
+					forget(resource, xaResource, xid);
+					return true;
+				case XAException.XA_HEURRB:
+				case XAException.XA_HEURMIX:
+				case XAException.XA_HEURHAZ:
+					LOGGER.error("In-doubt branch {} of resource {} is heuristically completed (while committing). DATA CAN BE INCONSISTENT!", xid, resource.getName(), e);
+					forget(resource, xaResource, xid);
+					return true;
+				default:
+					LOGGER.warn("Could not commit in-doubt branch {} of resource {}", xid, resource.getName(), e);
+					return false;
+			}
+		}
+	}
+
+	private static boolean rollback(final RecoverableResource resource, final XAResource xaResource, final Xid xid) {
+		try {
+			LOGGER.debug("Calling xa_rollback (recovery) on {}", resource.getName());
+			xaResource.rollback(xid);
+			LOGGER.info("In-doubt branch {} of resource {} rolled back", xid, resource.getName());
+			return true;
+		} catch (final XAException e) {
+			switch(e.errorCode) {
+				case XAException.XAER_NOTA:
+					LOGGER.debug("In-doubt branch {} of resource {} already completed", xid, resource.getName());
+					return true;
+				case XAException.XA_HEURRB:
+					forget(resource, xaResource, xid);
+					return true;
+				case XAException.XA_HEURCOM:
+				case XAException.XA_HEURMIX:
+				case XAException.XA_HEURHAZ:
+					LOGGER.error("In-doubt branch {} of resource {} is heuristically completed (while rolling back). DATA CAN BE INCONSISTENT!", xid, resource.getName(), e);
+					forget(resource, xaResource, xid);
+					return true;
+				default:
+					LOGGER.warn("Could not rollback in-doubt branch {} of resource {}", xid, resource.getName(), e);
+					return false;
+			}
+		}
+	}
+
+	private static void forget(final RecoverableResource resource, final XAResource xaResource, final Xid xid) {
+		try {
+			LOGGER.debug("Calling xa_forget on {}", resource.getName());
+			xaResource.forget(xid);
+		} catch (final XAException e) {
+			LOGGER.warn("Could not forget heuristically completed branch {} of resource {}", xid, resource.getName(), e);
+		}
+	}
+
+	/**
+	 * Xid of a recovered transaction (only used to log the completion of the transaction).
+	 */
+	private static final class RecoveredXid implements Xid {
+		private final int formatId;
+		private final byte[] globalTransactionId;
+
+		RecoveredXid(final int formatId, final byte[] globalTransactionId) {
+			this.formatId = formatId;
+			this.globalTransactionId = globalTransactionId;
+		}
+
+		@Override
+		public int getFormatId() {
+			return formatId;
+		}
+
+		@Override
+		public byte[] getGlobalTransactionId() {
+			return globalTransactionId;
+		}
+
+		@Override
+		public byte[] getBranchQualifier() {
+			return new byte[0];
+		}
+	}
+}
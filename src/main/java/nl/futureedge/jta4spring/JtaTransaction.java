@@ -1,13 +1,19 @@
 package nl.futureedge.jta4spring;
 
+import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.WeakHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicIntegerFieldUpdater;
 
 import javax.transaction.HeuristicMixedException;
 import javax.transaction.HeuristicRollbackException;
+import javax.transaction.InvalidTransactionException;
 import javax.transaction.RollbackException;
 import javax.transaction.Status;
 import javax.transaction.Synchronization;
@@ -20,6 +26,13 @@ import javax.transaction.xa.Xid;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import nl.futureedge.jta4spring.HashedWheelTimer.Timeout;
+import nl.futureedge.jta4spring.JtaBranchExecutor.Outcome;
+import nl.futureedge.jta4spring.metrics.ResourceMetrics.Phase;
+import nl.futureedge.jta4spring.metrics.TransactionMetrics;
+import nl.futureedge.jta4spring.xa.LastResource;
+import nl.futureedge.jta4spring.xa.TransactionLog;
+
 public class JtaTransaction implements Transaction {
 
 	private static final Logger LOGGER = LoggerFactory.getLogger(JtaTransaction.class);
@@ -37,15 +50,64 @@ public class JtaTransaction implements Transaction {
 			);
 
 	private static final int DEFAULT_TIMEOUT_IN_SECONDS = 30;
-
-	private final Xid xid;
+	private static final String DEFAULT_RESOURCE_NAME = "unknown";
+	private static final AtomicIntegerFieldUpdater<JtaTransaction> STATUS = AtomicIntegerFieldUpdater.newUpdater(JtaTransaction.class, "status");
+
+	private final JtaXid xid;
+	private final JtaBranchExecutor branchExecutor;
+	private final TransactionLog transactionLog;
+	private final JtaTransactionRegistry registry;
+	private final TransactionMetrics metrics;
+	private final long startTime = System.currentTimeMillis();
+	private final long startNanos = System.nanoTime();
+	private final String threadName = Thread.currentThread().getName();
+	private volatile List<String> resourceNames = Collections.emptyList();
 	private int timeoutInSeconds = DEFAULT_TIMEOUT_IN_SECONDS;
-	private int status = Status.STATUS_ACTIVE;
-	private final List<XAResource> xaResources = new ArrayList<>();
+	private volatile int status = Status.STATUS_ACTIVE;
+	private volatile Timeout timeout;
+	private boolean branchesRolledBack = false;
+	private boolean suspended = false;
+	private final List<JtaBranch> branches = new ArrayList<>();
+	private LastResource lastResource;
+	private String lastResourceName;
 	private final Map<Synchronization,Void> synchronizations = new WeakHashMap<>();
+	private final Map<Object,Object> resources = new HashMap<>();
 
-	JtaTransaction(final Xid xid) {
+	JtaTransaction(final JtaXid xid, final Executor executor, final TransactionLog transactionLog, final JtaTransactionRegistry registry,
+			final TransactionMetrics metrics) {
 		this.xid = xid;
+		branchExecutor = new JtaBranchExecutor(executor);
+		this.transactionLog = transactionLog;
+		this.registry = registry;
+		this.metrics = metrics;
+	}
+
+	/**
+	 * @return xid of the transaction
+	 */
+	public JtaXid getXid() {
+		return xid;
+	}
+
+	/**
+	 * @return time (in milliseconds since the epoch) the transaction began
+	 */
+	public long getStartTime() {
+		return startTime;
+	}
+
+	/**
+	 * @return name of the thread that began the transaction
+	 */
+	public String getThreadName() {
+		return threadName;
+	}
+
+	/**
+	 * @return names of the resources enlisted in the transaction (one per branch)
+	 */
+	public List<String> getResourceNames() {
+		return resourceNames;
 	}
 
 	/* ***************************** */
@@ -60,7 +122,20 @@ public class JtaTransaction implements Transaction {
 
 	@Override
 	public boolean enlistResource(final XAResource xaResource) throws RollbackException, IllegalStateException, SystemException {
-		LOGGER.trace("enlistResource(xaResource={})", xaResource);
+		return enlistResource(xaResource, DEFAULT_RESOURCE_NAME);
+	}
+
+	/**
+	 * Enlist the resource specified with the transaction associated with the target Transaction object.
+	 * @param xaResource xa resource
+	 * @param resourceName name of the resource (logged with the commit decision; used to complete the transaction during recovery)
+	 * @return true if the resource was enlisted successfully
+	 * @throws RollbackException if the transaction is marked for rollback
+	 * @throws IllegalStateException if the transaction is not active
+	 * @throws SystemException if the transaction could not be started on the xa resource
+	 */
+	public synchronized boolean enlistResource(final XAResource xaResource, final String resourceName) throws RollbackException, IllegalStateException, SystemException {
+		LOGGER.trace("enlistResource(xaResource={}, resourceName={})", xaResource, resourceName);
 		if(Status.STATUS_MARKED_ROLLBACK == status) {
 			LOGGER.debug("Transaction is marked for rollback; enlist resource not possible.");
 			throw new RollbackException("Transaction is marked for rollback; enlist resource not possible.");
@@ -70,17 +145,39 @@ public class JtaTransaction implements Transaction {
 			throw new IllegalStateException("Transaction status is not active (but " + status + "); enlist resource not possible.");
 		}
 
-		for(final XAResource enlistedResource : xaResources) {
-			if( enlistedResource == xaResource) {
+		boolean sameResourceManagerEnlisted = false;
+		for(final JtaBranch branch : branches) {
+			if(branch.contains(xaResource)) {
 				LOGGER.debug("XA resource already enlisted; enlist resource not possible.");
 				throw new IllegalStateException("XA resource already enlisted; enlist resource not possible.");
 			}
 		}
+		for(final JtaBranch branch : branches) {
+			if(isSameResourceManager(branch.getXaResource(), xaResource)) {
+				sameResourceManagerEnlisted = true;
+				// Join existing branch on XA resource
+				try {
+					xaResource.setTransactionTimeout(timeoutInSeconds);
+					LOGGER.debug("Calling xa_start (join) on {}", xaResource);
+					final long startCall = System.nanoTime();
+					xaResource.start(branch.getXid(), XAResource.TMJOIN);
+					record(resourceName, Phase.START, startCall);
+					branch.join(xaResource);
+					return true;
+				} catch (final XAException e) {
+					LOGGER.debug("Could not join existing branch on XA resource; starting new branch", e);
+				}
+			}
+		}
 
-		// Start transaction on XA resource
+		// Start transaction on XA resource; a distinct branch qualifier is only needed if the resource manager already has a branch
+		final Xid branchXid = sameResourceManagerEnlisted ? xid.createBranch(branches.size()) : xid;
 		try {
 			xaResource.setTransactionTimeout(timeoutInSeconds);
-			xaResource.start(xid, XAResource.TMNOFLAGS);
+			LOGGER.debug("Calling xa_start on {}", xaResource);
+			final long startCall = System.nanoTime();
+			xaResource.start(branchXid, XAResource.TMNOFLAGS);
+			record(resourceName, Phase.START, startCall);
 		} catch (final XAException e) {
 			LOGGER.warn("Could not start transaction on XA resource", e);
 			final SystemException systemException = new SystemException("Could not start transaction on XA resource");
@@ -88,19 +185,176 @@ public class JtaTransaction implements Transaction {
 			throw systemException;
 		}
 
-		xaResources.add(xaResource);
+		branches.add(new JtaBranch(branchXid, xaResource, resourceName));
+		final List<String> enlistedResourceNames = new ArrayList<>(resourceNames);
+		enlistedResourceNames.add(resourceName);
+		resourceNames = Collections.unmodifiableList(enlistedResourceNames);
 		return true;
 	}
 
+	/**
+	 * Enlist a resource without xa support as last resource of the transaction; the last resource is committed after
+	 * all xa branches have been prepared and its outcome decides the outcome of the transaction.
+	 * @param resource last resource
+	 * @param resourceName name of the resource
+	 * @throws RollbackException if the transaction is marked for rollback
+	 * @throws IllegalStateException if the transaction is not active or another last resource is already enlisted
+	 */
+	public synchronized void enlistLastResource(final LastResource resource, final String resourceName) throws RollbackException, IllegalStateException {
+		LOGGER.trace("enlistLastResource(resource={}, resourceName={})", resource, resourceName);
+		if(Status.STATUS_MARKED_ROLLBACK == status) {
+			LOGGER.debug("Transaction is marked for rollback; enlist last resource not possible.");
+			throw new RollbackException("Transaction is marked for rollback; enlist last resource not possible.");
+		}
+		if(Status.STATUS_ACTIVE != status) {
+			LOGGER.debug("Transaction status is not active (but " + status + "); enlist last resource not possible.");
+			throw new IllegalStateException("Transaction status is not active (but " + status + "); enlist last resource not possible.");
+		}
+		if(lastResource != null) {
+			LOGGER.debug("Last resource already enlisted; enlist last resource not possible.");
+			throw new IllegalStateException("Last resource (" + lastResourceName + ") already enlisted; enlist last resource not possible.");
+		}
+
+		lastResource = resource;
+		lastResourceName = resourceName;
+		final List<String> enlistedResourceNames = new ArrayList<>(resourceNames);
+		enlistedResourceNames.add(resourceName);
+		resourceNames = Collections.unmodifiableList(enlistedResourceNames);
+	}
+
+	private static boolean isSameResourceManager(final XAResource enlistedXaResource, final XAResource xaResource) {
+		try {
+			return enlistedXaResource.isSameRM(xaResource);
+		} catch (final XAException e) {
+			LOGGER.debug("Could not determine if XA resources share the resource manager", e);
+			return false;
+		}
+	}
+
+	/**
+	 * End the association of all xa resources with their branch.
+	 * @param branch branch
+	 * @param flags flags (TMSUCCESS, TMFAIL or TMSUSPEND)
+	 * @throws XAException thrown when a xa resource could not be ended
+	 */
+	private void end(final JtaBranch branch, final int flags) throws XAException {
+		XAException exception = null;
+		for(final XAResource xaResource : branch.getXaResources()) {
+			try {
+				LOGGER.debug("Calling xa_end on {}", xaResource);
+				final long startCall = System.nanoTime();
+				xaResource.end(branch.getXid(), flags);
+				record(branch.getResourceName(), Phase.END, startCall);
+			} catch (final XAException e) {
+				exception = e;
+			}
+		}
+		if(exception != null) {
+			throw exception;
+		}
+	}
+
+
+	/* ***************************** */
+	/* *** SUSPEND/RESUME ********** */
+	/* ***************************** */
+
+	/**
+	 * Suspend the association of all xa resources with their branch (the transaction is disassociated from the thread).
+	 * @throws IllegalStateException if the transaction is already suspended or not active
+	 * @throws SystemException if a xa resource could not be suspended (the transaction is marked for rollback)
+	 */
+	synchronized void suspend() throws SystemException {
+		LOGGER.trace("suspend()");
+		if(suspended) {
+			throw new IllegalStateException("Transaction is already suspended");
+		}
+		if(!branchesRolledBack && Status.STATUS_ACTIVE != status && Status.STATUS_MARKED_ROLLBACK != status) {
+			LOGGER.debug("Transaction status is not active or marked for rollback (but " + status + "); suspend not possible.");
+			throw new IllegalStateException("Transaction status is not active or marked for rollback (but " + status + "); suspend not possible.");
+		}
+		suspended = true;
+		if(branchesRolledBack) {
+			return;
+		}
+
+		XAException exception = null;
+		for(final JtaBranch branch : branches) {
+			try {
+				end(branch, XAResource.TMSUSPEND);
+			} catch (final XAException e) {
+				exception = e;
+			}
+		}
+		if(exception != null) {
+			LOGGER.warn("Could not suspend transaction on XA resource; transaction is marked for rollback", exception);
+			status = Status.STATUS_MARKED_ROLLBACK;
+			final SystemException systemException = new SystemException("Could not suspend transaction on XA resource");
+			systemException.initCause(exception);
+			throw systemException;
+		}
+	}
+
+	/**
+	 * Resume the association of all xa resources with their branch.
+	 * @throws InvalidTransactionException if the transaction is not suspended
+	 * @throws SystemException if a xa resource could not be resumed (the transaction is marked for rollback)
+	 */
+	synchronized void resume() throws InvalidTransactionException, SystemException {
+		LOGGER.trace("resume()");
+		if(!suspended) {
+			throw new InvalidTransactionException("Transaction is not suspended");
+		}
+		suspended = false;
+		if(branchesRolledBack || Status.STATUS_ACTIVE != status && Status.STATUS_MARKED_ROLLBACK != status) {
+			return;
+		}
+
+		XAException exception = null;
+		for(final JtaBranch branch : branches) {
+			for(final XAResource xaResource : branch.getXaResources()) {
+				try {
+					LOGGER.debug("Calling xa_start (resume) on {}", xaResource);
+					final long startCall = System.nanoTime();
+					xaResource.start(branch.getXid(), XAResource.TMRESUME);
+					record(branch.getResourceName(), Phase.START, startCall);
+				} catch (final XAException e) {
+					exception = e;
+				}
+			}
+		}
+		if(exception != null) {
+			LOGGER.warn("Could not resume transaction on XA resource; transaction is marked for rollback", exception);
+			status = Status.STATUS_MARKED_ROLLBACK;
+			final SystemException systemException = new SystemException("Could not resume transaction on XA resource");
+			systemException.initCause(exception);
+			throw systemException;
+		}
+	}
 
 	/* ***************************** */
 	/* *** COMMIT/ROLLBACK ********* */
 	/* ***************************** */
 
 	@Override
-	public void commit() throws RollbackException, HeuristicMixedException, HeuristicRollbackException,
+	public synchronized void commit() throws RollbackException, HeuristicMixedException, HeuristicRollbackException,
 	SecurityException, IllegalStateException, SystemException {
 		LOGGER.trace("commit()");
+		cancelTimeout();
+		if(branchesRolledBack) {
+			LOGGER.debug("Transaction has been rolled back (after timeout or on shutdown); commit not possible.");
+			doAfterCompletion();
+			throw new RollbackException("Transaction has been rolled back (after timeout or on shutdown); commit not possible.");
+		}
+		if(Status.STATUS_MARKED_ROLLBACK == status) {
+			LOGGER.debug("Transaction is marked for rollback; executing rollback.");
+			try {
+				doRollback();
+			} finally {
+				doAfterCompletion();
+			}
+			throw new RollbackException("Transaction is marked for rollback; transaction is rolled back.");
+		}
 		if(Status.STATUS_ACTIVE != status) {
 			LOGGER.debug("Transaction status is not active (but " + status + "); commit not possible.");
 			throw new RollbackException("Transaction status is not active (but " + status + "); commit not possible.");
@@ -108,9 +362,63 @@ public class JtaTransaction implements Transaction {
 
 		doBeforeCompletion();
 
-		doCommit();
+		try {
+			if(branches.size() == 1 && lastResource == null) {
+				doOnePhaseCommit(branches.get(0));
+			} else {
+				doCommit();
+			}
+		} finally {
+			doAfterCompletion();
+		}
+	}
+
+	private void doOnePhaseCommit(final JtaBranch branch) throws RollbackException, HeuristicMixedException, SystemException {
+		LOGGER.trace("doOnePhaseCommit()");
+
+		// End
+		try {
+			end(branch, XAResource.TMSUCCESS);
+		} catch (final XAException e) {
+			LOGGER.debug("XA exception during end; executing rollback", e);
+			doRollback();
+			throw new RollbackException("Transaction could not be ended. View log for previous error(s).");
+		}
+
+		// Commit (without prepare)
+		LOGGER.trace("Starting 1-phase commit");
+		status = Status.STATUS_COMMITTING;
+		final XAResource xaResource = branch.getXaResource();
+		try {
+			LOGGER.debug("Calling xa_commit (one-phase) on {}", xaResource);
+			final long startCall = System.nanoTime();
+			xaResource.commit(branch.getXid(), true);
+			record(branch.getResourceName(), Phase.COMMIT, startCall);
+		} catch (final XAException e) {
+			if(isHeuristic(e)) {
+				metrics.heuristicFailure();
+			}
+			if(XA_ROLLBACK_CODES.contains(e.errorCode) || XAException.XA_HEURRB == e.errorCode) {
+				LOGGER.debug("XA exception during 1-phase commit; branch is rolled back", e);
+				metrics.rolledBack();
+				status = Status.STATUS_ROLLEDBACK;
+				throw new RollbackException("Transaction could not be committed; transaction is rolled back");
+			} else if(XAException.XA_HEURMIX == e.errorCode || XAException.XA_HEURHAZ == e.errorCode) {
+				LOGGER.error("XA exception during 1-phase commit; branch is heuristically completed. DATA CAN BE INCONSISTENT!", e);
+				status = Status.STATUS_UNKNOWN;
+				throw new HeuristicMixedException("Transaction is heuristically completed. DATA CAN BE INCONSISTENT! View log for previous error(s).");
+			} else {
+				LOGGER.error("XA exception during 1-phase commit; outcome of transaction is unknown", e);
+				status = Status.STATUS_UNKNOWN;
+				final SystemException systemException = new SystemException("Transaction could not be commited (outcome unknown). DATA CAN BE INCONSISTENT! View log for previous error(s).");
+				systemException.initCause(e);
+				throw systemException;
+			}
+		}
 
-		doAfterCompletion();
+		LOGGER.debug("1-phase commit completed");
+		status = Status.STATUS_COMMITTED;
+		metrics.committed(System.nanoTime() - startNanos);
 	}
 
 	private void doCommit() throws RollbackException, SystemException {
@@ -121,37 +429,57 @@ public class JtaTransaction implements Transaction {
 		status = Status.STATUS_PREPARING;
 		boolean ok = true;
 
-		final List<XAResource> preparedXaResources = new ArrayList<>();
-		for(final XAResource xaResource : xaResources) {
+		// End (in the thread associated with the transaction)
+		final List<JtaBranch> preparedBranches = new ArrayList<>();
+		final List<JtaBranch> endedBranches = new ArrayList<>();
+		for(final JtaBranch branch : branches) {
 			try {
-				LOGGER.debug("Calling xa_end on {}", xaResource);
-				xaResource.end(xid, XAResource.TMSUCCESS);
-				LOGGER.debug("Calling xa_prepare on {}", xaResource);
-				final int prepareResult = xaResource.prepare(xid);
+				end(branch, XAResource.TMSUCCESS);
+				endedBranches.add(branch);
+			} catch (final XAException e) {
+				ok = false;
+				LOGGER.warn("XA exception during end; xa resource had an error; adding branch for rollback", e);
+				preparedBranches.add(branch);
+			}
+		}
+
+		final List<Outcome<Integer>> prepareOutcomes = branchExecutor.execute(endedBranches, branch -> {
+			LOGGER.debug("Calling xa_prepare on {}", branch.getXaResource());
+			final long startCall = System.nanoTime();
+			final int prepareResult = branch.getXaResource().prepare(branch.getXid());
+			record(branch.getResourceName(), Phase.PREPARE, startCall);
+			return prepareResult;
+		});
+		for(final Outcome<Integer> outcome : prepareOutcomes) {
+			final JtaBranch branch = outcome.getBranch();
+			final XAException e = outcome.getException();
+			if(e == null) {
+				final int prepareResult = outcome.getResult();
 				if(prepareResult == XAResource.XA_OK) {
-					LOGGER.debug("xa_prepare on {}; result ok; adding xaResource to list of prepared resources.", xaResource);
-					preparedXaResources.add(xaResource);
+					LOGGER.debug("xa_prepare on {}; result ok; adding branch to list of prepared branches.", branch.getXaResource());
+					preparedBranches.add(branch);
 				} else if(prepareResult != XAResource.XA_RDONLY) {
 					ok = false;
 					LOGGER.error("Unknown result from xaResource.prepare: " + prepareResult);
 				} else {
-					LOGGER.debug("xa_prepare on {}; result read-only. Skipping xa resource for commit.", xaResource);
+					LOGGER.debug("xa_prepare on {}; result read-only. Skipping branch for commit.", branch.getXaResource());
+					metrics.readOnlyVote();
 				}
-			} catch (final XAException e) {
+			} else {
 				ok = false;
 				if(XA_ROLLBACK_CODES.contains(e.errorCode)) {
-					LOGGER.debug("XA exception during prepare; xa resource is rolled back", e);
+					LOGGER.debug("XA exception during prepare; branch is rolled back", e);
 				} else {
-					LOGGER.warn("XA exception during prepare; xa resource had an error; adding xa resource for rollback", e);
-					preparedXaResources.add(xaResource);
+					LOGGER.warn("XA exception during prepare; xa resource had an error; adding branch for rollback", e);
+					preparedBranches.add(branch);
 				}
 			}
 		}
 		LOGGER.debug("Prepare of 2-phase commit completed; result = {}", ok);
 
-		// Set resources to prepared resources
-		xaResources.clear();
-		xaResources.addAll(preparedXaResources);
+		// Set branches to prepared branches
+		branches.clear();
+		branches.addAll(preparedBranches);
 
 		// Rollback if necessary
 		if(!ok) {
@@ -161,21 +489,67 @@ public class JtaTransaction implements Transaction {
 		}
 		status = Status.STATUS_PREPARED;
 
+		// Commit the last resource; its outcome decides the outcome of the transaction
+		final boolean lastResourceCommitted = lastResource != null;
+		if(lastResourceCommitted) {
+			doCommitLastResource();
+		}
+
+		// Log commit decision (not needed if no branch, or only one branch without last resource, has to be committed)
+		final boolean logged = transactionLog != null && (branches.size() > 1 || lastResourceCommitted && !branches.isEmpty());
+		if(logged) {
+			final List<String> resourceNames = new ArrayList<>(branches.size());
+			for(final JtaBranch branch : branches) {
+				resourceNames.add(branch.getResourceName());
+			}
+			try {
+				transactionLog.logCommitDecision(xid, resourceNames);
+			} catch (final IOException e) {
+				if(lastResourceCommitted) {
+					// The last resource is committed; the transaction can not be rolled back anymore
+					LOGGER.error("Could not log commit decision (last resource is committed). Executing commit.", e);
+				} else {
+					LOGGER.error("Could not log commit decision. Executing rollback.", e);
+					doRollback();
+					throw new RollbackException("Commit decision could not be logged. View log for previous error(s).");
+				}
+			}
+		}
+
 		// Commit
 		LOGGER.trace("Starting commit of 2-phase commit");
 		status = Status.STATUS_COMMITTING;
-		for(final XAResource xaResource : xaResources) {
-			try {
-				LOGGER.debug("Calling xa_commit on {}", xaResource);
-				xaResource.commit(xid, false);
-			} catch (final XAException e) {
+		final List<Outcome<Void>> commitOutcomes = branchExecutor.execute(branches, branch -> {
+			LOGGER.debug("Calling xa_commit on {}", branch.getXaResource());
+			final long startCall = System.nanoTime();
+			branch.getXaResource().commit(branch.getXid(), false);
+			record(branch.getResourceName(), Phase.COMMIT, startCall);
+			return null;
+		});
+		for(final Outcome<Void> outcome : commitOutcomes) {
+			if(outcome.getException() != null) {
 				ok = false;
-				LOGGER.error("XA exception during commit", e);
+				LOGGER.error("XA exception during commit", outcome.getException());
+				if(isHeuristic(outcome.getException())) {
+					metrics.heuristicFailure();
+				}
 			}
 		}
 
 		LOGGER.debug("Commit of 2-phase commit completed; result = {}", ok);
 		status = Status.STATUS_COMMITTED;
+		if(ok) {
+			metrics.committed(System.nanoTime() - startNanos);
+		}
+
+		// Log completion (if not all branches are committed the commit decision is kept; recovery completes the transaction)
+		if(logged && ok) {
+			try {
+				transactionLog.logCompletion(xid);
+			} catch (final IOException e) {
+				LOGGER.warn("Could not log completion of transaction", e);
+			}
+		}
 
 		if(!ok) {
 			LOGGER.error("Transaction could not be commited completely (after succesfull preparation). DATA CAN BE INCONSISTENT! View log for previous error(s).");
@@ -183,17 +557,46 @@ public class JtaTransaction implements Transaction {
 		}
 	}
 
+	private void doCommitLastResource() throws RollbackException, SystemException {
+		LOGGER.trace("doCommitLastResource()");
+		final LastResource resource = lastResource;
+		// The last resource is completed by its commit (also when the commit fails); it is not rolled back with the xa branches
+		lastResource = null;
+		try {
+			LOGGER.debug("Calling commit on last resource {}", lastResourceName);
+			final long startCall = System.nanoTime();
+			resource.commit();
+			record(lastResourceName, Phase.COMMIT, startCall);
+		} catch (final XAException e) {
+			if(XA_ROLLBACK_CODES.contains(e.errorCode)) {
+				LOGGER.debug("Exception during commit of last resource; last resource is rolled back. Executing rollback.", e);
+			} else {
+				LOGGER.error("Exception during commit of last resource; outcome of last resource is unknown. Executing rollback. DATA CAN BE INCONSISTENT!", e);
+			}
+			doRollback();
+			throw new RollbackException("Last resource could not be committed; transaction is rolled back. View log for previous error(s).");
+		}
+	}
+
 	@Override
-	public void rollback() throws IllegalStateException, SystemException {
+	public synchronized void rollback() throws IllegalStateException, SystemException {
 		LOGGER.trace("rollback()");
+		cancelTimeout();
+		if(branchesRolledBack) {
+			LOGGER.debug("Transaction has been rolled back (after timeout or on shutdown).");
+			doAfterCompletion();
+			return;
+		}
 		if(Status.STATUS_ACTIVE != status && Status.STATUS_MARKED_ROLLBACK != status) {
 			LOGGER.debug("Transaction status is not active or marked for rollback (but " + status + "); rollback not possible.");
 			throw new IllegalStateException("Transaction status is not active or marked for rollback (but " + status + "); rollback not possible.");
 		}
 
-		doRollback();
-
-		doAfterCompletion();
+		try {
+			doRollback();
+		} finally {
+			doAfterCompletion();
+		}
 	}
 
 	private void doRollback() throws SystemException {
@@ -203,21 +606,48 @@ public class JtaTransaction implements Transaction {
 		LOGGER.debug("Starting rollback");
 		status = Status.STATUS_ROLLING_BACK;
 
+		// End (in the thread associated with the transaction)
+		for(final JtaBranch branch : branches) {
+			try {
+				end(branch, XAResource.TMFAIL);
+			} catch (final XAException e) {
+				LOGGER.debug("XA exception during end; branch could already be ended", e);
+			}
+		}
+
 		boolean ok = true;
-		for(final XAResource xaResource : xaResources) {
+		final List<Outcome<Void>> rollbackOutcomes = branchExecutor.execute(branches, branch -> {
+			LOGGER.debug("Calling xa_rollback on {}", branch.getXaResource());
+			final long startCall = System.nanoTime();
+			branch.getXaResource().rollback(branch.getXid());
+			record(branch.getResourceName(), Phase.ROLLBACK, startCall);
+			return null;
+		});
+		if(lastResource != null) {
 			try {
-				LOGGER.debug("Calling xa_end on {}", xaResource);
-				xaResource.end(xid, XAResource.TMFAIL);
-				LOGGER.debug("Calling xa_rollback on {}", xaResource);
-				xaResource.rollback(xid);
+				LOGGER.debug("Calling rollback on last resource {}", lastResourceName);
+				final long startCall = System.nanoTime();
+				lastResource.rollback();
+				record(lastResourceName, Phase.ROLLBACK, startCall);
 			} catch (final XAException e) {
 				ok = false;
-				LOGGER.warn("XA exception during rollback", e);
+				LOGGER.warn("Exception during rollback of last resource", e);
+			}
+			lastResource = null;
+		}
+		for(final Outcome<Void> outcome : rollbackOutcomes) {
+			if(outcome.getException() != null) {
+				ok = false;
+				LOGGER.warn("XA exception during rollback", outcome.getException());
+				if(isHeuristic(outcome.getException())) {
+					metrics.heuristicFailure();
+				}
 			}
 		}
 
 		LOGGER.debug("Rollback completed; result = {}", ok);
 		status = Status.STATUS_ROLLEDBACK;
+		metrics.rolledBack();
 
 		if(!ok) {
 			LOGGER.warn("Transaction could not be rollbacked completely (after succesfull preparation). DATA CAN BE INCONSISTENT! View log for previous error(s).");
@@ -225,12 +655,25 @@ public class JtaTransaction implements Transaction {
 		}
 	}
 
+	/* ***************************** */
+	/* *** METRICS ***************** */
+	/* ***************************** */
+
+	private void record(final String resourceName, final Phase phase, final long startCall) {
+		metrics.getResource(resourceName).record(phase, System.nanoTime() - startCall);
+	}
+
+	private static boolean isHeuristic(final XAException e) {
+		return XAException.XA_HEURCOM == e.errorCode || XAException.XA_HEURRB == e.errorCode
+				|| XAException.XA_HEURMIX == e.errorCode || XAException.XA_HEURHAZ == e.errorCode;
+	}
+
 	/* ***************************** */
 	/* *** SYNCHRONIZATIONS ******** */
 	/* ***************************** */
 
 	@Override
-	public void registerSynchronization(final Synchronization synchronization)
+	public synchronized void registerSynchronization(final Synchronization synchronization)
 			throws RollbackException, IllegalStateException, SystemException {
 		LOGGER.trace( "registerSynchronization(synchronization={}", synchronization);
 		if(Status.STATUS_MARKED_ROLLBACK == status) {
@@ -253,11 +696,41 @@ public class JtaTransaction implements Transaction {
 
 	private void doAfterCompletion() {
 		LOGGER.trace("doAfterCompletion()");
+		registry.deregister(this);
 		for(final Synchronization synchronization : synchronizations.keySet()) {
 			synchronization.afterCompletion(status);
 		}
 	}
 
+	/* ***************************** */
+	/* *** BOUND RESOURCES ********* */
+	/* ***************************** */
+
+	/**
+	 * Get an object from the map of resources bound to this transaction.
+	 * @param key key
+	 * @return the bound object, or null if no object is bound for the key
+	 */
+	public Object getResource(final Object key) {
+		LOGGER.trace("getResource(key={})", key);
+		return resources.get(key);
+	}
+
+	/**
+	 * Bind an object to this transaction (for example a connection that should be reused within the transaction).
+	 * @param key key
+	 * @param value object to bind
+	 * @throws IllegalStateException if the transaction is not active
+	 */
+	public void putResource(final Object key, final Object value) {
+		LOGGER.trace("putResource(key={}, value={})", key, value);
+		if(Status.STATUS_ACTIVE != status && Status.STATUS_MARKED_ROLLBACK != status) {
+			LOGGER.debug("Transaction status is not active or marked for rollback (but " + status + "); put resource not possible.");
+			throw new IllegalStateException("Transaction status is not active or marked for rollback (but " + status + "); put resource not possible.");
+		}
+		resources.put(key, value);
+	}
+
 	/* ***************************** */
 	/* *** STATUS ****************** */
 	/* ***************************** */
@@ -269,7 +742,7 @@ public class JtaTransaction implements Transaction {
 	}
 
 	@Override
-	public void setRollbackOnly() throws IllegalStateException, SystemException {
+	public synchronized void setRollbackOnly() throws IllegalStateException, SystemException {
 		LOGGER.trace("setRollbackOnly()");
 		if(Status.STATUS_ACTIVE != status && Status.STATUS_MARKED_ROLLBACK != status) {
 			LOGGER.debug("Transaction status is not active or marked for rollback (but " + status + "); set rollback only not possible.");
@@ -297,7 +770,7 @@ public class JtaTransaction implements Transaction {
 	 *    encounters an unexpected error condition.
 	 *
 	 */
-	public void setTransactionTimeout(final int seconds) throws SystemException {
+	public synchronized void setTransactionTimeout(final int seconds) throws SystemException {
 		LOGGER.trace("setTransactionTimeout(seconds={})", seconds);
 		if(seconds < 0) {
 			LOGGER.debug("Timeout may not be a negative value");
@@ -310,15 +783,94 @@ public class JtaTransaction implements Transaction {
 		}
 
 		// Update all enlisted xa resources
-		for(final XAResource xaResource: xaResources) {
-			try {
-				xaResource.setTransactionTimeout(timeoutInSeconds);
-			} catch (final XAException e) {
-				LOGGER.warn("Could not set timeout on XA resource");
-				final SystemException systemException = new SystemException("Could not set timeout on XA resource");
-				systemException.initCause(e);
-				throw systemException;
+		for(final JtaBranch branch : branches) {
+			for(final XAResource xaResource: branch.getXaResources()) {
+				try {
+					xaResource.setTransactionTimeout(timeoutInSeconds);
+				} catch (final XAException e) {
+					LOGGER.warn("Could not set timeout on XA resource");
+					final SystemException systemException = new SystemException("Could not set timeout on XA resource");
+					systemException.initCause(e);
+					throw systemException;
+				}
 			}
 		}
 	}
+
+	/**
+	 * @return timeout of the transaction in seconds
+	 */
+	int getTransactionTimeout() {
+		return timeoutInSeconds;
+	}
+
+	/**
+	 * Set the timeout handle of the transaction (cancels the previous timeout); the timeout is cancelled when the
+	 * transaction completes.
+	 * @param timeout timeout
+	 */
+	void setTimeout(final Timeout timeout) {
+		final Timeout previous = this.timeout;
+		this.timeout = timeout;
+		if(previous != null) {
+			previous.cancel();
+		}
+	}
+
+	private void cancelTimeout() {
+		final Timeout current = timeout;
+		if(current != null) {
+			current.cancel();
+		}
+	}
+
+	/**
+	 * The transaction timed out; mark the transaction for rollback (if the transaction is active). Does not block.
+	 * @return true, if the transaction has been marked for rollback
+	 */
+	boolean timeout() {
+		if(STATUS.compareAndSet(this, Status.STATUS_ACTIVE, Status.STATUS_MARKED_ROLLBACK)) {
+			LOGGER.warn("Transaction {} timed out after {} seconds; transaction is marked for rollback", xid, timeoutInSeconds);
+			return true;
+		}
+		return false;
+	}
+
+	/**
+	 * The transaction did not complete before shutdown; mark the transaction for rollback (if the transaction is active).
+	 * Does not block.
+	 * @return true, if the transaction is marked for rollback
+	 */
+	boolean shutdown() {
+		if(STATUS.compareAndSet(this, Status.STATUS_ACTIVE, Status.STATUS_MARKED_ROLLBACK)) {
+			LOGGER.warn("Transaction {} did not complete before shutdown; transaction is marked for rollback", xid);
+		}
+		return Status.STATUS_MARKED_ROLLBACK == status;
+	}
+
+	/**
+	 * Rollback all branches of a transaction that is marked for rollback by a timeout or shutdown (releases the locks
+	 * held by the resources); the thread associated with the transaction completes the transaction and notifies the
+	 * synchronizations.
+	 * @return true, if the branches have been rolled back
+	 */
+	synchronized boolean rollbackBranches() {
+		LOGGER.trace("rollbackBranches()");
+		if(Status.STATUS_MARKED_ROLLBACK != status || branchesRolledBack) {
+			// Already completed
+			return false;
+		}
+		try {
+			doRollback();
+		} catch (final SystemException e) {
+			LOGGER.warn("Could not rollback branches of transaction {}", xid, e);
+		}
+		branchesRolledBack = true;
+		return true;
+	}
+
+	@Override
+	public String toString() {
+		return "JtaTransaction [xid=" + xid + ", status=" + status + ", startTime=" + startTime + ", thread=" + threadName + ", resources=" + resourceNames + "]";
+	}
 }
@@ -0,0 +1,55 @@
+package nl.futureedge.jta4spring;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Allocates transaction ids.
+ *
+ * Ids start at the boot time of the allocator (in milliseconds) shifted left by {@value #SEQUENCE_BITS} bits, so ids of
+ * a restarted transaction manager do not collide with ids of earlier runs (as long as those allocated less than 2^20
+ * ids per millisecond of uptime on average). Threads lease blocks of ids from a shared counter and allocate from their
+ * own block, so allocation does not contend on a shared counter.
+ */
+final class JtaTransactionIdAllocator {
+
+	private static final int SEQUENCE_BITS = 20;
+	private static final int BLOCK_SIZE = 1024;
+
+	private final AtomicLong nextBlock;
+	private final ThreadLocal<Block> block = ThreadLocal.withInitial(Block::new);
+
+	/**
+	 * Constructor; the first id is based on the current time.
+	 */
+	JtaTransactionIdAllocator() {
+		this(System.currentTimeMillis() << SEQUENCE_BITS);
+	}
+
+	/**
+	 * Constructor.
+	 * @param firstId first id to allocate
+	 */
+	JtaTransactionIdAllocator(final long firstId) {
+		nextBlock = new AtomicLong(firstId);
+	}
+
+	/**
+	 * @return a unique transaction id
+	 */
+	long allocate() {
+		final Block current = block.get();
+		if(current.next == current.limit) {
+			current.next = nextBlock.getAndAdd(BLOCK_SIZE);
+			current.limit = current.next + BLOCK_SIZE;
+		}
+		return current.next++;
+	}
+
+	/**
+	 * Block of ids leased by a thread.
+	 */
+	private static final class Block {
+		private long next;
+		private long limit;
+	}
+}
@@ -14,6 +14,8 @@ import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.beans.factory.annotation.Required;
 
+import nl.futureedge.jta4spring.xa.RecoverableResource;
+
 public class JtaTransactionManager implements TransactionManager {
 
 	private static final Logger LOGGER = LoggerFactory.getLogger(JtaTransactionManager.class);
@@ -26,6 +28,16 @@ public class JtaTransactionManager implements TransactionManager {
 		this.jtaMonitor=jtaMonitor;
 	}
 
+	/**
+	 * Register a resource for recovery.
+	 * @param recoverableResource resource
+	 * @see JtaMonitor#registerRecoverableResource(RecoverableResource)
+	 */
+	public void registerRecoverableResource(final RecoverableResource recoverableResource) {
+		LOGGER.trace("registerRecoverableResource(recoverableResource={})", recoverableResource);
+		jtaMonitor.registerRecoverableResource(recoverableResource);
+	}
+
 	@Override
 	public void begin() throws NotSupportedException, SystemException {
 		LOGGER.trace("begin()");
@@ -54,7 +66,7 @@ public class JtaTransactionManager implements TransactionManager {
 	@Override
 	public void resume(final Transaction transaction) throws InvalidTransactionException, IllegalStateException, SystemException {
 		LOGGER.trace("resume(transaction="+transaction+")");
-		throw new UnsupportedOperationException("Transaction suspension is not supported");
+		jtaMonitor.resume(transaction);
 	}
 
 	@Override
@@ -73,13 +85,13 @@ public class JtaTransactionManager implements TransactionManager {
 	@Override
 	public void setTransactionTimeout(final int seconds) throws SystemException {
 		LOGGER.trace("setTransactionTimeout(seconds="+seconds+")");
-		getTransaction().setTransactionTimeout(seconds);
+		jtaMonitor.setTransactionTimeout(seconds);
 	}
 
 	@Override
 	public Transaction suspend() throws SystemException {
 		LOGGER.trace("suspend()");
-		throw new UnsupportedOperationException("Transaction suspension is not supported");
+		return jtaMonitor.suspend();
 	}
 
 }
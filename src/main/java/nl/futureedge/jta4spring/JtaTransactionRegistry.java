@@ -0,0 +1,71 @@
+package nl.futureedge.jta4spring;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import javax.transaction.xa.Xid;
+
+/**
+ * Registry of the active transactions of a transaction manager.
+ *
+ * Transactions are registered when they begin and deregistered when they complete (by whatever thread completes them).
+ * The registry is backed by a concurrent hash map keyed by the xid of the transaction: lookups and iteration do not
+ * lock, registration and deregistration only lock the bin of the key, so begin and completion do not contend on a
+ * shared lock.
+ */
+final class JtaTransactionRegistry {
+
+	private static final int INITIAL_CAPACITY = 256;
+
+	private final Map<JtaXid, JtaTransaction> transactions = new ConcurrentHashMap<>(INITIAL_CAPACITY, 0.75f, Runtime.getRuntime().availableProcessors());
+
+	/**
+	 * Register an active transaction.
+	 * @param transaction transaction
+	 */
+	void register(final JtaTransaction transaction) {
+		transactions.put(transaction.getXid(), transaction);
+	}
+
+	/**
+	 * Deregister a transaction (ignored if the transaction is not registered).
+	 * @param transaction transaction
+	 */
+	void deregister(final JtaTransaction transaction) {
+		transactions.remove(transaction.getXid(), transaction);
+	}
+
+	/**
+	 * @param xid xid (of any branch) of a transaction
+	 * @return the active transaction, or null if the transaction is not active (or not created by this transaction manager)
+	 */
+	JtaTransaction get(final Xid xid) {
+		final JtaXid transactionXid = JtaXid.getTransactionXid(xid);
+		return transactionXid == null ? null : transactions.get(transactionXid);
+	}
+
+	/**
+	 * @param xid xid (of any branch) of a transaction
+	 * @return true, if the transaction is active
+	 */
+	boolean isActive(final Xid xid) {
+		return get(xid) != null;
+	}
+
+	/**
+	 * @return number of active transactions
+	 */
+	int size() {
+		return transactions.size();
+	}
+
+	/**
+	 * @return snapshot of the active transactions
+	 */
+	Collection<JtaTransaction> getTransactions() {
+		return Collections.unmodifiableList(new ArrayList<>(transactions.values()));
+	}
+}
@@ -1,17 +1,196 @@
 package nl.futureedge.jta4spring;
 
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
 import javax.transaction.xa.Xid;
 
-public class JtaXid implements Xid {
+/**
+ * Xid of a transaction (branch) created by this transaction manager.
+ *
+ * The global transaction id is the (UTF-8) encoded unique name of the transaction manager followed by the transaction
+ * id (8 bytes, big-endian); the branch qualifier is the branch number (4 bytes, big-endian). Xids are values: they
+ * implement equals and hashCode (the hash code is computed once) and can be used as map keys.
+ */
+public final class JtaXid implements Xid {
+
+	private static final int FORMAT_ID = 0x1ee4;
+	/** Format id of xids created by earlier versions (global transaction id {@code <unique name>-<transaction id>}). */
+	private static final int LEGACY_FORMAT_ID = 0x1ee3;
+	private static final int TRANSACTION_ID_LENGTH = 8;
+	private static final int BRANCH_LENGTH = 4;
 
-	private static final int DEFAULT_FORMAT_ID = 0x1ee3;
+	/** Maximum length (in bytes, UTF-8 encoded) of the unique name of a transaction manager. */
+	public static final int MAX_UNIQUE_NAME_LENGTH = MAXGTRIDSIZE - TRANSACTION_ID_LENGTH;
 
+	private final int formatId;
 	private final byte[] globalTransactionId;
 	private final byte[] branchQualifier;
+	private final int hashCode;
 
+	/**
+	 * Constructor.
+	 * @param uniqueName unique name of the transaction manager
+	 * @param transactionId transaction id
+	 */
 	public JtaXid(final String uniqueName, final long transactionId) {
-		branchQualifier = new byte[] { (byte)0 };
-		globalTransactionId = (uniqueName + "-" + transactionId).getBytes();
+		this(FORMAT_ID, encodeGlobalTransactionId(encodeUniqueName(uniqueName), transactionId), 0);
+	}
+
+	private JtaXid(final int formatId, final byte[] globalTransactionId, final int branch) {
+		this(formatId, globalTransactionId, new byte[] { (byte) (branch >>> 24), (byte) (branch >>> 16), (byte) (branch >>> 8), (byte) branch });
+	}
+
+	private JtaXid(final int formatId, final byte[] globalTransactionId, final byte[] branchQualifier) {
+		this.formatId = formatId;
+		this.globalTransactionId = globalTransactionId;
+		this.branchQualifier = branchQualifier;
+		hashCode = 31 * (31 * formatId + Arrays.hashCode(globalTransactionId)) + Arrays.hashCode(branchQualifier);
+	}
+
+	/**
+	 * Encode the unique name of a transaction manager (encode once, create many xids).
+	 * @param uniqueName unique name
+	 * @return encoded unique name
+	 * @throws IllegalArgumentException if the encoded unique name is longer than {@link #MAX_UNIQUE_NAME_LENGTH}
+	 */
+	static byte[] encodeUniqueName(final String uniqueName) {
+		final byte[] result = uniqueName.getBytes(StandardCharsets.UTF_8);
+		if(result.length > MAX_UNIQUE_NAME_LENGTH) {
+			throw new IllegalArgumentException("Unique name '" + uniqueName + "' is too long (maximum " + MAX_UNIQUE_NAME_LENGTH + " bytes)");
+		}
+		return result;
+	}
+
+	/**
+	 * Create the xid of a transaction.
+	 * @param encodedUniqueName encoded unique name of the transaction manager (see {@link #encodeUniqueName(String)})
+	 * @param transactionId transaction id
+	 * @return xid
+	 */
+	static JtaXid create(final byte[] encodedUniqueName, final long transactionId) {
+		return new JtaXid(FORMAT_ID, encodeGlobalTransactionId(encodedUniqueName, transactionId), 0);
+	}
+
+	private static byte[] encodeGlobalTransactionId(final byte[] encodedUniqueName, final long transactionId) {
+		final int length = encodedUniqueName.length;
+		final byte[] result = Arrays.copyOf(encodedUniqueName, length + TRANSACTION_ID_LENGTH);
+		for(int i = 0; i < TRANSACTION_ID_LENGTH; i++) {
+			result[length + i] = (byte) (transactionId >>> (56 - 8 * i));
+		}
+		return result;
+	}
+
+	/**
+	 * Create a xid for another branch of the same global transaction.
+	 * @param branch branch number
+	 * @return xid with the same global transaction id and a distinct branch qualifier
+	 */
+	JtaXid createBranch(final int branch) {
+		return new JtaXid(formatId, globalTransactionId, branch);
+	}
+
+	/**
+	 * Parse a xid (for example returned by a resource during recovery).
+	 * @param xid xid
+	 * @param encodedUniqueName encoded unique name of the transaction manager (see {@link #encodeUniqueName(String)})
+	 * @return the xid as JtaXid, or null if the xid has not been created by the transaction manager with the given unique name
+	 */
+	static JtaXid parse(final Xid xid, final byte[] encodedUniqueName) {
+		if(!isOwnedBy(xid, encodedUniqueName)) {
+			return null;
+		}
+		if(xid instanceof JtaXid) {
+			return (JtaXid) xid;
+		}
+		final byte[] branch = xid.getBranchQualifier();
+		return new JtaXid(xid.getFormatId(), xid.getGlobalTransactionId().clone(), branch == null ? new byte[0] : branch.clone());
+	}
+
+	/**
+	 * Determine if a xid has been created by the transaction manager with the given unique name.
+	 * @param xid xid (for example returned by a resource during recovery)
+	 * @param encodedUniqueName encoded unique name of the transaction manager (see {@link #encodeUniqueName(String)})
+	 * @return true, if the xid has the format id of this class (or of earlier versions) and a global transaction id for the unique name
+	 */
+	static boolean isOwnedBy(final Xid xid, final byte[] encodedUniqueName) {
+		final byte[] globalTransactionId = xid.getGlobalTransactionId();
+		if(globalTransactionId == null) {
+			return false;
+		}
+		final int formatId = xid.getFormatId();
+		if(formatId == FORMAT_ID) {
+			return globalTransactionId.length == encodedUniqueName.length + TRANSACTION_ID_LENGTH
+					&& startsWith(globalTransactionId, encodedUniqueName);
+		}
+		if(formatId == LEGACY_FORMAT_ID) {
+			// '<unique name>-<transaction id>'; the remainder should be the (numeric) id, otherwise the unique name is only a prefix
+			return globalTransactionId.length > encodedUniqueName.length + 1
+					&& startsWith(globalTransactionId, encodedUniqueName)
+					&& globalTransactionId[encodedUniqueName.length] == '-'
+					&& isDigits(globalTransactionId, encodedUniqueName.length + 1);
+		}
+		return false;
+	}
+
+	private static boolean isDigits(final byte[] bytes, final int offset) {
+		for(int i = offset; i < bytes.length; i++) {
+			if(bytes[i] < '0' || bytes[i] > '9') {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	private static boolean startsWith(final byte[] bytes, final byte[] prefix) {
+		for(int i = 0; i < prefix.length; i++) {
+			if(bytes[i] != prefix[i]) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Get the xid of the transaction (the first branch) for a xid of any branch of the transaction.
+	 * @param xid xid
+	 * @return xid of the transaction, or null if the xid has not been created by this class
+	 */
+	static JtaXid getTransactionXid(final Xid xid) {
+		if(xid instanceof JtaXid && ((JtaXid) xid).isTransactionXid()) {
+			return (JtaXid) xid;
+		}
+		final byte[] globalTransactionId = xid.getGlobalTransactionId();
+		if(xid.getFormatId() != FORMAT_ID || globalTransactionId == null || globalTransactionId.length <= TRANSACTION_ID_LENGTH) {
+			return null;
+		}
+		return new JtaXid(FORMAT_ID, globalTransactionId.clone(), 0);
+	}
+
+	private boolean isTransactionXid() {
+		if(branchQualifier.length != BRANCH_LENGTH) {
+			return false;
+		}
+		for(final byte b : branchQualifier) {
+			if(b != 0) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * @return transaction id (-1 for xids created by earlier versions)
+	 */
+	public long getTransactionId() {
+		if(formatId != FORMAT_ID) {
+			return -1;
+		}
+		long result = 0;
+		for(int i = globalTransactionId.length - TRANSACTION_ID_LENGTH; i < globalTransactionId.length; i++) {
+			result = (result << 8) | (globalTransactionId[i] & 0xff);
+		}
+		return result;
 	}
 
 	@Override
@@ -21,11 +200,44 @@ public class JtaXid implements Xid {
 
 	@Override
 	public int getFormatId() {
-		return DEFAULT_FORMAT_ID;
+		return formatId;
 	}
 
 	@Override
 	public byte[] getGlobalTransactionId() {
 		return globalTransactionId;
 	}
+
+	@Override
+	public int hashCode() {
+		return hashCode;
+	}
+
+	@Override
+	public boolean equals(final Object obj) {
+		if(this == obj) {
+			return true;
+		}
+		if(!(obj instanceof JtaXid)) {
+			return false;
+		}
+		final JtaXid other = (JtaXid) obj;
+		return hashCode == other.hashCode && formatId == other.formatId
+				&& Arrays.equals(globalTransactionId, other.globalTransactionId) && Arrays.equals(branchQualifier, other.branchQualifier);
+	}
+
+	@Override
+	public String toString() {
+		final String transaction;
+		if(formatId == FORMAT_ID) {
+			transaction = new String(globalTransactionId, 0, globalTransactionId.length - TRANSACTION_ID_LENGTH, StandardCharsets.UTF_8) + "-" + getTransactionId();
+		} else {
+			transaction = new String(globalTransactionId, StandardCharsets.UTF_8);
+		}
+		int branch = 0;
+		for(final byte b : branchQualifier) {
+			branch = (branch << 8) | (b & 0xff);
+		}
+		return "JtaXid [transaction=" + transaction + ", branch=" + branch + "]";
+	}
 }
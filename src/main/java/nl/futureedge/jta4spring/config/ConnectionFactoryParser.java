@@ -5,6 +5,7 @@ import org.springframework.beans.factory.support.AbstractBeanDefinition;
 import org.springframework.beans.factory.support.BeanDefinitionBuilder;
 import org.springframework.beans.factory.xml.AbstractBeanDefinitionParser;
 import org.springframework.beans.factory.xml.ParserContext;
+import org.springframework.util.StringUtils;
 import org.w3c.dom.Element;
 
 import nl.futureedge.jta4spring.jms.XAConnectionFactoryWrapper;
@@ -21,6 +22,12 @@ public class ConnectionFactoryParser extends AbstractBeanDefinitionParser {
 		// CONNECTION-FACTORY
 		final BeanDefinitionBuilder builder = BeanDefinitionBuilder.rootBeanDefinition(XAConnectionFactoryWrapper.class);
 		builder.addPropertyReference("xaConnectionFactory", element.getAttribute("xa-connection-factory"));
+		if(StringUtils.hasText(element.getAttribute("max-pool-size"))) {
+			builder.addPropertyValue("maxPoolSize", element.getAttribute("max-pool-size"));
+		}
+		if(StringUtils.hasText(element.getAttribute("session-pool-size"))) {
+			builder.addPropertyValue("sessionPoolSize", element.getAttribute("session-pool-size"));
+		}
 		return builder.getBeanDefinition();
 	}
 }
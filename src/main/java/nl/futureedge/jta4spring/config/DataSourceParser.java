@@ -5,6 +5,7 @@ import org.springframework.beans.factory.support.AbstractBeanDefinition;
 import org.springframework.beans.factory.support.BeanDefinitionBuilder;
 import org.springframework.beans.factory.xml.AbstractBeanDefinitionParser;
 import org.springframework.beans.factory.xml.ParserContext;
+import org.springframework.util.StringUtils;
 import org.w3c.dom.Element;
 
 import nl.futureedge.jta4spring.jdbc.XADataSourceWrapper;
@@ -21,6 +22,21 @@ public class DataSourceParser extends AbstractBeanDefinitionParser {
 		// DATA-SOURCE
 		final BeanDefinitionBuilder builder = BeanDefinitionBuilder.rootBeanDefinition(XADataSourceWrapper.class);
 		builder.addPropertyReference("xaDataSource", element.getAttribute("xa-data-source"));
+		addOptionalPropertyValue(builder, element, "min-pool-size", "minPoolSize");
+		addOptionalPropertyValue(builder, element, "max-pool-size", "maxPoolSize");
+		addOptionalPropertyValue(builder, element, "max-idle-time", "maxIdleTime");
+		addOptionalPropertyValue(builder, element, "validation-interval", "validationInterval");
+		addOptionalPropertyValue(builder, element, "borrow-timeout", "borrowTimeout");
+		if(StringUtils.hasText(element.getAttribute("read-only-data-source"))) {
+			builder.addPropertyReference("readOnlyDataSource", element.getAttribute("read-only-data-source"));
+		}
 		return builder.getBeanDefinition();
 	}
+
+	private static void addOptionalPropertyValue(final BeanDefinitionBuilder builder, final Element element, final String attributeName, final String propertyName) {
+		final String value = element.getAttribute(attributeName);
+		if(StringUtils.hasText(value)) {
+			builder.addPropertyValue(propertyName, value);
+		}
+	}
 }
@@ -13,6 +13,7 @@ public class Jta4SpringNamespaceHandler extends NamespaceHandlerSupport {
 	public void init() {
 		registerBeanDefinitionParser("transaction-manager", new TransactionManagerParser());
 		registerBeanDefinitionParser("data-source", new DataSourceParser());
+		registerBeanDefinitionParser("last-resource-data-source", new LastResourceDataSourceParser());
 		registerBeanDefinitionParser("connection-factory", new ConnectionFactoryParser());
 	}
 
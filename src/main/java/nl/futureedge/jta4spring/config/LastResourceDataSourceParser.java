@@ -0,0 +1,26 @@
+package nl.futureedge.jta4spring.config;
+
+import org.springframework.beans.factory.config.BeanDefinition;
+import org.springframework.beans.factory.support.AbstractBeanDefinition;
+import org.springframework.beans.factory.support.BeanDefinitionBuilder;
+import org.springframework.beans.factory.xml.AbstractBeanDefinitionParser;
+import org.springframework.beans.factory.xml.ParserContext;
+import org.w3c.dom.Element;
+
+import nl.futureedge.jta4spring.jdbc.LastResourceDataSourceWrapper;
+
+/**
+ * {@link org.springframework.beans.factory.xml.BeanDefinitionParser} that
+ * parses an {@code last-resource-data-source} element and creates a {@link BeanDefinition}
+ * for an {@link LastResourceDataSourceWrapper}.
+ */
+public class LastResourceDataSourceParser extends AbstractBeanDefinitionParser {
+
+	@Override
+	protected AbstractBeanDefinition parseInternal(final Element element, final ParserContext parserContext) {
+		// LAST-RESOURCE-DATA-SOURCE
+		final BeanDefinitionBuilder builder = BeanDefinitionBuilder.rootBeanDefinition(LastResourceDataSourceWrapper.class);
+		builder.addPropertyReference("dataSource", element.getAttribute("data-source"));
+		return builder.getBeanDefinition();
+	}
+}
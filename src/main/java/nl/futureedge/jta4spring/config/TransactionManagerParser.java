@@ -1,14 +1,19 @@
 package nl.futureedge.jta4spring.config;
 
+import java.io.File;
+
 import org.springframework.beans.factory.config.BeanDefinition;
 import org.springframework.beans.factory.support.AbstractBeanDefinition;
 import org.springframework.beans.factory.support.BeanDefinitionBuilder;
 import org.springframework.beans.factory.xml.AbstractBeanDefinitionParser;
 import org.springframework.beans.factory.xml.ParserContext;
+import org.springframework.util.StringUtils;
 import org.w3c.dom.Element;
 
 import nl.futureedge.jta4spring.JtaMonitor;
 import nl.futureedge.jta4spring.JtaTransactionManager;
+import nl.futureedge.jta4spring.xa.FileTransactionLog;
+import nl.futureedge.jta4spring.xa.MappedTransactionLog;
 
 
 /**
@@ -23,6 +28,27 @@ public class TransactionManagerParser extends AbstractBeanDefinitionParser {
 		// JTA-MONITOR
 		final BeanDefinitionBuilder jtaMonitorBuilder = BeanDefinitionBuilder.rootBeanDefinition(JtaMonitor.class);
 		jtaMonitorBuilder.addPropertyValue("uniqueName", element.getAttribute("unique-name"));
+		if(StringUtils.hasText(element.getAttribute("parallel-completion"))) {
+			jtaMonitorBuilder.addPropertyValue("parallelCompletion", element.getAttribute("parallel-completion"));
+		}
+		if(StringUtils.hasText(element.getAttribute("rollback-on-timeout"))) {
+			jtaMonitorBuilder.addPropertyValue("rollbackOnTimeout", element.getAttribute("rollback-on-timeout"));
+		}
+		if(StringUtils.hasText(element.getAttribute("recovery-interval"))) {
+			jtaMonitorBuilder.addPropertyValue("recoveryInterval", element.getAttribute("recovery-interval"));
+		}
+		if(StringUtils.hasText(element.getAttribute("recovery-max-interval"))) {
+			jtaMonitorBuilder.addPropertyValue("recoveryMaxInterval", element.getAttribute("recovery-max-interval"));
+		}
+		if(StringUtils.hasText(element.getAttribute("shutdown-timeout"))) {
+			jtaMonitorBuilder.addPropertyValue("shutdownTimeout", element.getAttribute("shutdown-timeout"));
+		}
+		if(StringUtils.hasText(element.getAttribute("jmx-enabled"))) {
+			jtaMonitorBuilder.addPropertyValue("jmxEnabled", element.getAttribute("jmx-enabled"));
+		}
+		if(StringUtils.hasText(element.getAttribute("log-directory"))) {
+			jtaMonitorBuilder.addPropertyValue("transactionLog", parseTransactionLog(element));
+		}
 		final BeanDefinition jtaMonitor = jtaMonitorBuilder.getBeanDefinition();
 		parserContext.getRegistry().registerBeanDefinition("spring4jtaMonitor", jtaMonitor);
 
@@ -36,4 +62,20 @@ public class TransactionManagerParser extends AbstractBeanDefinitionParser {
 		springJtaTransactionManagerBuilder.addPropertyReference("transactionManager", "spring4jtaTransactionManager");
 		return springJtaTransactionManagerBuilder.getBeanDefinition();
 	}
+
+	private static BeanDefinition parseTransactionLog(final Element element) {
+		final File logDirectory = new File(element.getAttribute("log-directory"));
+		final String uniqueName = element.getAttribute("unique-name");
+
+		final BeanDefinitionBuilder transactionLogBuilder;
+		if("mapped".equals(element.getAttribute("log-type"))) {
+			transactionLogBuilder = BeanDefinitionBuilder.rootBeanDefinition(MappedTransactionLog.class);
+			transactionLogBuilder.addConstructorArgValue(logDirectory);
+			transactionLogBuilder.addConstructorArgValue(uniqueName);
+		} else {
+			transactionLogBuilder = BeanDefinitionBuilder.rootBeanDefinition(FileTransactionLog.class);
+			transactionLogBuilder.addConstructorArgValue(new File(logDirectory, uniqueName + ".log"));
+		}
+		return transactionLogBuilder.getBeanDefinition();
+	}
 }
@@ -0,0 +1,461 @@
+package nl.futureedge.jta4spring.jdbc;
+
+import java.sql.Array;
+import java.sql.Blob;
+import java.sql.CallableStatement;
+import java.sql.Clob;
+import java.sql.Connection;
+import java.sql.DatabaseMetaData;
+import java.sql.NClob;
+import java.sql.PreparedStatement;
+import java.sql.SQLClientInfoException;
+import java.sql.SQLException;
+import java.sql.SQLWarning;
+import java.sql.SQLXML;
+import java.sql.Savepoint;
+import java.sql.Statement;
+import java.sql.Struct;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.Executor;
+
+import javax.transaction.Status;
+import javax.transaction.Synchronization;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import nl.futureedge.jta4spring.JtaTransactionManager;
+
+/**
+ * Base connection adapter for connections that participate in a transaction; delegates all calls to the connection.
+ *
+ * The connection can be reopened while it is bound to the transaction; it is only closed when each requester has closed
+ * it and is kept until completion of the transaction. Subclasses enlist the connection in the transaction (see
+ * {@link #enlistResource()}, called before each call that does work on the connection) and release the connection when
+ * it is closed (see {@link #release()}).
+ */
+abstract class AbstractConnectionAdapter implements Connection, Synchronization {
+
+	private static final Logger LOGGER = LoggerFactory.getLogger(AbstractConnectionAdapter.class);
+
+	/** Connection to delegate to. */
+	protected final Connection connection;
+	private final JtaTransactionManager transactionManager;
+
+	private boolean closeAfterCompletion=false;
+	private int openCount=1;
+	private boolean stateChanged=false;
+
+	/**
+	 * Constructor.
+	 * @param connection connection
+	 * @param transactionManager transaction manager
+	 */
+	AbstractConnectionAdapter(final Connection connection, final JtaTransactionManager transactionManager) {
+		this.connection=connection;
+		this.transactionManager=transactionManager;
+	}
+
+	/**
+	 * Reopen the connection; used when the connection bound to the transaction is requested again.
+	 * The connection is only closed when each requester has closed it.
+	 */
+	void reopen() {
+		openCount++;
+		closeAfterCompletion = false;
+	}
+
+	/**
+	 * Enlist the connection in the transaction (if not already enlisted); called before each call that does work on the
+	 * connection (creating a statement, savepoint or large object).
+	 * @throws SQLException if the connection could not be enlisted
+	 */
+	protected abstract void enlistResource() throws SQLException;
+
+	/**
+	 * Release the connection; called when the connection is closed outside a transaction or after completion of the
+	 * transaction.
+	 */
+	protected abstract void release();
+
+	@Override
+	public void beforeCompletion() {
+		// Nothing
+	}
+
+	@Override
+	public void afterCompletion(final int status) {
+		if(closeAfterCompletion) {
+			LOGGER.debug("Closing connection after completion of transaction");
+			release();
+		}
+	}
+
+	/**
+	 * @return true, if the state of the connection (read-only, transaction isolation, catalog, schema, holdability or
+	 *         type map) has been changed through this adapter
+	 */
+	protected final boolean isStateChanged() {
+		return stateChanged;
+	}
+
+	/**
+	 * Check the connection is not closed.
+	 * @throws SQLException if the connection is closed
+	 */
+	protected final void checkNotClosed() throws SQLException {
+		if(closeAfterCompletion || connection.isClosed()) {
+			throw new SQLException("Connection is closed");
+		}
+	}
+
+	private void enlist() throws SQLException {
+		checkNotClosed();
+		enlistResource();
+	}
+
+	@Override
+	public boolean isWrapperFor(final Class<?> iface) throws SQLException {
+		LOGGER.trace("isWrapperFor(iface={})", iface);
+		return false;
+	}
+
+	@Override
+	public <T> T unwrap(final Class<T> iface) throws SQLException {
+		LOGGER.trace("unwrap(iface={})", iface);
+		throw new SQLException("unwrap not supported");
+	}
+
+	@Override
+	public void abort(final Executor executor) throws SQLException {
+		connection.abort(executor);
+
+	}
+
+	@Override
+	public void clearWarnings() throws SQLException {
+		checkNotClosed();
+		connection.clearWarnings();
+	}
+
+	@Override
+	public void close() throws SQLException {
+		if(closeAfterCompletion || openCount == 0) {
+			return;
+		}
+		openCount--;
+		if(openCount > 0) {
+			LOGGER.debug("Connection is still in use within the transaction");
+			return;
+		}
+		if(Status.STATUS_NO_TRANSACTION == transactionManager.getStatus()) {
+			closeAfterCompletion = true;
+			release();
+		} else {
+			LOGGER.debug("Registering connection as closed; keeping until completion of transaction");
+			closeAfterCompletion = true;
+		}
+	}
+
+	@Override
+	public void commit() throws SQLException {
+		checkNotClosed();
+		connection.commit();
+	}
+
+	@Override
+	public Array createArrayOf(final String typeName, final Object[] elements) throws SQLException {
+		enlist();
+		return	connection.createArrayOf(typeName, elements);
+	}
+
+	@Override
+	public Blob createBlob() throws SQLException {
+		enlist();
+		return connection.createBlob();
+	}
+
+	@Override
+	public Clob createClob() throws SQLException {
+		enlist();
+		return connection.createClob();
+	}
+
+	@Override
+	public NClob createNClob() throws SQLException {
+		enlist();
+		return connection.createNClob();
+	}
+
+	@Override
+	public SQLXML createSQLXML() throws SQLException {
+		enlist();
+		return connection.createSQLXML();
+	}
+
+	@Override
+	public Statement createStatement() throws SQLException {
+		enlist();
+		return connection.createStatement();
+	}
+
+	@Override
+	public Statement createStatement(final int resultSetType, final int resultSetConcurrency) throws SQLException {
+		enlist();
+		return connection.createStatement(resultSetType, resultSetConcurrency);
+	}
+
+	@Override
+	public Statement createStatement(final int resultSetType, final int resultSetConcurrency, final int resultSetHoldability)
+			throws SQLException {
+		enlist();
+		return connection.createStatement(resultSetType, resultSetConcurrency, resultSetHoldability);
+	}
+
+	@Override
+	public Struct createStruct(final String typeName, final Object[] attributes) throws SQLException {
+		enlist();
+		return connection.createStruct(typeName, attributes);
+	}
+
+	@Override
+	public boolean getAutoCommit() throws SQLException {
+		checkNotClosed();
+		return connection.getAutoCommit();
+	}
+
+	@Override
+	public String getCatalog() throws SQLException {
+		checkNotClosed();
+		return connection.getCatalog();
+	}
+
+	@Override
+	public Properties getClientInfo() throws SQLException {
+		checkNotClosed();
+		return connection.getClientInfo();
+	}
+
+	@Override
+	public String getClientInfo(final String name) throws SQLException {
+		checkNotClosed();
+		return connection.getClientInfo(name);
+	}
+
+	@Override
+	public int getHoldability() throws SQLException {
+		checkNotClosed();
+		return connection.getHoldability();
+	}
+
+	@Override
+	public DatabaseMetaData getMetaData() throws SQLException {
+		checkNotClosed();
+		return connection.getMetaData();
+	}
+
+	@Override
+	public int getNetworkTimeout() throws SQLException {
+		checkNotClosed();
+		return connection.getNetworkTimeout();
+	}
+
+	@Override
+	public String getSchema() throws SQLException {
+		checkNotClosed();
+		return connection.getSchema();
+	}
+
+	@Override
+	public int getTransactionIsolation() throws SQLException {
+		checkNotClosed();
+		return connection.getTransactionIsolation();
+	}
+
+	@Override
+	public Map<String, Class<?>> getTypeMap() throws SQLException {
+		checkNotClosed();
+		return connection.getTypeMap();
+	}
+
+	@Override
+	public SQLWarning getWarnings() throws SQLException {
+		checkNotClosed();
+		return connection.getWarnings();
+	}
+
+	@Override
+	public boolean isClosed() throws SQLException {
+		return closeAfterCompletion || connection.isClosed();
+	}
+
+	@Override
+	public boolean isReadOnly() throws SQLException {
+		checkNotClosed();
+		return connection.isReadOnly();
+	}
+
+	@Override
+	public boolean isValid(final int timeout) throws SQLException {
+		checkNotClosed();
+		return connection.isValid(timeout);
+	}
+
+	@Override
+	public String nativeSQL(final String sql) throws SQLException {
+		checkNotClosed();
+		return connection.nativeSQL(sql);
+	}
+
+	@Override
+	public CallableStatement prepareCall(final String sql) throws SQLException {
+		enlist();
+		return connection.prepareCall(sql);
+	}
+
+	@Override
+	public CallableStatement prepareCall(final String sql, final int resultSetType, final int resultSetConcurrency) throws SQLException {
+		enlist();
+		return connection.prepareCall(sql, resultSetType, resultSetConcurrency);
+	}
+
+	@Override
+	public CallableStatement prepareCall(final String sql, final int resultSetType, final int resultSetConcurrency,
+			final int resultSetHoldability) throws SQLException {
+		enlist();
+		return connection.prepareCall(sql, resultSetType, resultSetConcurrency, resultSetHoldability);
+	}
+
+	@Override
+	public PreparedStatement prepareStatement(final String sql) throws SQLException {
+		enlist();
+		return connection.prepareStatement(sql);
+	}
+
+	@Override
+	public PreparedStatement prepareStatement(final String sql, final int autoGeneratedKeys) throws SQLException {
+		enlist();
+		return connection.prepareStatement(sql, autoGeneratedKeys);
+	}
+
+	@Override
+	public PreparedStatement prepareStatement(final String sql, final int[] columnIndexes) throws SQLException {
+		enlist();
+		return connection.prepareStatement(sql, columnIndexes);
+	}
+
+	@Override
+	public PreparedStatement prepareStatement(final String sql, final String[] columnNames) throws SQLException {
+		enlist();
+		return connection.prepareStatement(sql, columnNames);
+	}
+
+	@Override
+	public PreparedStatement prepareStatement(final String sql, final int resultSetType, final int resultSetConcurrency)
+			throws SQLException {
+		enlist();
+		return connection.prepareStatement(sql, resultSetType, resultSetConcurrency);
+	}
+
+	@Override
+	public PreparedStatement prepareStatement(final String sql, final int resultSetType, final int resultSetConcurrency,
+			final int resultSetHoldability) throws SQLException {
+		enlist();
+		return connection.prepareStatement(sql, resultSetType, resultSetConcurrency, resultSetHoldability);
+	}
+
+	@Override
+	public void releaseSavepoint(final Savepoint savepoint) throws SQLException {
+		enlist();
+		connection.releaseSavepoint(savepoint);
+	}
+
+	@Override
+	public void rollback() throws SQLException {
+		checkNotClosed();
+		connection.rollback();
+	}
+
+	@Override
+	public void rollback(final Savepoint savepoint) throws SQLException {
+		enlist();
+		connection.rollback(savepoint);
+	}
+
+	@Override
+	public void setAutoCommit(final boolean autoCommit) throws SQLException {
+		checkNotClosed();
+		connection.setAutoCommit(autoCommit);
+	}
+
+	@Override
+	public void setCatalog(final String catalog) throws SQLException {
+		checkNotClosed();
+		stateChanged = true;
+		connection.setCatalog(catalog);
+	}
+
+	@Override
+	public void setClientInfo(final Properties properties) throws SQLClientInfoException {
+		connection.setClientInfo(properties);
+	}
+
+	@Override
+	public void setClientInfo(final String name, final String value) throws SQLClientInfoException {
+		connection.setClientInfo(name, value);
+	}
+
+	@Override
+	public void setHoldability(final int holdability) throws SQLException {
+		checkNotClosed();
+		stateChanged = true;
+		connection.setHoldability(holdability);
+	}
+
+	@Override
+	public void setNetworkTimeout(final Executor executor, final int milliseconds) throws SQLException {
+		checkNotClosed();
+		connection.setNetworkTimeout(executor, milliseconds);
+	}
+
+	@Override
+	public void setReadOnly(final boolean readOnly) throws SQLException {
+		checkNotClosed();
+		stateChanged = true;
+		connection.setReadOnly(readOnly);
+	}
+
+	@Override
+	public Savepoint setSavepoint() throws SQLException {
+		enlist();
+		return connection.setSavepoint();
+	}
+
+	@Override
+	public Savepoint setSavepoint(final String name) throws SQLException {
+		enlist();
+		return connection.setSavepoint(name);
+	}
+
+	@Override
+	public void setSchema(final String schema) throws SQLException {
+		checkNotClosed();
+		stateChanged = true;
+		connection.setSchema(schema);
+	}
+
+	@Override
+	public void setTransactionIsolation(final int level) throws SQLException {
+		checkNotClosed();
+		stateChanged = true;
+		connection.setTransactionIsolation(level);
+	}
+
+	@Override
+	public void setTypeMap(final Map<String, Class<?>> map) throws SQLException {
+		checkNotClosed();
+		stateChanged = true;
+		connection.setTypeMap(map);
+	}
+}
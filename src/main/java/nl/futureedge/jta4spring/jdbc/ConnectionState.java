@@ -0,0 +1,84 @@
+package nl.futureedge.jta4spring.jdbc;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.sql.SQLFeatureNotSupportedException;
+import java.util.Map;
+import java.util.Objects;
+
+/**
+ * State of a connection that can be changed by the application (read-only, transaction isolation, catalog, schema,
+ * holdability and type map).
+ *
+ * Attributes that are not supported by the driver are not captured and not restored.
+ */
+final class ConnectionState {
+
+	private final boolean readOnly;
+	private final int transactionIsolation;
+	private final String catalog;
+	private final boolean schemaSupported;
+	private final String schema;
+	private final int holdability;
+	private final Map<String, Class<?>> typeMap;
+
+	private ConnectionState(final Connection connection) throws SQLException {
+		readOnly = connection.isReadOnly();
+		transactionIsolation = connection.getTransactionIsolation();
+		catalog = connection.getCatalog();
+		String currentSchema = null;
+		boolean supported = true;
+		try {
+			currentSchema = connection.getSchema();
+		} catch (final SQLFeatureNotSupportedException | AbstractMethodError e) {
+			// Driver does not support schemas (or is older than JDBC 4.1)
+			supported = false;
+		}
+		schemaSupported = supported;
+		schema = currentSchema;
+		holdability = connection.getHoldability();
+		Map<String, Class<?>> currentTypeMap = null;
+		try {
+			currentTypeMap = connection.getTypeMap();
+		} catch (final SQLFeatureNotSupportedException e) {
+			// Driver does not support type maps
+		}
+		typeMap = currentTypeMap;
+	}
+
+	/**
+	 * Capture the state of a connection.
+	 * @param connection connection
+	 * @return state
+	 * @throws SQLException if the state could not be read
+	 */
+	static ConnectionState capture(final Connection connection) throws SQLException {
+		return new ConnectionState(connection);
+	}
+
+	/**
+	 * Restore the captured state on a connection; only attributes that differ are set.
+	 * @param connection connection
+	 * @throws SQLException if the state could not be restored
+	 */
+	void restore(final Connection connection) throws SQLException {
+		if(connection.isReadOnly() != readOnly) {
+			connection.setReadOnly(readOnly);
+		}
+		if(connection.getTransactionIsolation() != transactionIsolation) {
+			connection.setTransactionIsolation(transactionIsolation);
+		}
+		if(!Objects.equals(connection.getCatalog(), catalog)) {
+			connection.setCatalog(catalog);
+		}
+		if(schemaSupported && !Objects.equals(connection.getSchema(), schema)) {
+			connection.setSchema(schema);
+		}
+		if(connection.getHoldability() != holdability) {
+			connection.setHoldability(holdability);
+		}
+		if(typeMap != null && !typeMap.equals(connection.getTypeMap())) {
+			connection.setTypeMap(typeMap);
+		}
+	}
+}
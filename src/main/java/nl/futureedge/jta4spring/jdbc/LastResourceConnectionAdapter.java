@@ -0,0 +1,125 @@
+package nl.futureedge.jta4spring.jdbc;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+
+import javax.transaction.xa.XAException;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import nl.futureedge.jta4spring.JtaTransactionManager;
+import nl.futureedge.jta4spring.xa.LastResource;
+
+/**
+ * Connection adapter for a connection (of a data source without xa support) that participates in the transaction as
+ * last resource; delegates all calls to the connection.
+ *
+ * The connection is used with auto commit disabled and is committed or rolled back by the transaction manager (see
+ * {@link #getLastResource()}); the application can not commit, rollback or enable auto commit.
+ */
+public class LastResourceConnectionAdapter extends AbstractConnectionAdapter {
+
+	private static final Logger LOGGER = LoggerFactory.getLogger(LastResourceConnectionAdapter.class);
+
+	/** SQL state class of connection exceptions; the outcome of a commit that fails with a connection exception is unknown. */
+	private static final String CONNECTION_EXCEPTION_CLASS = "08";
+
+	private final LastResource lastResource = new ConnectionLastResource();
+
+	/**
+	 * Constructor; disables auto commit on the connection.
+	 * @param connection connection
+	 * @param transactionManager transaction manager
+	 * @throws SQLException if auto commit could not be disabled
+	 */
+	LastResourceConnectionAdapter(final Connection connection, final JtaTransactionManager transactionManager) throws SQLException {
+		super(connection, transactionManager);
+		connection.setAutoCommit(false);
+	}
+
+	/**
+	 * @return the last resource that commits or rolls back the connection
+	 */
+	LastResource getLastResource() {
+		return lastResource;
+	}
+
+	@Override
+	protected void enlistResource() {
+		// Nothing; the last resource is registered when the connection is bound to the transaction
+	}
+
+	@Override
+	protected void release() {
+		try {
+			connection.setAutoCommit(true);
+		} catch (final SQLException e) {
+			LOGGER.warn("Could not restore auto commit of connection", e);
+		}
+		try {
+			connection.close();
+		} catch (final SQLException e) {
+			LOGGER.warn("Could not close connection", e);
+		}
+	}
+
+	/**
+	 * Commits or rolls back the local transaction of the connection.
+	 */
+	private final class ConnectionLastResource implements LastResource {
+
+		@Override
+		public void commit() throws XAException {
+			try {
+				connection.commit();
+			} catch (final SQLException e) {
+				final boolean outcomeUnknown = e.getSQLState() != null && e.getSQLState().startsWith(CONNECTION_EXCEPTION_CLASS);
+				final XAException xaException = new XAException(outcomeUnknown ? XAException.XAER_RMFAIL : XAException.XA_RBROLLBACK);
+				xaException.initCause(e);
+				throw xaException;
+			}
+		}
+
+		@Override
+		public void rollback() throws XAException {
+			try {
+				connection.rollback();
+			} catch (final SQLException e) {
+				final XAException xaException = new XAException(XAException.XAER_RMERR);
+				xaException.initCause(e);
+				throw xaException;
+			}
+		}
+	}
+
+	/* ***************************** */
+	/* *** TRANSACTION CONTROL ***** */
+	/* ***************************** */
+
+	@Override
+	public void commit() throws SQLException {
+		checkNotClosed();
+		throw new SQLException("Commit not allowed; the connection is committed by the transaction manager");
+	}
+
+	@Override
+	public void rollback() throws SQLException {
+		checkNotClosed();
+		throw new SQLException("Rollback not allowed; the connection is rolled back by the transaction manager");
+	}
+
+	@Override
+	public boolean getAutoCommit() throws SQLException {
+		checkNotClosed();
+		return false;
+	}
+
+	@Override
+	public void setAutoCommit(final boolean autoCommit) throws SQLException {
+		checkNotClosed();
+		if(autoCommit) {
+			throw new SQLException("Auto commit not allowed; the connection is committed by the transaction manager");
+		}
+	}
+}
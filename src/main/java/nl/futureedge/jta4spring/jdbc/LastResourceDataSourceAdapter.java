@@ -0,0 +1,135 @@
+package nl.futureedge.jta4spring.jdbc;
+
+import java.io.PrintWriter;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.sql.SQLFeatureNotSupportedException;
+
+import javax.sql.DataSource;
+import javax.transaction.RollbackException;
+import javax.transaction.SystemException;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import nl.futureedge.jta4spring.JtaTransaction;
+import nl.futureedge.jta4spring.JtaTransactionManager;
+
+/**
+ * DataSource adapter for a data source without xa support; delegates all calls to the wrapped data source.
+ *
+ * Override the {@link #getConnection()} and {@link #getConnection(String, String)} methods to enlist the connection as
+ * last resource of the transaction (see {@link nl.futureedge.jta4spring.xa.LastResource}). Connections obtained via
+ * {@link #getConnection()} are bound to the transaction; subsequent calls within the same transaction return the bound
+ * connection.
+ */
+class LastResourceDataSourceAdapter implements DataSource {
+
+	private static final Logger LOGGER = LoggerFactory.getLogger(LastResourceDataSourceAdapter.class);
+
+	private final String resourceName;
+	private final DataSource dataSource;
+	private final JtaTransactionManager transactionManager;
+
+	/**
+	 * Constructor.
+	 * @param resourceName name of the resource
+	 * @param dataSource data source
+	 * @param transactionManager transaction manager
+	 */
+	LastResourceDataSourceAdapter(final String resourceName, final DataSource dataSource, final JtaTransactionManager transactionManager) {
+		this.resourceName=resourceName;
+		this.dataSource=dataSource;
+		this.transactionManager=transactionManager;
+	}
+
+	@Override
+	public PrintWriter getLogWriter() throws SQLException {
+		LOGGER.trace("getLogWriter()");
+		return dataSource.getLogWriter();
+	}
+
+	@Override
+	public int getLoginTimeout() throws SQLException {
+		LOGGER.trace("getLoginTimeout()");
+		return dataSource.getLoginTimeout();
+	}
+
+	@Override
+	public java.util.logging.Logger getParentLogger() throws SQLFeatureNotSupportedException {
+		LOGGER.trace("getParentLogger()");
+		return dataSource.getParentLogger();
+	}
+
+	@Override
+	public void setLogWriter(final PrintWriter out) throws SQLException {
+		LOGGER.trace("setLogWriter(out={})", out);
+		dataSource.setLogWriter(out);
+	}
+
+	@Override
+	public void setLoginTimeout(final int seconds) throws SQLException {
+		LOGGER.trace("setLoginTimeout(seconds={})", seconds);
+		dataSource.setLoginTimeout(seconds);
+	}
+
+	@Override
+	public boolean isWrapperFor(final Class<?> iface) throws SQLException {
+		LOGGER.trace("isWrapperFor(iface={})", iface);
+		return false;
+	}
+
+	@Override
+	public <T> T unwrap(final Class<T> iface) throws SQLException {
+		LOGGER.trace("unwrap(iface={})", iface);
+		throw new SQLException("unwrap not supported");
+	}
+
+	@Override
+	public Connection getConnection() throws SQLException {
+		LOGGER.trace("getConnection()");
+		final JtaTransaction transaction = getTransaction();
+		final LastResourceConnectionAdapter boundConnection = (LastResourceConnectionAdapter) transaction.getResource(this);
+		if(boundConnection != null) {
+			LOGGER.debug("Reusing connection bound to transaction");
+			boundConnection.reopen();
+			return boundConnection;
+		}
+
+		final LastResourceConnectionAdapter result = adaptConnection(transaction, dataSource.getConnection());
+		transaction.putResource(this, result);
+		return result;
+	}
+
+	@Override
+	public Connection getConnection(final String username, final String password) throws SQLException {
+		LOGGER.trace("getConnection(username={}, password withheld)", username, password);
+		final JtaTransaction transaction = getTransaction();
+		return adaptConnection(transaction, dataSource.getConnection(username, password));
+	}
+
+	private JtaTransaction getTransaction() throws SQLException {
+		try {
+			return transactionManager.getTransaction();
+		} catch (IllegalStateException | SystemException e) {
+			LOGGER.debug("Could not get transaction", e);
+			throw new SQLException("Could not get transaction", e);
+		}
+	}
+
+	private LastResourceConnectionAdapter adaptConnection(final JtaTransaction transaction, final Connection connection) throws SQLException {
+		try {
+			final LastResourceConnectionAdapter result = new LastResourceConnectionAdapter(connection, transactionManager);
+			transaction.enlistLastResource(result.getLastResource(), resourceName);
+			transaction.registerSynchronization(result);
+			return result;
+		} catch (IllegalStateException | RollbackException | SystemException e) {
+			LOGGER.debug("Could not enlist connection as last resource to transaction", e);
+			connection.close();
+			throw new SQLException("Could not enlist connection as last resource to transaction", e);
+		} catch (final SQLException e) {
+			connection.close();
+			throw e;
+		}
+	}
+}
@@ -0,0 +1,75 @@
+package nl.futureedge.jta4spring.jdbc;
+
+import javax.sql.DataSource;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.BeanNameAware;
+import org.springframework.beans.factory.FactoryBean;
+import org.springframework.beans.factory.InitializingBean;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Required;
+
+import nl.futureedge.jta4spring.JtaTransactionManager;
+
+/**
+ * DataSource wrapper for a data source without xa support; Adapts the wrapped data source using a
+ * {@link LastResourceDataSourceAdapter}.
+ *
+ * Connections participate in the transaction as last resource: they are committed after all xa branches have been
+ * prepared and their outcome decides the outcome of the transaction. At most one last resource can participate in a
+ * transaction. Connections are not pooled; wrap a pooling data source.
+ */
+public class LastResourceDataSourceWrapper implements FactoryBean<DataSource>, InitializingBean, BeanNameAware {
+
+	private static final Logger LOGGER = LoggerFactory.getLogger(LastResourceDataSourceWrapper.class);
+
+	private String beanName;
+	private DataSource targetDataSource;
+	private JtaTransactionManager transactionManager;
+
+	private DataSource dataSource;
+
+	@Override
+	public void setBeanName(final String beanName) {
+		this.beanName = beanName;
+	}
+
+	@Required
+	public void setDataSource(final DataSource dataSource) {
+		LOGGER.trace("setDataSource(dataSource={})", dataSource);
+		targetDataSource = dataSource;
+	}
+
+	@Required
+	@Autowired
+	public void setTransactionManager(final JtaTransactionManager transactionManager) {
+		LOGGER.trace("setTransactionManager(transactionManager={})", transactionManager);
+		this.transactionManager = transactionManager;
+	}
+
+	@Override
+	public void afterPropertiesSet() throws Exception {
+		LOGGER.trace("afterPropertiesSet()");
+		dataSource = new LastResourceDataSourceAdapter(beanName, targetDataSource, transactionManager);
+	}
+
+	@Override
+	public DataSource getObject() throws Exception {
+		LOGGER.trace("getObject()");
+		return dataSource;
+	}
+
+	@Override
+	public Class<?> getObjectType() {
+		LOGGER.trace("getObjectType()");
+		return DataSource.class;
+	}
+
+	@Override
+	public boolean isSingleton() {
+		LOGGER.trace("isSingleton()");
+		return true;
+	}
+
+}
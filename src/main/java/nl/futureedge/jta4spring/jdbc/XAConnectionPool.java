@@ -0,0 +1,336 @@
+package nl.futureedge.jta4spring.jdbc;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.BlockingDeque;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingDeque;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+import javax.sql.ConnectionEvent;
+import javax.sql.ConnectionEventListener;
+import javax.sql.XAConnection;
+import javax.sql.XADataSource;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Pool of physical xa connections.
+ *
+ * Connections are borrowed for the duration of a transaction and released to the pool after completion of the
+ * transaction. Idle connections are evicted (down to the minimum pool size) and validated by a background task; a
+ * connection that has been idle for more than {@value #BORROW_VALIDATION_BYPASS_IN_MILLIS} ms is also validated when it
+ * is borrowed.
+ *
+ * The state of a physical connection (read-only, transaction isolation, catalog, schema, holdability and type map) is
+ * captured when the connection is created; drivers do not reliably reset this state when a logical connection is
+ * closed, so state changed by the application is restored (see {@link #reset(XAConnection, Connection)}) before the
+ * connection is released.
+ */
+final class XAConnectionPool implements ConnectionEventListener {
+
+	private static final Logger LOGGER = LoggerFactory.getLogger(XAConnectionPool.class);
+
+	private static final long POLL_INTERVAL_IN_MILLIS = 100;
+	private static final long BORROW_VALIDATION_BYPASS_IN_MILLIS = 500;
+
+	private final XADataSource xaDataSource;
+	private final int minPoolSize;
+	private final int maxPoolSize;
+	private final long maxIdleTimeInMillis;
+	private final long borrowTimeoutInMillis;
+	private final int validationTimeoutInSeconds;
+
+	private final Semaphore permits;
+	private final BlockingDeque<IdleConnection> idleConnections = new LinkedBlockingDeque<>();
+	private final Set<XAConnection> brokenConnections = ConcurrentHashMap.newKeySet();
+	private final Map<XAConnection, ConnectionState> initialStates = new ConcurrentHashMap<>();
+	private final ScheduledExecutorService maintenanceExecutor;
+
+	private volatile boolean closed = false;
+
+	/**
+	 * Constructor.
+	 * @param name name (used for the maintenance thread)
+	 * @param xaDataSource xa data source
+	 * @param minPoolSize minimum number of physical connections to keep
+	 * @param maxPoolSize maximum number of physical connections
+	 * @param maxIdleTimeInSeconds maximum time a connection above the minimum pool size may stay idle
+	 * @param validationIntervalInSeconds interval of the background eviction and validation task
+	 * @param borrowTimeoutInSeconds maximum time to wait for a connection when the pool is exhausted
+	 */
+	XAConnectionPool(final String name, final XADataSource xaDataSource, final int minPoolSize, final int maxPoolSize,
+			final int maxIdleTimeInSeconds, final int validationIntervalInSeconds, final int borrowTimeoutInSeconds) {
+		if(minPoolSize < 0 || maxPoolSize < 1 || minPoolSize > maxPoolSize) {
+			throw new IllegalArgumentException("Pool sizes should satisfy 0 <= minPoolSize <= maxPoolSize and maxPoolSize > 0");
+		}
+		this.xaDataSource = xaDataSource;
+		this.minPoolSize = minPoolSize;
+		this.maxPoolSize = maxPoolSize;
+		maxIdleTimeInMillis = TimeUnit.SECONDS.toMillis(maxIdleTimeInSeconds);
+		borrowTimeoutInMillis = TimeUnit.SECONDS.toMillis(borrowTimeoutInSeconds);
+		validationTimeoutInSeconds = Math.max(1, validationIntervalInSeconds / 2);
+		permits = new Semaphore(maxPoolSize);
+
+		maintenanceExecutor = Executors.newSingleThreadScheduledExecutor(runnable -> {
+			final Thread thread = new Thread(runnable, "jta4spring-pool-" + name);
+			thread.setDaemon(true);
+			return thread;
+		});
+		if(validationIntervalInSeconds > 0) {
+			maintenanceExecutor.scheduleWithFixedDelay(this::maintain, 0, validationIntervalInSeconds, TimeUnit.SECONDS);
+		} else {
+			maintenanceExecutor.execute(this::maintain);
+		}
+	}
+
+	/**
+	 * Borrow a connection from the pool; creates a new physical connection if no idle connection is available and
+	 * the maximum pool size has not been reached.
+	 * @return xa connection
+	 * @throws SQLException if no connection could be obtained within the borrow timeout
+	 */
+	XAConnection borrow() throws SQLException {
+		LOGGER.trace("borrow()");
+		final long deadline = System.currentTimeMillis() + borrowTimeoutInMillis;
+		while(!closed) {
+			final IdleConnection idleConnection = idleConnections.pollFirst();
+			if(idleConnection != null) {
+				if(validate(idleConnection)) {
+					LOGGER.debug("Borrowing idle connection {}", idleConnection.xaConnection);
+					return idleConnection.xaConnection;
+				}
+				continue;
+			}
+
+			if(permits.tryAcquire()) {
+				return create();
+			}
+
+			final long remaining = deadline - System.currentTimeMillis();
+			if(remaining <= 0) {
+				break;
+			}
+			try {
+				final IdleConnection waitedConnection = idleConnections.pollFirst(Math.min(remaining, POLL_INTERVAL_IN_MILLIS), TimeUnit.MILLISECONDS);
+				if(waitedConnection != null && validate(waitedConnection)) {
+					LOGGER.debug("Borrowing idle connection {} (after waiting)", waitedConnection.xaConnection);
+					return waitedConnection.xaConnection;
+				}
+			} catch (final InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new SQLException("Interrupted while waiting for a connection", e);
+			}
+		}
+
+		if(closed) {
+			throw new SQLException("Connection pool is closed");
+		}
+		LOGGER.debug("Could not obtain connection from pool within {} ms", borrowTimeoutInMillis);
+		throw new SQLException("Could not obtain connection from pool within " + borrowTimeoutInMillis + " ms");
+	}
+
+	/**
+	 * Restore the state of a connection to the state captured when the physical connection was created.
+	 * @param xaConnection xa connection
+	 * @param connection logical connection of the xa connection
+	 * @throws SQLException if the state could not be restored
+	 */
+	void reset(final XAConnection xaConnection, final Connection connection) throws SQLException {
+		LOGGER.trace("reset(xaConnection={})", xaConnection);
+		final ConnectionState initialState = initialStates.get(xaConnection);
+		if(initialState != null) {
+			initialState.restore(connection);
+		}
+	}
+
+	/**
+	 * Release a connection to the pool; broken connections are closed.
+	 * @param xaConnection xa connection
+	 */
+	void release(final XAConnection xaConnection) {
+		LOGGER.trace("release(xaConnection={})", xaConnection);
+		if(closed || brokenConnections.remove(xaConnection)) {
+			destroy(xaConnection);
+		} else {
+			idleConnections.offerFirst(new IdleConnection(xaConnection, System.currentTimeMillis()));
+		}
+	}
+
+	/**
+	 * Remove a connection from the pool and close it.
+	 * @param xaConnection xa connection
+	 */
+	void invalidate(final XAConnection xaConnection) {
+		LOGGER.trace("invalidate(xaConnection={})", xaConnection);
+		brokenConnections.remove(xaConnection);
+		destroy(xaConnection);
+	}
+
+	/**
+	 * Close the pool; closes all idle connections. Borrowed connections are closed when released.
+	 */
+	void close() {
+		LOGGER.trace("close()");
+		closed = true;
+		maintenanceExecutor.shutdownNow();
+
+		IdleConnection idleConnection;
+		while((idleConnection = idleConnections.pollFirst()) != null) {
+			destroy(idleConnection.xaConnection);
+		}
+	}
+
+	private XAConnection create() throws SQLException {
+		final XAConnection xaConnection;
+		try {
+			xaConnection = xaDataSource.getXAConnection();
+		} catch (final SQLException | RuntimeException e) {
+			permits.release();
+			throw e;
+		}
+		try (Connection connection = xaConnection.getConnection()) {
+			initialStates.put(xaConnection, ConnectionState.capture(connection));
+		} catch (final SQLException | RuntimeException e) {
+			destroy(xaConnection);
+			throw e;
+		}
+		xaConnection.addConnectionEventListener(this);
+		LOGGER.debug("Created new physical connection {}", xaConnection);
+		return xaConnection;
+	}
+
+	private void destroy(final XAConnection xaConnection) {
+		LOGGER.debug("Closing physical connection {}", xaConnection);
+		initialStates.remove(xaConnection);
+		xaConnection.removeConnectionEventListener(this);
+		try {
+			xaConnection.close();
+		} catch (final SQLException e) {
+			LOGGER.warn("Could not close physical connection", e);
+		} finally {
+			permits.release();
+		}
+	}
+
+	/* ***************************** */
+	/* *** MAINTENANCE ************* */
+	/* ***************************** */
+
+	private void maintain() {
+		LOGGER.trace("maintain()");
+		try {
+			evictAndValidate();
+			fill();
+		} catch (final RuntimeException e) {
+			LOGGER.warn("Unexpected exception during pool maintenance", e);
+		}
+	}
+
+	private void evictAndValidate() {
+		final long evictBefore = System.currentTimeMillis() - maxIdleTimeInMillis;
+		final List<IdleConnection> validConnections = new ArrayList<>();
+
+		// Least recently used connections are at the end of the deque
+		for(int remaining = idleConnections.size(); remaining > 0 && !closed; remaining--) {
+			final IdleConnection idleConnection = idleConnections.pollLast();
+			if(idleConnection == null) {
+				break;
+			}
+
+			if(idleConnection.idleSince < evictBefore && currentPoolSize() > minPoolSize) {
+				LOGGER.debug("Evicting idle connection {}", idleConnection.xaConnection);
+				destroy(idleConnection.xaConnection);
+			} else if(!isValid(idleConnection.xaConnection)) {
+				LOGGER.debug("Evicting invalid connection {}", idleConnection.xaConnection);
+				destroy(idleConnection.xaConnection);
+			} else {
+				validConnections.add(idleConnection);
+			}
+		}
+
+		// Return valid connections at the end of the deque, keeping their order
+		for(final IdleConnection validConnection : validConnections) {
+			if(closed) {
+				destroy(validConnection.xaConnection);
+			} else {
+				idleConnections.offerLast(validConnection);
+			}
+		}
+	}
+
+	private void fill() {
+		while(!closed && currentPoolSize() < minPoolSize && permits.tryAcquire()) {
+			try {
+				idleConnections.offerLast(new IdleConnection(create(), System.currentTimeMillis()));
+			} catch (final SQLException e) {
+				LOGGER.warn("Could not create connection to fill pool to minimum size", e);
+				return;
+			}
+		}
+	}
+
+	/**
+	 * Validate an idle connection that is borrowed (unless it has been released recently); an invalid connection is
+	 * closed.
+	 * @return true, if the connection can be borrowed
+	 */
+	private boolean validate(final IdleConnection idleConnection) {
+		if(System.currentTimeMillis() - idleConnection.idleSince < BORROW_VALIDATION_BYPASS_IN_MILLIS
+				|| isValid(idleConnection.xaConnection)) {
+			return true;
+		}
+		LOGGER.debug("Evicting invalid connection {} on borrow", idleConnection.xaConnection);
+		destroy(idleConnection.xaConnection);
+		return false;
+	}
+
+	private boolean isValid(final XAConnection xaConnection) {
+		try (Connection connection = xaConnection.getConnection()) {
+			return connection.isValid(validationTimeoutInSeconds);
+		} catch (final SQLException e) {
+			LOGGER.debug("Validation of connection failed", e);
+			return false;
+		}
+	}
+
+	private int currentPoolSize() {
+		return maxPoolSize - permits.availablePermits();
+	}
+
+	/* ***************************** */
+	/* *** CONNECTION EVENTS ******* */
+	/* ***************************** */
+
+	@Override
+	public void connectionClosed(final ConnectionEvent event) {
+		// Logical connection closed; the physical connection is released after completion of the transaction
+	}
+
+	@Override
+	public void connectionErrorOccurred(final ConnectionEvent event) {
+		LOGGER.debug("Connection error occurred; connection will be closed on release", event.getSQLException());
+		brokenConnections.add((XAConnection) event.getSource());
+	}
+
+	/**
+	 * Idle connection.
+	 */
+	private static final class IdleConnection {
+		private final XAConnection xaConnection;
+		private final long idleSince;
+
+		IdleConnection(final XAConnection xaConnection, final long idleSince) {
+			this.xaConnection = xaConnection;
+			this.idleSince = idleSince;
+		}
+	}
+}
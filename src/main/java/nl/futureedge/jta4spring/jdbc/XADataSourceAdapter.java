@@ -10,32 +10,54 @@ import javax.sql.XAConnection;
 import javax.sql.XADataSource;
 import javax.transaction.RollbackException;
 import javax.transaction.SystemException;
+import javax.transaction.xa.XAException;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
 
+import nl.futureedge.jta4spring.JtaTransaction;
 import nl.futureedge.jta4spring.JtaTransactionManager;
+import nl.futureedge.jta4spring.xa.RecoverableResource;
 
 /**
  * XADataSource adapter; delegates all calls to the wrapped xa datasource.
  *
  * Override the {@link #getConnection()} and {@link #getConnection(String, String)} methods to create a xa connection and enlist the XAResource to the transaction.
+ * Connections obtained via {@link #getConnection()} are borrowed from a {@link XAConnectionPool} and bound to the
+ * transaction; subsequent calls within the same transaction return the bound connection. Connections obtained with
+ * specific credentials are not pooled and not bound.
+ *
+ * When a read-only data source is configured, connections for read-only (Spring) transactions are obtained from the
+ * read-only data source; these connections are not enlisted in the transaction.
+ *
+ * Recovery borrows a connection from the pool.
  */
-class XADataSourceAdapter implements DataSource {
+class XADataSourceAdapter implements DataSource, RecoverableResource {
 
 	private static final Logger LOGGER = LoggerFactory.getLogger(XADataSourceAdapter.class);
 
+	private final String resourceName;
 	private final XADataSource xaDataSource;
 	private final JtaTransactionManager transactionManager;
+	private final XAConnectionPool pool;
+	private final DataSource readOnlyDataSource;
 
 	/**
 	 * Constructor.
+	 * @param resourceName name of the resource (used for recovery)
 	 * @param xaDataSource xa data source
 	 * @param transactionManager transaction manager
+	 * @param pool connection pool
+	 * @param readOnlyDataSource data source used for read-only transactions (null to use the xa data source)
 	 */
-	XADataSourceAdapter(final XADataSource xaDataSource, final JtaTransactionManager transactionManager) {
+	XADataSourceAdapter(final String resourceName, final XADataSource xaDataSource, final JtaTransactionManager transactionManager, final XAConnectionPool pool,
+			final DataSource readOnlyDataSource) {
+		this.resourceName=resourceName;
 		this.xaDataSource=xaDataSource;
 		this.transactionManager=transactionManager;
+		this.pool=pool;
+		this.readOnlyDataSource=readOnlyDataSource;
 	}
 
 	@Override
@@ -83,24 +105,60 @@ class XADataSourceAdapter implements DataSource {
 	@Override
 	public Connection getConnection() throws SQLException {
 		LOGGER.trace("getConnection()");
-		final XAConnection xaConnection = xaDataSource.getXAConnection();
-		enlistResource(xaConnection);
+		if(isReadOnly()) {
+			LOGGER.debug("Read-only transaction; using read-only data source");
+			return readOnlyDataSource.getConnection();
+		}
+		final JtaTransaction transaction = getTransaction();
+		final XAConnectionAdapter boundConnection = (XAConnectionAdapter) transaction.getResource(this);
+		if(boundConnection != null) {
+			LOGGER.debug("Reusing connection bound to transaction");
+			boundConnection.reopen();
+			return boundConnection;
+		}
 
-		return adaptConnection(xaConnection);
+		final XAConnection xaConnection = pool.borrow();
+		final XAConnectionAdapter result;
+		try {
+			result = adaptConnection(transaction, xaConnection, pool);
+		} catch (final SQLException e) {
+			pool.invalidate(xaConnection);
+			throw e;
+		}
+		transaction.putResource(this, result);
+		return result;
 	}
 
 	@Override
 	public Connection getConnection(final String username, final String password) throws SQLException {
 		LOGGER.trace("getConnection(username={}, password withheld)", username, password);
+		if(isReadOnly()) {
+			LOGGER.debug("Read-only transaction; using read-only data source");
+			return readOnlyDataSource.getConnection(username, password);
+		}
+		final JtaTransaction transaction = getTransaction();
 		final  XAConnection xaConnection  = xaDataSource.getXAConnection(username, password);
-		enlistResource(xaConnection);
-		return adaptConnection(xaConnection);
+		return adaptConnection(transaction, xaConnection, null);
+	}
+
+	private boolean isReadOnly() {
+		return readOnlyDataSource != null && TransactionSynchronizationManager.isCurrentTransactionReadOnly();
 	}
 
-	private Connection adaptConnection(final XAConnection xaConnection) throws SQLException {
-		final XAConnectionAdapter result = new XAConnectionAdapter(xaConnection, transactionManager);
+	private JtaTransaction getTransaction() throws SQLException {
 		try {
-			transactionManager.getTransaction().registerSynchronization(result);
+			return transactionManager.getTransaction();
+		} catch (IllegalStateException | SystemException e) {
+			LOGGER.debug("Could not get transaction", e);
+			throw new SQLException("Could not get transaction", e);
+		}
+	}
+
+	private XAConnectionAdapter adaptConnection(final JtaTransaction transaction, final XAConnection xaConnection, final XAConnectionPool connectionPool) throws SQLException {
+		// The xa resource is enlisted by the adapter on first use
+		final XAConnectionAdapter result = new XAConnectionAdapter(xaConnection, transactionManager, connectionPool, transaction, resourceName);
+		try {
+			transaction.registerSynchronization(result);
 		} catch (IllegalStateException | RollbackException | SystemException e) {
 			LOGGER.debug("Could not register connection adapter to transaction", e);
 			throw new SQLException("Could not register connection adapter to transaction", e);
@@ -109,13 +167,38 @@ class XADataSourceAdapter implements DataSource {
 		return result;
 	}
 
-	private void enlistResource(final XAConnection xaConnection) throws SQLException {
+	@Override
+	public String getName() {
+		return resourceName;
+	}
+
+	@Override
+	public void recover(final XAResourceCallback callback) throws XAException {
+		LOGGER.trace("recover(callback={})", callback);
+		final XAConnection xaConnection;
 		try {
-			transactionManager.getTransaction().enlistResource(xaConnection.getXAResource());
-		} catch (IllegalStateException | RollbackException | SystemException e) {
-			LOGGER.debug("Could not enlist connection to transaction", e);
-			throw new SQLException("Could not enlist connection to transaction", e);
+			xaConnection = pool.borrow();
+		} catch (final SQLException e) {
+			LOGGER.debug("Could not obtain connection for recovery", e);
+			final XAException xaException = new XAException(XAException.XAER_RMFAIL);
+			xaException.initCause(e);
+			throw xaException;
 		}
-	}
 
+		boolean released = false;
+		try {
+			callback.doWithXAResource(xaConnection.getXAResource());
+			pool.release(xaConnection);
+			released = true;
+		} catch (final SQLException e) {
+			LOGGER.debug("Could not obtain xa resource for recovery", e);
+			final XAException xaException = new XAException(XAException.XAER_RMFAIL);
+			xaException.initCause(e);
+			throw xaException;
+		} finally {
+			if(!released) {
+				pool.invalidate(xaConnection);
+			}
+		}
+	}
 }
@@ -5,6 +5,8 @@ import javax.sql.XADataSource;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.BeanNameAware;
+import org.springframework.beans.factory.DisposableBean;
 import org.springframework.beans.factory.FactoryBean;
 import org.springframework.beans.factory.InitializingBean;
 import org.springframework.beans.factory.annotation.Autowired;
@@ -12,14 +14,33 @@ import org.springframework.beans.factory.annotation.Required;
 
 import nl.futureedge.jta4spring.JtaTransactionManager;
 
-public class XADataSourceWrapper implements FactoryBean<DataSource>, InitializingBean {
+/**
+ * XADataSource wrapper; Adapts the wrapped xa data source using a {@link XADataSourceAdapter}.
+ *
+ * Physical connections are pooled; the pool can be configured using the pool properties.
+ */
+public class XADataSourceWrapper implements FactoryBean<DataSource>, InitializingBean, DisposableBean, BeanNameAware {
 
 	private static final Logger LOGGER = LoggerFactory.getLogger(XADataSourceWrapper.class);
 
+	private String beanName;
 	private XADataSource xaDataSource;
 	private JtaTransactionManager transactionManager;
+	private int minPoolSize = 0;
+	private int maxPoolSize = 10;
+	private int maxIdleTime = 300;
+	private int validationInterval = 60;
+	private int borrowTimeout = 30;
+	private DataSource readOnlyDataSource;
+
+	private XAConnectionPool pool;
 	private DataSource dataSource;
 
+	@Override
+	public void setBeanName(final String beanName) {
+		this.beanName = beanName;
+	}
+
 	@Required
 	public void setXaDataSource(final XADataSource xaDataSource) {
 		LOGGER.trace("setXaDataSource(xaDataSource={})", xaDataSource);
@@ -33,10 +54,76 @@ public class XADataSourceWrapper implements FactoryBean<DataSource>, Initializin
 		this.transactionManager = transactionManager;
 	}
 
+	/**
+	 * Set the minimum number of physical connections kept in the pool (default 0).
+	 * @param minPoolSize minimum pool size
+	 */
+	public void setMinPoolSize(final int minPoolSize) {
+		LOGGER.trace("setMinPoolSize(minPoolSize={})", minPoolSize);
+		this.minPoolSize = minPoolSize;
+	}
+
+	/**
+	 * Set the maximum number of physical connections in the pool (default 10).
+	 * @param maxPoolSize maximum pool size
+	 */
+	public void setMaxPoolSize(final int maxPoolSize) {
+		LOGGER.trace("setMaxPoolSize(maxPoolSize={})", maxPoolSize);
+		this.maxPoolSize = maxPoolSize;
+	}
+
+	/**
+	 * Set the time (in seconds) a connection may stay idle before it is evicted from the pool (default 300).
+	 * @param maxIdleTime maximum idle time in seconds
+	 */
+	public void setMaxIdleTime(final int maxIdleTime) {
+		LOGGER.trace("setMaxIdleTime(maxIdleTime={})", maxIdleTime);
+		this.maxIdleTime = maxIdleTime;
+	}
+
+	/**
+	 * Set the interval (in seconds) of the background eviction and validation of idle connections (default 60; 0 disables).
+	 * @param validationInterval validation interval in seconds
+	 */
+	public void setValidationInterval(final int validationInterval) {
+		LOGGER.trace("setValidationInterval(validationInterval={})", validationInterval);
+		this.validationInterval = validationInterval;
+	}
+
+	/**
+	 * Set the time (in seconds) to wait for a connection when the pool is exhausted (default 30).
+	 * @param borrowTimeout borrow timeout in seconds
+	 */
+	public void setBorrowTimeout(final int borrowTimeout) {
+		LOGGER.trace("setBorrowTimeout(borrowTimeout={})", borrowTimeout);
+		this.borrowTimeout = borrowTimeout;
+	}
+
+	/**
+	 * Set the data source used for read-only transactions (optional; for example a replica). Connections of this data
+	 * source are not enlisted in the transaction.
+	 * @param readOnlyDataSource read-only data source
+	 */
+	public void setReadOnlyDataSource(final DataSource readOnlyDataSource) {
+		LOGGER.trace("setReadOnlyDataSource(readOnlyDataSource={})", readOnlyDataSource);
+		this.readOnlyDataSource = readOnlyDataSource;
+	}
+
 	@Override
 	public void afterPropertiesSet() throws Exception {
 		LOGGER.trace("afterPropertiesSet()");
-		dataSource = new XADataSourceAdapter(xaDataSource, transactionManager);
+		pool = new XAConnectionPool(beanName, xaDataSource, minPoolSize, maxPoolSize, maxIdleTime, validationInterval, borrowTimeout);
+		final XADataSourceAdapter adapter = new XADataSourceAdapter(beanName, xaDataSource, transactionManager, pool, readOnlyDataSource);
+		transactionManager.registerRecoverableResource(adapter);
+		dataSource = adapter;
+	}
+
+	@Override
+	public void destroy() throws Exception {
+		LOGGER.trace("destroy()");
+		if(pool != null) {
+			pool.close();
+		}
 	}
 
 	@Override
@@ -0,0 +1,21 @@
+package nl.futureedge.jta4spring.jms;
+
+import java.util.List;
+
+import javax.jms.JMSException;
+import javax.jms.Message;
+
+/**
+ * Listener for a batch of messages received by a {@link BatchMessageReceiver}.
+ */
+@FunctionalInterface
+public interface BatchMessageListener {
+
+	/**
+	 * Process a batch of messages; called within the transaction that received the messages. Throwing an exception (or
+	 * marking the transaction for rollback) rolls back the transaction.
+	 * @param messages messages (at least one)
+	 * @throws JMSException on JMS errors
+	 */
+	void onMessages(List<Message> messages) throws JMSException;
+}
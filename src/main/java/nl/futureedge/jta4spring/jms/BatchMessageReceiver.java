@@ -0,0 +1,288 @@
+package nl.futureedge.jta4spring.jms;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+
+import javax.jms.Connection;
+import javax.jms.ConnectionFactory;
+import javax.jms.Destination;
+import javax.jms.JMSException;
+import javax.jms.Message;
+import javax.jms.MessageConsumer;
+import javax.jms.XASession;
+import javax.transaction.RollbackException;
+import javax.transaction.Status;
+import javax.transaction.SystemException;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import nl.futureedge.jta4spring.JtaTransactionManager;
+
+/**
+ * Receives messages in batches; a batch of messages is received and processed within one transaction, so the
+ * (two-phase) commit is paid per batch instead of per message.
+ *
+ * A batch contains at most the batch size number of messages and is received within the receive timeout. When the
+ * transaction of a batch is rolled back, the messages of the batch are received (by message id) and processed in
+ * separate transactions, so one failing message does not block the other messages of the batch. When the outcome of
+ * the commit is unknown or heuristic (part of the batch may be committed) the messages are not processed again.
+ *
+ * The receiver keeps one xa session (on a physical connection of the connection factory, outside the session pool) and
+ * one consumer per destination; the xa resource of the session is enlisted in the transaction of each batch. The
+ * session and consumers are closed (and created again for the next batch) when a transaction is rolled back, so
+ * messages prefetched by the consumer are returned to the broker. Close the receiver when it is no longer used.
+ *
+ * Use a connection factory of the connection factory wrapper; calls to the receiver are serialized (use a receiver per
+ * thread to receive concurrently).
+ */
+public final class BatchMessageReceiver {
+
+	private static final Logger LOGGER = LoggerFactory.getLogger(BatchMessageReceiver.class);
+
+	private final ConnectionFactory connectionFactory;
+	private final JtaTransactionManager transactionManager;
+
+	private int batchSize = 10;
+	private long receiveTimeout = 1000;
+
+	// Guarded by this
+	private XAConnectionAdapter connection;
+	private XASession session;
+	private final Map<Destination, MessageConsumer> consumers = new HashMap<>();
+	private boolean closed = false;
+
+	/**
+	 * Constructor.
+	 * @param connectionFactory connection factory (enlists transacted sessions)
+	 * @param transactionManager transaction manager
+	 */
+	public BatchMessageReceiver(final ConnectionFactory connectionFactory, final JtaTransactionManager transactionManager) {
+		this.connectionFactory = connectionFactory;
+		this.transactionManager = transactionManager;
+	}
+
+	/**
+	 * Set the maximum number of messages in a batch (default 10).
+	 * @param batchSize batch size
+	 */
+	public void setBatchSize(final int batchSize) {
+		LOGGER.trace("setBatchSize(batchSize={})", batchSize);
+		if(batchSize < 1) {
+			throw new IllegalArgumentException("Batch size should be greater than 0");
+		}
+		this.batchSize = batchSize;
+	}
+
+	/**
+	 * Set the maximum time to wait for the messages of a batch in milliseconds (default 1000).
+	 * @param receiveTimeout receive timeout
+	 */
+	public void setReceiveTimeout(final long receiveTimeout) {
+		LOGGER.trace("setReceiveTimeout(receiveTimeout={})", receiveTimeout);
+		if(receiveTimeout < 1) {
+			throw new IllegalArgumentException("Receive timeout should be greater than 0");
+		}
+		this.receiveTimeout = receiveTimeout;
+	}
+
+	/**
+	 * Receive a batch of messages and process them in one transaction; the listener is not called if no message is
+	 * received within the receive timeout.
+	 * @param destination destination to receive from
+	 * @param listener listener to process the messages
+	 * @return number of messages processed (and committed)
+	 * @throws JMSException if the receiver is closed, the transaction could not be started, no message could be received or
+	 *         the outcome of the transaction of the batch is unknown
+	 */
+	public synchronized int receive(final Destination destination, final BatchMessageListener listener) throws JMSException {
+		LOGGER.trace("receive(destination={},listener={})", destination, listener);
+		if(closed) {
+			throw new javax.jms.IllegalStateException("Receiver is closed");
+		}
+		final List<String> messageIds = new ArrayList<>();
+		try {
+			return execute(() -> receive(getConsumer(destination), batchSize, messageIds, listener));
+		} catch (final RollbackException e) {
+			if(messageIds.isEmpty()) {
+				final JMSException jmsException = new JMSException("Could not receive messages");
+				jmsException.initCause(e);
+				throw jmsException;
+			}
+			LOGGER.warn("Transaction of batch of {} message(s) rolled back; processing messages in separate transactions",
+					messageIds.size(), e);
+		} catch (final Exception e) {
+			// Part of the batch may be committed; processing the messages again could duplicate their work
+			final JMSException jmsException = new JMSException(messageIds.isEmpty() ? "Could not receive messages"
+					: "Outcome of transaction of batch of " + messageIds.size() + " message(s) is unknown; messages are not processed again");
+			jmsException.initCause(e);
+			throw jmsException;
+		}
+
+		int result = 0;
+		for(final String messageId : messageIds) {
+			final String messageSelector = "JMSMessageID = '" + messageId.replace("'", "''") + "'";
+			try {
+				result += execute(() -> {
+					final MessageConsumer consumer = getSession().createConsumer(destination, messageSelector);
+					try {
+						return receive(consumer, 1, new ArrayList<>(), listener);
+					} finally {
+						consumer.close();
+					}
+				});
+			} catch (final RollbackException e) {
+				LOGGER.warn("Transaction of message {} rolled back", messageId, e);
+			} catch (final Exception e) {
+				LOGGER.error("Outcome of transaction of message {} is unknown", messageId, e);
+			}
+		}
+		return result;
+	}
+
+	private int receive(final MessageConsumer consumer, final int maxMessages, final List<String> messageIds,
+			final BatchMessageListener listener) throws JMSException {
+		final List<Message> messages = new ArrayList<>(maxMessages);
+		final long deadline = System.currentTimeMillis() + receiveTimeout;
+		long remaining = receiveTimeout;
+		while(messages.size() < maxMessages && remaining > 0) {
+			final Message message = consumer.receive(remaining);
+			if(message == null) {
+				break;
+			}
+			messages.add(message);
+			messageIds.add(message.getJMSMessageID());
+			remaining = deadline - System.currentTimeMillis();
+		}
+
+		if(!messages.isEmpty()) {
+			LOGGER.debug("Processing batch of {} message(s)", messages.size());
+			listener.onMessages(messages);
+		}
+		return messages.size();
+	}
+
+	/**
+	 * Close the receiver; closes the consumers and the session.
+	 */
+	public synchronized void close() {
+		LOGGER.trace("close()");
+		closed = true;
+		closeSession();
+	}
+
+	/* ***************************** */
+	/* *** SESSION ***************** */
+	/* ***************************** */
+
+	private XASession getSession() throws JMSException {
+		if(session == null) {
+			final Connection newConnection = connectionFactory.createConnection();
+			if(!(newConnection instanceof XAConnectionAdapter)) {
+				newConnection.close();
+				throw new JMSException("Batch receiving requires a connection factory of the connection factory wrapper");
+			}
+			connection = (XAConnectionAdapter) newConnection;
+			connection.start();
+			session = connection.createXASession();
+		}
+		return session;
+	}
+
+	private MessageConsumer getConsumer(final Destination destination) throws JMSException {
+		final XASession currentSession = getSession();
+		MessageConsumer result = consumers.get(destination);
+		if(result == null) {
+			result = currentSession.createConsumer(destination);
+			consumers.put(destination, result);
+		}
+		return result;
+	}
+
+	private void enlistSession() throws JMSException {
+		try {
+			transactionManager.getTransaction().enlistResource(getSession().getXAResource(), connection.getResourceName());
+		} catch (IllegalStateException | RollbackException | SystemException e) {
+			final JMSException jmsException = new JMSException("Could not enlist session to transaction");
+			jmsException.initCause(e);
+			throw jmsException;
+		}
+	}
+
+	private void closeSession() {
+		for(final MessageConsumer consumer : consumers.values()) {
+			try {
+				consumer.close();
+			} catch (final JMSException e) {
+				LOGGER.warn("Could not close consumer", e);
+			}
+		}
+		consumers.clear();
+		if(session != null) {
+			try {
+				session.close();
+			} catch (final JMSException e) {
+				LOGGER.warn("Could not close session", e);
+			}
+			session = null;
+		}
+		if(connection != null) {
+			try {
+				connection.close();
+			} catch (final JMSException e) {
+				LOGGER.warn("Could not close connection", e);
+			}
+			connection = null;
+		}
+	}
+
+	/* ***************************** */
+	/* *** TRANSACTION ************* */
+	/* ***************************** */
+
+	/**
+	 * Execute work in a transaction.
+	 * @param work work
+	 * @return result of the work
+	 * @throws RollbackException if the transaction is rolled back (the work failed, the transaction is marked for rollback or the commit rolled back the transaction)
+	 * @throws Exception if the transaction could not be started or the outcome of the commit is unknown or heuristic
+	 */
+	private int execute(final Callable<Integer> work) throws Exception {
+		transactionManager.begin();
+		final int result;
+		try {
+			enlistSession();
+			result = work.call();
+		} catch (final Exception e) {
+			rollback();
+			closeSession();
+			final RollbackException rollbackException = new RollbackException("Transaction is rolled back");
+			rollbackException.initCause(e);
+			throw rollbackException;
+		}
+
+		try {
+			if(Status.STATUS_MARKED_ROLLBACK == transactionManager.getStatus()) {
+				rollback();
+				throw new RollbackException("Transaction is marked for rollback");
+			}
+			transactionManager.commit();
+		} catch (final Exception e) {
+			// Return messages prefetched by the consumers to the broker
+			closeSession();
+			throw e;
+		}
+		return result;
+	}
+
+	private void rollback() {
+		try {
+			transactionManager.rollback();
+		} catch (IllegalStateException | SecurityException | SystemException e) {
+			LOGGER.warn("Could not rollback transaction", e);
+		}
+	}
+}
@@ -0,0 +1,201 @@
+package nl.futureedge.jta4spring.jms;
+
+import javax.jms.Destination;
+import javax.jms.IllegalStateException;
+import javax.jms.JMSException;
+import javax.jms.Message;
+import javax.jms.MessageProducer;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * MessageProducer handed out by a pooled session for a cached producer; delegates all calls to the cached message
+ * producer (see {@link Entry}).
+ *
+ * Each call to create a producer returns its own instance, which can not be used after it has been closed. Closing the
+ * producer does not close the cached producer; the settings of the cached producer (delivery mode, priority, time to
+ * live, disable message id and timestamp) are restored when the last producer handed out for it is closed or when the
+ * session is closed. The cached producer is closed with its session.
+ */
+class CachedMessageProducer implements MessageProducer {
+
+	private static final Logger LOGGER = LoggerFactory.getLogger(CachedMessageProducer.class);
+
+	private final Entry entry;
+	private final int generation;
+	private boolean closed = false;
+
+	/**
+	 * Constructor; registers the producer as user of the cached producer.
+	 * @param entry cached producer
+	 */
+	CachedMessageProducer(final Entry entry) {
+		this.entry = entry;
+		generation = entry.acquire();
+	}
+
+	private synchronized MessageProducer getMessageProducer() throws JMSException {
+		if(closed || !entry.isCurrent(generation)) {
+			throw new IllegalStateException("Producer is closed");
+		}
+		return entry.messageProducer;
+	}
+
+	@Override
+	public synchronized void close() throws JMSException {
+		LOGGER.trace("close()");
+		if(closed) {
+			return;
+		}
+		closed = true;
+		entry.release(generation);
+	}
+
+	@Override
+	public void setDisableMessageID(final boolean value) throws JMSException {
+		getMessageProducer().setDisableMessageID(value);
+	}
+
+	@Override
+	public boolean getDisableMessageID() throws JMSException {
+		return getMessageProducer().getDisableMessageID();
+	}
+
+	@Override
+	public void setDisableMessageTimestamp(final boolean value) throws JMSException {
+		getMessageProducer().setDisableMessageTimestamp(value);
+	}
+
+	@Override
+	public boolean getDisableMessageTimestamp() throws JMSException {
+		return getMessageProducer().getDisableMessageTimestamp();
+	}
+
+	@Override
+	public void setDeliveryMode(final int deliveryMode) throws JMSException {
+		getMessageProducer().setDeliveryMode(deliveryMode);
+	}
+
+	@Override
+	public int getDeliveryMode() throws JMSException {
+		return getMessageProducer().getDeliveryMode();
+	}
+
+	@Override
+	public void setPriority(final int defaultPriority) throws JMSException {
+		getMessageProducer().setPriority(defaultPriority);
+	}
+
+	@Override
+	public int getPriority() throws JMSException {
+		return getMessageProducer().getPriority();
+	}
+
+	@Override
+	public void setTimeToLive(final long timeToLive) throws JMSException {
+		getMessageProducer().setTimeToLive(timeToLive);
+	}
+
+	@Override
+	public long getTimeToLive() throws JMSException {
+		return getMessageProducer().getTimeToLive();
+	}
+
+	@Override
+	public Destination getDestination() throws JMSException {
+		return getMessageProducer().getDestination();
+	}
+
+	@Override
+	public void send(final Message message) throws JMSException {
+		getMessageProducer().send(message);
+	}
+
+	@Override
+	public void send(final Message message, final int deliveryMode, final int priority, final long timeToLive) throws JMSException {
+		getMessageProducer().send(message, deliveryMode, priority, timeToLive);
+	}
+
+	@Override
+	public void send(final Destination destination, final Message message) throws JMSException {
+		getMessageProducer().send(destination, message);
+	}
+
+	@Override
+	public void send(final Destination destination, final Message message, final int deliveryMode, final int priority,
+			final long timeToLive) throws JMSException {
+		getMessageProducer().send(destination, message, deliveryMode, priority, timeToLive);
+	}
+
+	/**
+	 * Producer cached by a pooled session (per destination); records the settings of the producer when it is created.
+	 */
+	static final class Entry {
+
+		private final MessageProducer messageProducer;
+		private final int deliveryMode;
+		private final int priority;
+		private final long timeToLive;
+		private final boolean disableMessageID;
+		private final boolean disableMessageTimestamp;
+
+		// Guarded by this
+		private int generation = 0;
+		private int users = 0;
+
+		/**
+		 * Constructor; records the current settings of the producer.
+		 * @param messageProducer message producer
+		 * @throws JMSException if the settings of the producer could not be read
+		 */
+		Entry(final MessageProducer messageProducer) throws JMSException {
+			this.messageProducer = messageProducer;
+			deliveryMode = messageProducer.getDeliveryMode();
+			priority = messageProducer.getPriority();
+			timeToLive = messageProducer.getTimeToLive();
+			disableMessageID = messageProducer.getDisableMessageID();
+			disableMessageTimestamp = messageProducer.getDisableMessageTimestamp();
+		}
+
+		private synchronized int acquire() {
+			users++;
+			return generation;
+		}
+
+		private synchronized boolean isCurrent(final int userGeneration) {
+			return generation == userGeneration;
+		}
+
+		private synchronized void release(final int userGeneration) throws JMSException {
+			if(generation != userGeneration) {
+				// Already reset by the session
+				return;
+			}
+			users--;
+			if(users == 0) {
+				restore();
+			}
+		}
+
+		/**
+		 * Reset the cached producer when its session is closed; the producers handed out for it are closed.
+		 * @throws JMSException if the settings of the producer could not be restored
+		 */
+		synchronized void reset() throws JMSException {
+			generation++;
+			if(users > 0) {
+				users = 0;
+				restore();
+			}
+		}
+
+		private void restore() throws JMSException {
+			messageProducer.setDeliveryMode(deliveryMode);
+			messageProducer.setPriority(priority);
+			messageProducer.setTimeToLive(timeToLive);
+			messageProducer.setDisableMessageID(disableMessageID);
+			messageProducer.setDisableMessageTimestamp(disableMessageTimestamp);
+		}
+	}
+}
@@ -0,0 +1,196 @@
+package nl.futureedge.jta4spring.jms;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import javax.jms.ExceptionListener;
+import javax.jms.JMSException;
+import javax.jms.XAConnection;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Physical xa connection to the broker; shared by the logical connections ({@link XAConnectionAdapter}) created on it.
+ *
+ * Transacted sessions are pooled per physical connection (see {@link XASessionAdapter}); a closed session is returned to
+ * the pool after completion of its transaction, so the next transacted session does not need a round trip to the
+ * broker. The connection is marked broken when its exception listener is notified; broken connections are removed from
+ * the pool (see {@link XAConnectionPool}).
+ */
+final class PooledXAConnection implements ExceptionListener {
+
+	private static final Logger LOGGER = LoggerFactory.getLogger(PooledXAConnection.class);
+
+	private final XAConnection xaConnection;
+	private final int sessionPoolSize;
+	private final List<ExceptionListener> exceptionListeners = new CopyOnWriteArrayList<>();
+
+	private volatile boolean broken = false;
+
+	// Guarded by idleSessions
+	private final Deque<XASessionAdapter> idleSessions = new ArrayDeque<>();
+	private int activeSessions = 0;
+	private boolean closing = false;
+	private boolean closed = false;
+
+	/**
+	 * Constructor; registers the pooled connection as exception listener of the xa connection.
+	 * @param xaConnection xa connection
+	 * @param sessionPoolSize maximum number of idle transacted sessions kept in the pool (0 disables pooling)
+	 * @throws JMSException if the exception listener could not be set
+	 */
+	PooledXAConnection(final XAConnection xaConnection, final int sessionPoolSize) throws JMSException {
+		this.xaConnection = xaConnection;
+		this.sessionPoolSize = sessionPoolSize;
+		xaConnection.setExceptionListener(this);
+	}
+
+	/**
+	 * @return xa connection
+	 */
+	XAConnection getXAConnection() {
+		return xaConnection;
+	}
+
+	/**
+	 * @return true, if the connection has reported an exception (the connection should not be used anymore)
+	 */
+	boolean isBroken() {
+		return broken;
+	}
+
+	@Override
+	public void onException(final JMSException exception) {
+		LOGGER.warn("Exception on connection; connection is marked broken", exception);
+		broken = true;
+		for(final ExceptionListener exceptionListener : exceptionListeners) {
+			exceptionListener.onException(exception);
+		}
+	}
+
+	/**
+	 * Add an exception listener (of a logical connection).
+	 * @param exceptionListener exception listener
+	 */
+	void addExceptionListener(final ExceptionListener exceptionListener) {
+		exceptionListeners.add(exceptionListener);
+	}
+
+	/**
+	 * Remove an exception listener (of a logical connection).
+	 * @param exceptionListener exception listener
+	 */
+	void removeExceptionListener(final ExceptionListener exceptionListener) {
+		exceptionListeners.remove(exceptionListener);
+	}
+
+	/* ***************************** */
+	/* *** SESSIONS **************** */
+	/* ***************************** */
+
+	/**
+	 * Borrow a transacted session; reuses an idle session or creates a new xa session.
+	 * @return session
+	 * @throws JMSException if the connection is closed or the xa session could not be created
+	 */
+	XASessionAdapter borrowSession() throws JMSException {
+		synchronized(idleSessions) {
+			if(closing || closed) {
+				throw new javax.jms.IllegalStateException("Connection is closed");
+			}
+			activeSessions++;
+			final XASessionAdapter result = idleSessions.pollFirst();
+			if(result != null) {
+				LOGGER.debug("Reusing pooled session");
+				return result;
+			}
+		}
+		try {
+			return new XASessionAdapter(this, xaConnection.createXASession());
+		} catch (final JMSException e) {
+			release(null, false);
+			throw e;
+		}
+	}
+
+	/**
+	 * Release a session (closed and its transaction completed) to the pool; the session is closed if the pool is full,
+	 * the session is not reusable or the connection is closed.
+	 * @param session session
+	 */
+	void releaseSession(final XASessionAdapter session) {
+		release(session, session.isReusable());
+	}
+
+	/**
+	 * Close a borrowed session (for example when it could not be enlisted); the session is not returned to the pool.
+	 * @param session session
+	 */
+	void discardSession(final XASessionAdapter session) {
+		release(session, false);
+	}
+
+	private void release(final XASessionAdapter session, final boolean reusable) {
+		final boolean closeConnection;
+		synchronized(idleSessions) {
+			activeSessions--;
+			if(reusable && !broken && !closing && !closed && idleSessions.size() < sessionPoolSize) {
+				idleSessions.offerFirst(session);
+				return;
+			}
+			closeConnection = closing && !closed && activeSessions == 0;
+		}
+		if(session != null) {
+			session.destroy();
+		}
+		if(closeConnection) {
+			close();
+		}
+	}
+
+	/* ***************************** */
+	/* *** CLOSE ******************* */
+	/* ***************************** */
+
+	/**
+	 * Close the connection when no sessions are in use anymore (sessions are in use until their transaction completes).
+	 */
+	void closeWhenIdle() {
+		synchronized(idleSessions) {
+			closing = true;
+			if(activeSessions > 0) {
+				LOGGER.debug("Registering connection as closed; keeping until completion of transactions");
+				return;
+			}
+		}
+		close();
+	}
+
+	/**
+	 * Close the idle sessions and the xa connection.
+	 */
+	void close() {
+		final List<XASessionAdapter> sessions;
+		synchronized(idleSessions) {
+			if(closed) {
+				return;
+			}
+			closed = true;
+			sessions = new ArrayList<>(idleSessions);
+			idleSessions.clear();
+		}
+		for(final XASessionAdapter session : sessions) {
+			session.destroy();
+		}
+		try {
+			LOGGER.debug("Closing connection");
+			xaConnection.close();
+		} catch (final JMSException e) {
+			LOGGER.warn("Could not close connection", e);
+		}
+	}
+}
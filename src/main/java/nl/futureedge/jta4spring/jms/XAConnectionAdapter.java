@@ -1,138 +1,223 @@
 package nl.futureedge.jta4spring.jms;
 
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.WeakHashMap;
+
 import javax.jms.Connection;
 import javax.jms.ConnectionConsumer;
 import javax.jms.ConnectionMetaData;
 import javax.jms.Destination;
 import javax.jms.ExceptionListener;
+import javax.jms.IllegalStateException;
 import javax.jms.JMSException;
 import javax.jms.ServerSessionPool;
 import javax.jms.Session;
 import javax.jms.Topic;
-import javax.jms.XAConnection;
 import javax.jms.XASession;
 import javax.transaction.RollbackException;
-import javax.transaction.Status;
-import javax.transaction.Synchronization;
 import javax.transaction.SystemException;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import nl.futureedge.jta4spring.JtaTransaction;
 import nl.futureedge.jta4spring.JtaTransactionManager;
 
 /**
- * XAConnection adapter; delegates all calls to the wrapped XAConnection.
+ * Logical connection on a (shared) physical xa connection; delegates all calls to the xa connection of the wrapped
+ * {@link PooledXAConnection}.
  *
  * Overrides the {@link #createSession(boolean, int)} method to start a XASession and enlist the XAResource to the transaction.
+ * The transacted session of a pooled physical connection is bound to the transaction; subsequent calls within the same
+ * transaction (on any logical connection of the same physical connection) return the bound session, so a transaction
+ * uses one branch per physical connection and a logical connection only uses sessions of its own physical connection.
+ * Closing a logical connection on a pooled physical connection does not close the physical
+ * connection; a dedicated physical connection is closed when its sessions are no longer in use (after completion of
+ * their transactions). Non-transacted sessions (and their consumers) are closed with the logical connection.
+ * Logical connections on a pooled physical connection can not stop the physical connection or set its client id.
+ *
+ * Connection consumers require a {@link XAServerSessionPool}, which delivers messages in a transaction; connection
+ * consumers are closed with the logical connection.
  */
-class XAConnectionAdapter implements Connection, Synchronization {
+class XAConnectionAdapter implements Connection {
 
 	private static final Logger LOGGER = LoggerFactory.getLogger(XAConnectionAdapter.class);
 
-	private final XAConnection xaConnection;
+	private final String resourceName;
+	private final PooledXAConnection connection;
+	private final XAConnectionPool pool;
 	private final JtaTransactionManager transactionManager;
 
-	private boolean closeAfterCompletion=false;
+	private volatile boolean closed = false;
+	private ExceptionListener exceptionListener;
+	private final List<XAConnectionConsumer> connectionConsumers = new ArrayList<>();
+	// Sessions closed by the application are removed when garbage collected
+	private final Set<Session> sessions = Collections.newSetFromMap(new WeakHashMap<>());
 
 	/**
 	 * Constructor.
-	 * @param xaConnection xa connection
+	 * @param resourceName name of the resource (used for recovery)
+	 * @param connection physical connection
+	 * @param pool pool of the physical connection (null if the physical connection is used only by this logical connection)
 	 * @param transactionManager transaction manager
 	 */
-	XAConnectionAdapter(final XAConnection xaConnection, final JtaTransactionManager transactionManager) {
-		this.xaConnection = xaConnection;
+	XAConnectionAdapter(final String resourceName, final PooledXAConnection connection, final XAConnectionPool pool,
+			final JtaTransactionManager transactionManager) {
+		this.resourceName = resourceName;
+		this.connection = connection;
+		this.pool = pool;
 		this.transactionManager = transactionManager;
 	}
 
+	private boolean isDedicated() {
+		return pool == null;
+	}
+
+	private void checkNotClosed() throws JMSException {
+		if(closed) {
+			throw new IllegalStateException("Connection is closed");
+		}
+	}
+
 	@Override
 	public Session createSession(final boolean transacted, final int acknowledgeMode) throws JMSException {
 		LOGGER.trace("createSession(transacted={},acknowledgeMode={})",transacted,acknowledgeMode);
+		checkNotClosed();
 		if(transacted) {
-			final XASession xaSession = xaConnection.createXASession();
+			final JtaTransaction transaction = getTransaction();
+			if(!isDedicated()) {
+				final XASessionAdapter boundSession = (XASessionAdapter) transaction.getResource(connection);
+				if(boundSession != null) {
+					LOGGER.debug("Reusing session bound to transaction");
+					boundSession.reopen();
+					return boundSession;
+				}
+			}
+
+			final XASessionAdapter session = connection.borrowSession();
 			try {
-				transactionManager.getTransaction().enlistResource(xaSession.getXAResource());
-			} catch (IllegalStateException | RollbackException | SystemException e) {
+				transaction.enlistResource(session.getXAResource(), resourceName);
+				transaction.registerSynchronization(session);
+			} catch (java.lang.IllegalStateException | RollbackException | SystemException e) {
+				connection.discardSession(session);
 				final JMSException jmsException = new JMSException("Could not enlist connection to transaction");
 				jmsException.initCause(e);
 				throw jmsException;
 			}
-			return xaSession;
+			session.open();
+			if(!isDedicated()) {
+				transaction.putResource(connection, session);
+			}
+			return session;
 
 		} else {
-			return xaConnection.createSession(false, acknowledgeMode);
+			return registerSession(connection.getXAConnection().createSession(false, acknowledgeMode));
 		}
 	}
 
-
-	@Override
-	public void beforeCompletion() {
-		// Nothing
-
-	}
-
-	@Override
-	public void afterCompletion(final int status) {
-		if(closeAfterCompletion) {
-			try {
-				LOGGER.debug("Closing connection after completion of transaction");
-				xaConnection.close();
-			} catch (final JMSException e) {
-				LOGGER.warn("Could not close connection after completion of transaction", e);
-			}
+	private JtaTransaction getTransaction() throws JMSException {
+		try {
+			return transactionManager.getTransaction();
+		} catch (java.lang.IllegalStateException | SystemException e) {
+			final JMSException jmsException = new JMSException("Could not get transaction");
+			jmsException.initCause(e);
+			throw jmsException;
 		}
 	}
 
 	@Override
 	public String getClientID() throws JMSException {
 		LOGGER.trace("getClientID()");
-		return xaConnection.getClientID();
+		checkNotClosed();
+		return connection.getXAConnection().getClientID();
 	}
 
 	@Override
 	public void setClientID(final String clientID) throws JMSException {
 		LOGGER.trace("setClientID(clientID={})",clientID);
-		xaConnection.setClientID(clientID);
+		checkNotClosed();
+		if(!isDedicated()) {
+			throw new IllegalStateException("Client id can not be set on a pooled connection");
+		}
+		connection.getXAConnection().setClientID(clientID);
 	}
 
 	@Override
 	public ConnectionMetaData getMetaData() throws JMSException {
 		LOGGER.trace("getMetaData()");
-		return xaConnection.getMetaData();
+		checkNotClosed();
+		return connection.getXAConnection().getMetaData();
 	}
 
 	@Override
-	public ExceptionListener getExceptionListener() throws JMSException {
+	public synchronized ExceptionListener getExceptionListener() throws JMSException {
 		LOGGER.trace("getExceptionListener()");
-		return xaConnection.getExceptionListener();
+		checkNotClosed();
+		return exceptionListener;
 	}
 
 	@Override
-	public void setExceptionListener(final ExceptionListener listener) throws JMSException {
+	public synchronized void setExceptionListener(final ExceptionListener listener) throws JMSException {
 		LOGGER.trace("setExceptionListener(listener={})",listener);
-		xaConnection.setExceptionListener(listener);
+		checkNotClosed();
+		if(exceptionListener != null) {
+			connection.removeExceptionListener(exceptionListener);
+		}
+		exceptionListener = listener;
+		if(listener != null) {
+			connection.addExceptionListener(listener);
+		}
 	}
 
 	@Override
 	public void start() throws JMSException {
 		LOGGER.trace("start()");
-		xaConnection.start();
+		checkNotClosed();
+		connection.getXAConnection().start();
 	}
 
 	@Override
 	public void stop() throws JMSException {
 		LOGGER.trace("stop()");
-		xaConnection.stop();
+		checkNotClosed();
+		if(isDedicated()) {
+			connection.getXAConnection().stop();
+		} else {
+			LOGGER.debug("Ignoring stop of pooled connection");
+		}
 	}
 
 	@Override
-	public void close() throws JMSException {
+	public synchronized void close() throws JMSException {
 		LOGGER.trace("close()");
-		if(Status.STATUS_NO_TRANSACTION == transactionManager.getStatus()) {
-			xaConnection.close();
-		} else {
-			LOGGER.debug("Registering connection as closed; keeping until completion of transaction");
-			closeAfterCompletion = true;
+		if(closed) {
+			return;
+		}
+		closed = true;
+		if(exceptionListener != null) {
+			connection.removeExceptionListener(exceptionListener);
+		}
+		for(final XAConnectionConsumer connectionConsumer : connectionConsumers) {
+			try {
+				connectionConsumer.close();
+			} catch (final JMSException e) {
+				LOGGER.warn("Could not close connection consumer", e);
+			}
+		}
+		connectionConsumers.clear();
+		for(final Session session : sessions) {
+			try {
+				session.close();
+			} catch (final JMSException e) {
+				LOGGER.warn("Could not close session", e);
+			}
+		}
+		sessions.clear();
+		if(isDedicated()) {
+			connection.closeWhenIdle();
 		}
 	}
 
@@ -140,15 +225,71 @@ class XAConnectionAdapter implements Connection, Synchronization {
 	public ConnectionConsumer createConnectionConsumer(final Destination destination, final String messageSelector,
 			final ServerSessionPool sessionPool, final int maxMessages) throws JMSException {
 		LOGGER.trace("createConnectionConsumer(destination={},messageSelector={},sessionPool={},maxMessages={})",destination,messageSelector,sessionPool,maxMessages);
-		throw new UnsupportedOperationException("Create connection consumer not supported");
+		final XAServerSessionPool xaSessionPool = openSessionPool(sessionPool);
+		try {
+			return registerConnectionConsumer(new XAConnectionConsumer(
+					connection.getXAConnection().createConnectionConsumer(destination, messageSelector, xaSessionPool, maxMessages), xaSessionPool));
+		} catch (final JMSException e) {
+			xaSessionPool.close();
+			throw e;
+		}
 	}
 
 	@Override
 	public ConnectionConsumer createDurableConnectionConsumer(final Topic topic, final String subscriptionName,
 			final String messageSelector, final ServerSessionPool sessionPool, final int maxMessages) throws JMSException {
 		LOGGER.trace("createConnectionConsumer(topic={},subscriptionName={},messageSelector={},sessionPool={},maxMessages={})",topic,subscriptionName,messageSelector,sessionPool,maxMessages);
-		throw new UnsupportedOperationException("Create durable connection consumer not supported");
+		final XAServerSessionPool xaSessionPool = openSessionPool(sessionPool);
+		try {
+			return registerConnectionConsumer(new XAConnectionConsumer(
+					connection.getXAConnection().createDurableConnectionConsumer(topic, subscriptionName, messageSelector, xaSessionPool, maxMessages), xaSessionPool));
+		} catch (final JMSException e) {
+			xaSessionPool.close();
+			throw e;
+		}
 	}
 
+	private XAServerSessionPool openSessionPool(final ServerSessionPool sessionPool) throws JMSException {
+		checkNotClosed();
+		if(!(sessionPool instanceof XAServerSessionPool)) {
+			throw new JMSException("Connection consumers require a " + XAServerSessionPool.class.getSimpleName());
+		}
+		final XAServerSessionPool result = (XAServerSessionPool) sessionPool;
+		result.open(resourceName, connection.getXAConnection(), transactionManager);
+		return result;
+	}
 
+	private synchronized Session registerSession(final Session session) throws JMSException {
+		if(closed) {
+			// Closed concurrently
+			session.close();
+			throw new IllegalStateException("Connection is closed");
+		}
+		sessions.add(session);
+		return session;
+	}
+
+	private synchronized ConnectionConsumer registerConnectionConsumer(final XAConnectionConsumer connectionConsumer) {
+		connectionConsumers.add(connectionConsumer);
+		return connectionConsumer;
+	}
+
+	/**
+	 * @return name of the resource
+	 */
+	String getResourceName() {
+		return resourceName;
+	}
+
+	/**
+	 * Create a xa session on the physical connection; the session is not pooled and not bound to a transaction, the
+	 * caller enlists its xa resource and closes the session.
+	 * @return xa session
+	 * @throws JMSException if the connection is closed or the xa session could not be created
+	 */
+	XASession createXASession() throws JMSException {
+		LOGGER.trace("createXASession()");
+		checkNotClosed();
+		return connection.getXAConnection().createXASession();
+	}
 }
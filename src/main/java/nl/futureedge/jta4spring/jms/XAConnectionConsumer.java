@@ -0,0 +1,47 @@
+package nl.futureedge.jta4spring.jms;
+
+import javax.jms.ConnectionConsumer;
+import javax.jms.JMSException;
+import javax.jms.ServerSessionPool;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * ConnectionConsumer adapter; delegates all calls to the wrapped connection consumer.
+ *
+ * Overrides the {@link #close()} method to close the {@link XAServerSessionPool} after the connection consumer.
+ */
+class XAConnectionConsumer implements ConnectionConsumer {
+
+	private static final Logger LOGGER = LoggerFactory.getLogger(XAConnectionConsumer.class);
+
+	private final ConnectionConsumer connectionConsumer;
+	private final XAServerSessionPool sessionPool;
+
+	/**
+	 * Constructor.
+	 * @param connectionConsumer connection consumer
+	 * @param sessionPool server session pool of the connection consumer
+	 */
+	XAConnectionConsumer(final ConnectionConsumer connectionConsumer, final XAServerSessionPool sessionPool) {
+		this.connectionConsumer = connectionConsumer;
+		this.sessionPool = sessionPool;
+	}
+
+	@Override
+	public ServerSessionPool getServerSessionPool() throws JMSException {
+		LOGGER.trace("getServerSessionPool()");
+		return sessionPool;
+	}
+
+	@Override
+	public void close() throws JMSException {
+		LOGGER.trace("close()");
+		try {
+			connectionConsumer.close();
+		} finally {
+			sessionPool.close();
+		}
+	}
+}
@@ -5,45 +5,92 @@ import javax.jms.ConnectionFactory;
 import javax.jms.JMSException;
 import javax.jms.XAConnection;
 import javax.jms.XAConnectionFactory;
+import javax.jms.XASession;
+import javax.transaction.xa.XAException;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import nl.futureedge.jta4spring.JtaTransactionManager;
+import nl.futureedge.jta4spring.xa.RecoverableResource;
 
 /**
- * XAConnectionFactory adapter; creates connections on the wrapped xa connection factory and adapts them using a {@link XAConnectionAdapter}.
+ * XAConnectionFactory adapter; creates logical connections ({@link XAConnectionAdapter}) on physical connections of the
+ * wrapped xa connection factory.
+ *
+ * Connections obtained via {@link #createConnection()} share the physical connections of a {@link XAConnectionPool}.
+ * Connections obtained with specific credentials use a dedicated physical connection.
+ *
+ * Recovery uses a dedicated xa connection and session, which are closed after recovery.
  */
-class XAConnectionFactoryAdapter implements ConnectionFactory {
+class XAConnectionFactoryAdapter implements ConnectionFactory, RecoverableResource {
 
 	private static final Logger LOGGER = LoggerFactory.getLogger(XAConnectionFactoryAdapter.class);
 
+	private final String resourceName;
 	private final XAConnectionFactory xaConnectionFactory;
 	private final JtaTransactionManager transactionManager;
+	private final XAConnectionPool pool;
 
 	/**
 	 * Constructor.
+	 * @param resourceName name of the resource (used for recovery)
 	 * @param xaConnectionFactory xa connection factory
 	 * @param transactionManager transaction manager
+	 * @param pool connection pool
 	 */
-	XAConnectionFactoryAdapter(final XAConnectionFactory xaConnectionFactory,
-			final JtaTransactionManager transactionManager) {
+	XAConnectionFactoryAdapter(final String resourceName, final XAConnectionFactory xaConnectionFactory,
+			final JtaTransactionManager transactionManager, final XAConnectionPool pool) {
+		this.resourceName = resourceName;
 		this.xaConnectionFactory =xaConnectionFactory;
 		this.transactionManager = transactionManager;
+		this.pool = pool;
 	}
 
 	@Override
 	public Connection createConnection() throws JMSException {
 		LOGGER.trace("getConnection()");
-		final XAConnection xaConnection = xaConnectionFactory.createXAConnection();
-		return new XAConnectionAdapter(xaConnection, transactionManager);
+		return new XAConnectionAdapter(resourceName, pool.get(), pool, transactionManager);
 	}
 
 	@Override
 	public Connection createConnection(final String username, final String password) throws JMSException {
 		LOGGER.trace("getConnection(username={}, password withheld)", username, password);
-		final XAConnection xaConnection = xaConnectionFactory.createXAConnection(username, password);
-		return new XAConnectionAdapter(xaConnection, transactionManager);
+		return new XAConnectionAdapter(resourceName, pool.create(username, password), null, transactionManager);
 	}
 
+	@Override
+	public String getName() {
+		return resourceName;
+	}
+
+	@Override
+	public void recover(final XAResourceCallback callback) throws XAException {
+		LOGGER.trace("recover(callback={})", callback);
+		final XAConnection xaConnection;
+		final XASession xaSession;
+		try {
+			xaConnection = xaConnectionFactory.createXAConnection();
+		} catch (final JMSException e) {
+			LOGGER.debug("Could not create connection for recovery", e);
+			final XAException xaException = new XAException(XAException.XAER_RMFAIL);
+			xaException.initCause(e);
+			throw xaException;
+		}
+		try {
+			xaSession = xaConnection.createXASession();
+			callback.doWithXAResource(xaSession.getXAResource());
+		} catch (final JMSException e) {
+			LOGGER.debug("Could not create session for recovery", e);
+			final XAException xaException = new XAException(XAException.XAER_RMFAIL);
+			xaException.initCause(e);
+			throw xaException;
+		} finally {
+			try {
+				xaConnection.close();
+			} catch (final JMSException e) {
+				LOGGER.warn("Could not close connection after recovery", e);
+			}
+		}
+	}
 }
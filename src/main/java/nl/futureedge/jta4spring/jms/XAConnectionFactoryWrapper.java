@@ -2,10 +2,11 @@ package nl.futureedge.jta4spring.jms;
 
 import javax.jms.ConnectionFactory;
 import javax.jms.XAConnectionFactory;
-import javax.sql.DataSource;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.BeanNameAware;
+import org.springframework.beans.factory.DisposableBean;
 import org.springframework.beans.factory.FactoryBean;
 import org.springframework.beans.factory.InitializingBean;
 import org.springframework.beans.factory.annotation.Autowired;
@@ -15,15 +16,28 @@ import nl.futureedge.jta4spring.JtaTransactionManager;
 
 /**
  * XAConnectionFactory wrapper; Adapts the wrapped xa connection factory using a {@link XAConnectionFactoryAdapter}.
+ *
+ * Physical connections are pooled and shared by the connections created by the connection factory; the pool can be
+ * configured using the pool properties.
  */
-public class XAConnectionFactoryWrapper implements FactoryBean<ConnectionFactory>, InitializingBean {
+public class XAConnectionFactoryWrapper implements FactoryBean<ConnectionFactory>, InitializingBean, DisposableBean, BeanNameAware {
 
 	private static final Logger LOGGER = LoggerFactory.getLogger(XAConnectionFactoryWrapper.class);
 
+	private String beanName;
 	private XAConnectionFactory xaConnectionFactory;
 	private JtaTransactionManager transactionManager;
+	private int maxPoolSize = 1;
+	private int sessionPoolSize = 10;
+
+	private XAConnectionPool pool;
 	private ConnectionFactory connectionFactory;
 
+	@Override
+	public void setBeanName(final String beanName) {
+		this.beanName = beanName;
+	}
+
 	/**
 	 * Set the xa connection factory to wrap.
 	 * @param xaConnectionFactory xa connection factory
@@ -45,10 +59,39 @@ public class XAConnectionFactoryWrapper implements FactoryBean<ConnectionFactory
 		this.transactionManager = transactionManager;
 	}
 
+	/**
+	 * Set the maximum number of physical connections in the pool (default 1); connections are shared.
+	 * @param maxPoolSize maximum pool size
+	 */
+	public void setMaxPoolSize(final int maxPoolSize) {
+		LOGGER.trace("setMaxPoolSize(maxPoolSize={})", maxPoolSize);
+		this.maxPoolSize = maxPoolSize;
+	}
+
+	/**
+	 * Set the maximum number of idle transacted sessions pooled per connection (default 10; 0 disables pooling).
+	 * @param sessionPoolSize session pool size
+	 */
+	public void setSessionPoolSize(final int sessionPoolSize) {
+		LOGGER.trace("setSessionPoolSize(sessionPoolSize={})", sessionPoolSize);
+		this.sessionPoolSize = sessionPoolSize;
+	}
+
 	@Override
 	public void afterPropertiesSet() throws Exception {
 		LOGGER.trace("afterPropertiesSet()");
-		connectionFactory = new XAConnectionFactoryAdapter(xaConnectionFactory, transactionManager);
+		pool = new XAConnectionPool(xaConnectionFactory, maxPoolSize, sessionPoolSize);
+		final XAConnectionFactoryAdapter adapter = new XAConnectionFactoryAdapter(beanName, xaConnectionFactory, transactionManager, pool);
+		transactionManager.registerRecoverableResource(adapter);
+		connectionFactory = adapter;
+	}
+
+	@Override
+	public void destroy() throws Exception {
+		LOGGER.trace("destroy()");
+		if(pool != null) {
+			pool.close();
+		}
 	}
 
 	@Override
@@ -60,7 +103,7 @@ public class XAConnectionFactoryWrapper implements FactoryBean<ConnectionFactory
 	@Override
 	public Class<?> getObjectType() {
 		LOGGER.trace("getObjectType()");
-		return DataSource.class;
+		return ConnectionFactory.class;
 	}
 
 	@Override
@@ -0,0 +1,103 @@
+package nl.futureedge.jta4spring.jms;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import javax.jms.JMSException;
+import javax.jms.XAConnectionFactory;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Pool of physical xa connections to the broker.
+ *
+ * JMS connections are thread safe, so connections are not borrowed exclusively: logical connections are spread
+ * (round-robin) over at most the maximum pool size of physical connections, which are created on demand. Broken
+ * connections (see {@link PooledXAConnection#isBroken()}) are replaced when they are next selected.
+ */
+final class XAConnectionPool {
+
+	private static final Logger LOGGER = LoggerFactory.getLogger(XAConnectionPool.class);
+
+	private final XAConnectionFactory xaConnectionFactory;
+	private final int maxPoolSize;
+	private final int sessionPoolSize;
+
+	// Guarded by this
+	private final List<PooledXAConnection> connections;
+	private int next = 0;
+	private boolean closed = false;
+
+	/**
+	 * Constructor.
+	 * @param xaConnectionFactory xa connection factory
+	 * @param maxPoolSize maximum number of physical connections
+	 * @param sessionPoolSize maximum number of idle transacted sessions pooled per physical connection
+	 */
+	XAConnectionPool(final XAConnectionFactory xaConnectionFactory, final int maxPoolSize, final int sessionPoolSize) {
+		if(maxPoolSize < 1) {
+			throw new IllegalArgumentException("Maximum pool size should be greater than 0");
+		}
+		this.xaConnectionFactory = xaConnectionFactory;
+		this.maxPoolSize = maxPoolSize;
+		this.sessionPoolSize = sessionPoolSize;
+		connections = new ArrayList<>(maxPoolSize);
+	}
+
+	/**
+	 * Get a physical connection to create a logical connection on; creates a new physical connection if the maximum pool
+	 * size has not been reached.
+	 * @return physical connection
+	 * @throws JMSException if the pool is closed or a physical connection could not be created
+	 */
+	synchronized PooledXAConnection get() throws JMSException {
+		LOGGER.trace("get()");
+		if(closed) {
+			throw new javax.jms.IllegalStateException("Connection pool is closed");
+		}
+		if(connections.size() < maxPoolSize) {
+			final PooledXAConnection result = create();
+			connections.add(result);
+			return result;
+		}
+
+		next = (next + 1) % connections.size();
+		PooledXAConnection result = connections.get(next);
+		if(result.isBroken()) {
+			LOGGER.info("Replacing broken connection");
+			result.closeWhenIdle();
+			result = create();
+			connections.set(next, result);
+		}
+		return result;
+	}
+
+	/**
+	 * Create a physical connection that is not pooled (for example for specific credentials).
+	 * @param username user name
+	 * @param password password
+	 * @return physical connection
+	 * @throws JMSException if the physical connection could not be created
+	 */
+	PooledXAConnection create(final String username, final String password) throws JMSException {
+		return new PooledXAConnection(xaConnectionFactory.createXAConnection(username, password), sessionPoolSize);
+	}
+
+	private PooledXAConnection create() throws JMSException {
+		LOGGER.debug("Creating connection");
+		return new PooledXAConnection(xaConnectionFactory.createXAConnection(), sessionPoolSize);
+	}
+
+	/**
+	 * Close the pool and its physical connections.
+	 */
+	synchronized void close() {
+		LOGGER.trace("close()");
+		closed = true;
+		for(final PooledXAConnection connection : connections) {
+			connection.close();
+		}
+		connections.clear();
+	}
+}
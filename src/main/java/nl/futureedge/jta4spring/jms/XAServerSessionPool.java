@@ -0,0 +1,299 @@
+package nl.futureedge.jta4spring.jms;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.jms.JMSException;
+import javax.jms.Message;
+import javax.jms.MessageListener;
+import javax.jms.ServerSession;
+import javax.jms.ServerSessionPool;
+import javax.jms.Session;
+import javax.jms.XAConnection;
+import javax.jms.XASession;
+import javax.transaction.Status;
+import javax.transaction.SystemException;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import nl.futureedge.jta4spring.JtaTransactionManager;
+
+/**
+ * Server session pool that delivers messages in a transaction; pass it to
+ * {@link javax.jms.Connection#createConnectionConsumer(javax.jms.Destination, String, ServerSessionPool, int)} of a
+ * connection of the connection factory wrapper.
+ *
+ * The connection consumer loads messages (at most the maximum number of messages of the connection consumer) into a
+ * xa session of the pool; the messages are delivered to the message listener on a worker thread within one
+ * transaction, which is committed after delivery. The transaction is rolled back (and the messages are redelivered by
+ * the broker) if the message listener throws a runtime exception or marks the transaction for rollback; the provider
+ * should redeliver rolled back messages through the connection consumer (for ActiveMQ enable non-blocking redelivery
+ * on the connection factory, otherwise the messages are kept in the session until it is used again). At most the
+ * maximum number of sessions is used concurrently; the connection consumer waits for a session when all sessions are
+ * in use (until a session is released or the pool is closed).
+ */
+public final class XAServerSessionPool implements ServerSessionPool {
+
+	private static final Logger LOGGER = LoggerFactory.getLogger(XAServerSessionPool.class);
+
+	private static final long WAIT_INTERVAL = 1000;
+
+	private final MessageListener messageListener;
+	private final int maxSessions;
+	private int shutdownTimeout = 30;
+
+	// Guarded by idleSessions
+	private final Deque<XAServerSession> idleSessions = new ArrayDeque<>();
+	private int sessionCount = 0;
+
+	private String resourceName;
+	private volatile XAConnection xaConnection;
+	private JtaTransactionManager transactionManager;
+	private ExecutorService executor;
+	private volatile boolean closed = false;
+
+	/**
+	 * Constructor.
+	 * @param messageListener message listener (called concurrently by the worker threads)
+	 * @param maxSessions maximum number of sessions (and worker threads)
+	 */
+	public XAServerSessionPool(final MessageListener messageListener, final int maxSessions) {
+		if(maxSessions < 1) {
+			throw new IllegalArgumentException("Maximum number of sessions should be greater than 0");
+		}
+		this.messageListener = messageListener;
+		this.maxSessions = maxSessions;
+	}
+
+	/**
+	 * Set the maximum time (in seconds) to wait for running deliveries to complete when the pool is closed (default 30).
+	 * @param shutdownTimeout shutdown timeout in seconds
+	 */
+	public void setShutdownTimeout(final int shutdownTimeout) {
+		LOGGER.trace("setShutdownTimeout(shutdownTimeout={})", shutdownTimeout);
+		this.shutdownTimeout = shutdownTimeout;
+	}
+
+	/**
+	 * Open the pool on a connection; called when the connection consumer is created.
+	 * @param resourceName name of the resource
+	 * @param xaConnection xa connection to create sessions on
+	 * @param transactionManager transaction manager
+	 * @throws javax.jms.IllegalStateException if the pool is already in use
+	 */
+	synchronized void open(final String resourceName, final XAConnection xaConnection, final JtaTransactionManager transactionManager)
+			throws javax.jms.IllegalStateException {
+		if(this.xaConnection != null || closed) {
+			throw new javax.jms.IllegalStateException("Server session pool is already used by a connection consumer");
+		}
+		this.resourceName = resourceName;
+		this.transactionManager = transactionManager;
+		final AtomicInteger threadCount = new AtomicInteger();
+		executor = Executors.newFixedThreadPool(maxSessions, runnable -> {
+			final Thread thread = new Thread(runnable, "jta4spring-consumer-" + resourceName + "-" + threadCount.incrementAndGet());
+			thread.setDaemon(true);
+			return thread;
+		});
+		// Set last; the pool is usable when the connection is set
+		this.xaConnection = xaConnection;
+	}
+
+	@Override
+	public ServerSession getServerSession() throws JMSException {
+		LOGGER.trace("getServerSession()");
+		if(xaConnection == null) {
+			throw new javax.jms.IllegalStateException("Server session pool is not used by a connection consumer");
+		}
+		synchronized(idleSessions) {
+			while(true) {
+				if(closed) {
+					throw new javax.jms.IllegalStateException("Server session pool is closed");
+				}
+				final XAServerSession result = idleSessions.pollFirst();
+				if(result != null) {
+					return result;
+				}
+				if(sessionCount < maxSessions) {
+					sessionCount++;
+					break;
+				}
+				try {
+					// Woken when a session is released or the pool is closed
+					idleSessions.wait(WAIT_INTERVAL);
+				} catch (final InterruptedException e) {
+					Thread.currentThread().interrupt();
+					final JMSException jmsException = new JMSException("Interrupted while waiting for a server session");
+					jmsException.initCause(e);
+					throw jmsException;
+				}
+			}
+		}
+
+		try {
+			return new XAServerSession(xaConnection.createXASession());
+		} catch (final JMSException e) {
+			synchronized(idleSessions) {
+				sessionCount--;
+				idleSessions.notifyAll();
+			}
+			throw e;
+		}
+	}
+
+	private void release(final XAServerSession serverSession, final boolean reusable) {
+		synchronized(idleSessions) {
+			if(reusable && !closed) {
+				idleSessions.offerFirst(serverSession);
+				idleSessions.notifyAll();
+				return;
+			}
+			// A new session can be created instead
+			sessionCount--;
+			idleSessions.notifyAll();
+		}
+		serverSession.close();
+	}
+
+	/**
+	 * Close the pool; wakes the connection consumer waiting for a session, waits (at most the shutdown timeout) for the
+	 * running deliveries to complete and closes the sessions.
+	 */
+	void close() {
+		LOGGER.trace("close()");
+		final ExecutorService currentExecutor;
+		synchronized(this) {
+			if(closed) {
+				return;
+			}
+			closed = true;
+			currentExecutor = executor;
+		}
+		// Wake the connection consumer waiting for a session
+		synchronized(idleSessions) {
+			idleSessions.notifyAll();
+		}
+		if(currentExecutor != null) {
+			currentExecutor.shutdown();
+			try {
+				if(!currentExecutor.awaitTermination(shutdownTimeout, TimeUnit.SECONDS)) {
+					LOGGER.warn("Message delivery did not complete within {} seconds; closing sessions", shutdownTimeout);
+				}
+			} catch (final InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		}
+		final List<XAServerSession> sessions;
+		synchronized(idleSessions) {
+			sessions = new ArrayList<>(idleSessions);
+			idleSessions.clear();
+		}
+		for(final XAServerSession session : sessions) {
+			session.close();
+		}
+	}
+
+	/* ***************************** */
+	/* *** DELIVERY **************** */
+	/* ***************************** */
+
+	private void deliver(final XAServerSession serverSession) {
+		LOGGER.trace("deliver(serverSession={})", serverSession);
+		try {
+			transactionManager.begin();
+		} catch (final Exception e) {
+			// Closing the session makes the broker redeliver the loaded messages
+			LOGGER.error("Could not begin transaction; closing session", e);
+			release(serverSession, false);
+			return;
+		}
+
+		boolean reusable = true;
+		try {
+			transactionManager.getTransaction().enlistResource(serverSession.xaSession.getXAResource(), resourceName);
+			serverSession.xaSession.run();
+			if(Status.STATUS_MARKED_ROLLBACK == transactionManager.getStatus()) {
+				LOGGER.debug("Transaction is marked for rollback; messages are redelivered");
+				transactionManager.rollback();
+			} else {
+				transactionManager.commit();
+			}
+		} catch (final Exception e) {
+			LOGGER.warn("Could not deliver messages in transaction; closing session", e);
+			reusable = false;
+			rollback();
+		}
+		release(serverSession, reusable);
+	}
+
+	private void rollback() {
+		if(Status.STATUS_NO_TRANSACTION == transactionManager.getStatus()) {
+			return;
+		}
+		try {
+			transactionManager.rollback();
+		} catch (IllegalStateException | SecurityException | SystemException e) {
+			LOGGER.warn("Could not rollback transaction", e);
+		}
+	}
+
+	private void onMessage(final Message message) {
+		try {
+			messageListener.onMessage(message);
+		} catch (final RuntimeException e) {
+			LOGGER.warn("Exception in message listener; transaction is marked for rollback", e);
+			try {
+				transactionManager.setRollbackOnly();
+			} catch (IllegalStateException | SystemException e2) {
+				LOGGER.warn("Could not mark transaction for rollback", e2);
+			}
+		}
+	}
+
+	/**
+	 * Server session; messages are loaded into the xa session by the connection consumer and delivered on a worker
+	 * thread when the server session is started.
+	 */
+	private final class XAServerSession implements ServerSession {
+
+		private final XASession xaSession;
+
+		XAServerSession(final XASession xaSession) throws JMSException {
+			this.xaSession = xaSession;
+			xaSession.setMessageListener(XAServerSessionPool.this::onMessage);
+		}
+
+		@Override
+		public Session getSession() throws JMSException {
+			return xaSession;
+		}
+
+		@Override
+		public void start() throws JMSException {
+			LOGGER.trace("start()");
+			try {
+				executor.execute(() -> deliver(this));
+			} catch (final RejectedExecutionException e) {
+				release(this, false);
+				final JMSException jmsException = new JMSException("Server session pool is closed");
+				jmsException.initCause(e);
+				throw jmsException;
+			}
+		}
+
+		void close() {
+			try {
+				xaSession.close();
+			} catch (final JMSException e) {
+				LOGGER.warn("Could not close session", e);
+			}
+		}
+	}
+}
@@ -0,0 +1,362 @@
+package nl.futureedge.jta4spring.jms;
+
+import java.io.Serializable;
+import java.util.HashMap;
+import java.util.Map;
+
+import javax.jms.BytesMessage;
+import javax.jms.Destination;
+import javax.jms.IllegalStateException;
+import javax.jms.JMSException;
+import javax.jms.MapMessage;
+import javax.jms.Message;
+import javax.jms.MessageConsumer;
+import javax.jms.MessageListener;
+import javax.jms.MessageProducer;
+import javax.jms.ObjectMessage;
+import javax.jms.Queue;
+import javax.jms.QueueBrowser;
+import javax.jms.Session;
+import javax.jms.StreamMessage;
+import javax.jms.TemporaryQueue;
+import javax.jms.TemporaryTopic;
+import javax.jms.TextMessage;
+import javax.jms.Topic;
+import javax.jms.TopicSubscriber;
+import javax.jms.XASession;
+import javax.transaction.Synchronization;
+import javax.transaction.xa.XAResource;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * XASession adapter; delegates all calls to the session of the wrapped XASession.
+ *
+ * Sessions are pooled by their {@link PooledXAConnection}: the {@link #close()} method does not close the session but
+ * returns it to the pool once it is closed and its transaction has completed. Message producers are cached per
+ * destination (see {@link CachedMessageProducer}). Sessions that have been used to consume messages (or have a message
+ * listener) are not returned to the pool but closed.
+ */
+class XASessionAdapter implements Session, Synchronization {
+
+	private static final Logger LOGGER = LoggerFactory.getLogger(XASessionAdapter.class);
+
+	private static final int MAX_CACHED_PRODUCERS = 16;
+
+	private final PooledXAConnection connection;
+	private final XASession xaSession;
+	private final Session session;
+	private final Map<Destination, CachedMessageProducer.Entry> producers = new HashMap<>();
+
+	private boolean closed = true;
+	private boolean inTransaction = false;
+	private int openCount = 0;
+	private volatile boolean reusable = true;
+
+	/**
+	 * Constructor.
+	 * @param connection connection (pool) the session is released to
+	 * @param xaSession xa session
+	 * @throws JMSException if the session could not be obtained from the xa session
+	 */
+	XASessionAdapter(final PooledXAConnection connection, final XASession xaSession) throws JMSException {
+		this.connection = connection;
+		this.xaSession = xaSession;
+		session = xaSession.getSession();
+	}
+
+	/**
+	 * @return xa resource of the session
+	 */
+	XAResource getXAResource() {
+		return xaSession.getXAResource();
+	}
+
+	/**
+	 * Open the (pooled) session; the session is enlisted in a transaction.
+	 */
+	synchronized void open() {
+		closed = false;
+		inTransaction = true;
+		openCount = 1;
+	}
+
+	/**
+	 * Reopen the session; used when the session bound to the transaction is requested again.
+	 * The session is only closed when each requester has closed it.
+	 */
+	synchronized void reopen() {
+		closed = false;
+		openCount++;
+	}
+
+	/**
+	 * @return true, if the session can be returned to the pool (no consumers have been created)
+	 */
+	boolean isReusable() {
+		return reusable;
+	}
+
+	/**
+	 * Close the xa session (and its producers); the session is removed from the pool.
+	 */
+	void destroy() {
+		LOGGER.debug("Closing pooled session");
+		try {
+			xaSession.close();
+		} catch (final JMSException e) {
+			LOGGER.warn("Could not close session", e);
+		}
+	}
+
+	@Override
+	public void beforeCompletion() {
+		// Nothing
+	}
+
+	@Override
+	public void afterCompletion(final int status) {
+		synchronized(this) {
+			inTransaction = false;
+			if(!closed) {
+				return;
+			}
+		}
+		LOGGER.debug("Releasing session after completion of transaction");
+		connection.releaseSession(this);
+	}
+
+	@Override
+	public void close() throws JMSException {
+		LOGGER.trace("close()");
+		synchronized(this) {
+			if(closed) {
+				return;
+			}
+			openCount--;
+			if(openCount > 0) {
+				LOGGER.debug("Session is still in use within the transaction");
+				return;
+			}
+			closed = true;
+		}
+		resetProducers();
+		synchronized(this) {
+			if(inTransaction) {
+				LOGGER.debug("Registering session as closed; keeping until completion of transaction");
+				return;
+			}
+		}
+		connection.releaseSession(this);
+	}
+
+	private void resetProducers() {
+		for(final CachedMessageProducer.Entry entry : producers.values()) {
+			try {
+				entry.reset();
+			} catch (final JMSException e) {
+				LOGGER.warn("Could not restore settings of producer; session is not reused", e);
+				reusable = false;
+			}
+		}
+	}
+
+	private synchronized void checkNotClosed() throws JMSException {
+		if(closed) {
+			throw new IllegalStateException("Session is closed");
+		}
+	}
+
+	@Override
+	public MessageProducer createProducer(final Destination destination) throws JMSException {
+		LOGGER.trace("createProducer(destination={})", destination);
+		checkNotClosed();
+		CachedMessageProducer.Entry entry = producers.get(destination);
+		if(entry == null) {
+			if(producers.size() >= MAX_CACHED_PRODUCERS) {
+				return session.createProducer(destination);
+			}
+			entry = new CachedMessageProducer.Entry(session.createProducer(destination));
+			producers.put(destination, entry);
+		}
+		return new CachedMessageProducer(entry);
+	}
+
+	@Override
+	public BytesMessage createBytesMessage() throws JMSException {
+		checkNotClosed();
+		return session.createBytesMessage();
+	}
+
+	@Override
+	public MapMessage createMapMessage() throws JMSException {
+		checkNotClosed();
+		return session.createMapMessage();
+	}
+
+	@Override
+	public Message createMessage() throws JMSException {
+		checkNotClosed();
+		return session.createMessage();
+	}
+
+	@Override
+	public ObjectMessage createObjectMessage() throws JMSException {
+		checkNotClosed();
+		return session.createObjectMessage();
+	}
+
+	@Override
+	public ObjectMessage createObjectMessage(final Serializable object) throws JMSException {
+		checkNotClosed();
+		return session.createObjectMessage(object);
+	}
+
+	@Override
+	public StreamMessage createStreamMessage() throws JMSException {
+		checkNotClosed();
+		return session.createStreamMessage();
+	}
+
+	@Override
+	public TextMessage createTextMessage() throws JMSException {
+		checkNotClosed();
+		return session.createTextMessage();
+	}
+
+	@Override
+	public TextMessage createTextMessage(final String text) throws JMSException {
+		checkNotClosed();
+		return session.createTextMessage(text);
+	}
+
+	@Override
+	public boolean getTransacted() throws JMSException {
+		checkNotClosed();
+		return session.getTransacted();
+	}
+
+	@Override
+	public int getAcknowledgeMode() throws JMSException {
+		checkNotClosed();
+		return session.getAcknowledgeMode();
+	}
+
+	@Override
+	public void commit() throws JMSException {
+		checkNotClosed();
+		session.commit();
+	}
+
+	@Override
+	public void rollback() throws JMSException {
+		checkNotClosed();
+		session.rollback();
+	}
+
+	@Override
+	public void recover() throws JMSException {
+		checkNotClosed();
+		session.recover();
+	}
+
+	@Override
+	public MessageListener getMessageListener() throws JMSException {
+		checkNotClosed();
+		return session.getMessageListener();
+	}
+
+	@Override
+	public void setMessageListener(final MessageListener listener) throws JMSException {
+		checkNotClosed();
+		reusable = false;
+		session.setMessageListener(listener);
+	}
+
+	@Override
+	public void run() {
+		session.run();
+	}
+
+	@Override
+	public MessageConsumer createConsumer(final Destination destination) throws JMSException {
+		checkNotClosed();
+		reusable = false;
+		return session.createConsumer(destination);
+	}
+
+	@Override
+	public MessageConsumer createConsumer(final Destination destination, final String messageSelector) throws JMSException {
+		checkNotClosed();
+		reusable = false;
+		return session.createConsumer(destination, messageSelector);
+	}
+
+	@Override
+	public MessageConsumer createConsumer(final Destination destination, final String messageSelector, final boolean noLocal)
+			throws JMSException {
+		checkNotClosed();
+		reusable = false;
+		return session.createConsumer(destination, messageSelector, noLocal);
+	}
+
+	@Override
+	public Queue createQueue(final String queueName) throws JMSException {
+		checkNotClosed();
+		return session.createQueue(queueName);
+	}
+
+	@Override
+	public Topic createTopic(final String topicName) throws JMSException {
+		checkNotClosed();
+		return session.createTopic(topicName);
+	}
+
+	@Override
+	public TopicSubscriber createDurableSubscriber(final Topic topic, final String name) throws JMSException {
+		checkNotClosed();
+		reusable = false;
+		return session.createDurableSubscriber(topic, name);
+	}
+
+	@Override
+	public TopicSubscriber createDurableSubscriber(final Topic topic, final String name, final String messageSelector,
+			final boolean noLocal) throws JMSException {
+		checkNotClosed();
+		reusable = false;
+		return session.createDurableSubscriber(topic, name, messageSelector, noLocal);
+	}
+
+	@Override
+	public QueueBrowser createBrowser(final Queue queue) throws JMSException {
+		checkNotClosed();
+		reusable = false;
+		return session.createBrowser(queue);
+	}
+
+	@Override
+	public QueueBrowser createBrowser(final Queue queue, final String messageSelector) throws JMSException {
+		checkNotClosed();
+		reusable = false;
+		return session.createBrowser(queue, messageSelector);
+	}
+
+	@Override
+	public TemporaryQueue createTemporaryQueue() throws JMSException {
+		checkNotClosed();
+		return session.createTemporaryQueue();
+	}
+
+	@Override
+	public TemporaryTopic createTemporaryTopic() throws JMSException {
+		checkNotClosed();
+		return session.createTemporaryTopic();
+	}
+
+	@Override
+	public void unsubscribe(final String name) throws JMSException {
+		checkNotClosed();
+		session.unsubscribe(name);
+	}
+}
@@ -0,0 +1,101 @@
+package nl.futureedge.jta4spring.metrics;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Latency histogram.
+ *
+ * Values (in nanoseconds) are counted in log-linear buckets: every power of two is divided in eight buckets, so a
+ * percentile is accurate within 12.5%. Every bucket is a striped counter ({@link LongAdder}); recording a value does
+ * not lock and concurrent recording threads do not contend on a single counter. Values above (about) 18 minutes are
+ * counted in the last bucket.
+ */
+public final class Histogram {
+
+	private static final int SUB_BUCKET_BITS = 3;
+	private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+	private static final int MAX_EXPONENT = 40;
+	private static final int BUCKETS = (MAX_EXPONENT - SUB_BUCKET_BITS + 2) * SUB_BUCKETS;
+
+	private final LongAdder[] buckets = new LongAdder[BUCKETS];
+	private final LongAdder sum = new LongAdder();
+	private final LongAccumulator max = new LongAccumulator(Math::max, 0);
+
+	/**
+	 * Constructor.
+	 */
+	public Histogram() {
+		for(int i = 0; i < BUCKETS; i++) {
+			buckets[i] = new LongAdder();
+		}
+	}
+
+	/**
+	 * Record a value.
+	 * @param nanos value in nanoseconds (negative values are recorded as 0)
+	 */
+	public void record(final long nanos) {
+		final long value = Math.max(0, nanos);
+		buckets[index(value)].increment();
+		sum.add(value);
+		max.accumulate(value);
+	}
+
+	/**
+	 * Take a snapshot; values recorded concurrently may or may not be included.
+	 * @return snapshot
+	 */
+	public HistogramSnapshot snapshot() {
+		final long[] counts = new long[BUCKETS];
+		long count = 0;
+		for(int i = 0; i < BUCKETS; i++) {
+			counts[i] = buckets[i].sum();
+			count += counts[i];
+		}
+		return new HistogramSnapshot(count, count == 0 ? 0 : toMicros(sum.sum()) / count, toMicros(max.get()),
+				percentile(counts, count, 0.50), percentile(counts, count, 0.90), percentile(counts, count, 0.99), percentile(counts, count, 0.999));
+	}
+
+	private static double percentile(final long[] counts, final long count, final double percentile) {
+		if(count == 0) {
+			return 0;
+		}
+		final long rank = (long) Math.ceil(percentile * count);
+		long seen = 0;
+		for(int i = 0; i < BUCKETS; i++) {
+			seen += counts[i];
+			if(seen >= rank) {
+				// Middle of the bucket
+				return toMicros((lowerBound(i) + lowerBound(i + 1) - 1) / 2);
+			}
+		}
+		return toMicros(lowerBound(BUCKETS - 1));
+	}
+
+	private static double toMicros(final long nanos) {
+		return (double) nanos / TimeUnit.MICROSECONDS.toNanos(1);
+	}
+
+	static int index(final long value) {
+		if(value < SUB_BUCKETS) {
+			return (int) value;
+		}
+		final int exponent = 63 - Long.numberOfLeadingZeros(value);
+		if(exponent > MAX_EXPONENT) {
+			return BUCKETS - 1;
+		}
+		final int subBucket = (int) (value >>> (exponent - SUB_BUCKET_BITS)) & (SUB_BUCKETS - 1);
+		return (exponent - SUB_BUCKET_BITS + 1) * SUB_BUCKETS + subBucket;
+	}
+
+	static long lowerBound(final int index) {
+		if(index < SUB_BUCKETS) {
+			return index;
+		}
+		final int exponent = index / SUB_BUCKETS + SUB_BUCKET_BITS - 1;
+		final int subBucket = index % SUB_BUCKETS;
+		return (long) (SUB_BUCKETS + subBucket) << (exponent - SUB_BUCKET_BITS);
+	}
+}
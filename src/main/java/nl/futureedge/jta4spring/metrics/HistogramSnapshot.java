@@ -0,0 +1,79 @@
+package nl.futureedge.jta4spring.metrics;
+
+/**
+ * Snapshot of a {@link Histogram}; all values are in microseconds.
+ */
+public final class HistogramSnapshot {
+
+	private final long count;
+	private final double mean;
+	private final double max;
+	private final double p50;
+	private final double p90;
+	private final double p99;
+	private final double p999;
+
+	HistogramSnapshot(final long count, final double mean, final double max, final double p50, final double p90, final double p99, final double p999) {
+		this.count = count;
+		this.mean = mean;
+		this.max = max;
+		this.p50 = p50;
+		this.p90 = p90;
+		this.p99 = p99;
+		this.p999 = p999;
+	}
+
+	/**
+	 * @return number of recorded values
+	 */
+	public long getCount() {
+		return count;
+	}
+
+	/**
+	 * @return mean
+	 */
+	public double getMean() {
+		return mean;
+	}
+
+	/**
+	 * @return maximum
+	 */
+	public double getMax() {
+		return max;
+	}
+
+	/**
+	 * @return median
+	 */
+	public double getP50() {
+		return p50;
+	}
+
+	/**
+	 * @return 90th percentile
+	 */
+	public double getP90() {
+		return p90;
+	}
+
+	/**
+	 * @return 99th percentile
+	 */
+	public double getP99() {
+		return p99;
+	}
+
+	/**
+	 * @return 99.9th percentile
+	 */
+	public double getP999() {
+		return p999;
+	}
+
+	@Override
+	public String toString() {
+		return "HistogramSnapshot [count=" + count + ", mean=" + mean + ", max=" + max + ", p50=" + p50 + ", p90=" + p90 + ", p99=" + p99 + ", p999=" + p999 + "]";
+	}
+}
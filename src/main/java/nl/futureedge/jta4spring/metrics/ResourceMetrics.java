@@ -0,0 +1,74 @@
+package nl.futureedge.jta4spring.metrics;
+
+/**
+ * Metrics of a resource.
+ */
+public final class ResourceMetrics implements ResourceMetricsMXBean {
+
+	/**
+	 * Phase (xa call) of a branch.
+	 */
+	public enum Phase {
+		/** xa_start. */
+		START,
+		/** xa_end. */
+		END,
+		/** xa_prepare. */
+		PREPARE,
+		/** xa_commit. */
+		COMMIT,
+		/** xa_rollback. */
+		ROLLBACK
+	}
+
+	private final String name;
+	private final Histogram[] latencies = new Histogram[Phase.values().length];
+
+	ResourceMetrics(final String name) {
+		this.name = name;
+		for(int i = 0; i < latencies.length; i++) {
+			latencies[i] = new Histogram();
+		}
+	}
+
+	/**
+	 * @return name of the resource
+	 */
+	public String getName() {
+		return name;
+	}
+
+	/**
+	 * Record the latency of a xa call.
+	 * @param phase phase
+	 * @param nanos latency in nanoseconds
+	 */
+	public void record(final Phase phase, final long nanos) {
+		latencies[phase.ordinal()].record(nanos);
+	}
+
+	@Override
+	public HistogramSnapshot getStartLatency() {
+		return latencies[Phase.START.ordinal()].snapshot();
+	}
+
+	@Override
+	public HistogramSnapshot getEndLatency() {
+		return latencies[Phase.END.ordinal()].snapshot();
+	}
+
+	@Override
+	public HistogramSnapshot getPrepareLatency() {
+		return latencies[Phase.PREPARE.ordinal()].snapshot();
+	}
+
+	@Override
+	public HistogramSnapshot getCommitLatency() {
+		return latencies[Phase.COMMIT.ordinal()].snapshot();
+	}
+
+	@Override
+	public HistogramSnapshot getRollbackLatency() {
+		return latencies[Phase.ROLLBACK.ordinal()].snapshot();
+	}
+}
@@ -0,0 +1,32 @@
+package nl.futureedge.jta4spring.metrics;
+
+/**
+ * JMX interface of the metrics of a resource; latencies of the xa calls on the resource (in microseconds).
+ */
+public interface ResourceMetricsMXBean {
+
+	/**
+	 * @return latency of xa_start
+	 */
+	HistogramSnapshot getStartLatency();
+
+	/**
+	 * @return latency of xa_end
+	 */
+	HistogramSnapshot getEndLatency();
+
+	/**
+	 * @return latency of xa_prepare
+	 */
+	HistogramSnapshot getPrepareLatency();
+
+	/**
+	 * @return latency of xa_commit (one-phase and two-phase)
+	 */
+	HistogramSnapshot getCommitLatency();
+
+	/**
+	 * @return latency of xa_rollback
+	 */
+	HistogramSnapshot getRollbackLatency();
+}
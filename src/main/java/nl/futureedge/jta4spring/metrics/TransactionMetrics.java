@@ -0,0 +1,192 @@
+package nl.futureedge.jta4spring.metrics;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.IntSupplier;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Metrics of a transaction manager.
+ *
+ * Counters are striped ({@link LongAdder}) and latencies are recorded in {@link Histogram}s, so recording does not lock.
+ * The metrics can be registered as MBeans: one for the transaction manager
+ * ({@code nl.futureedge.jta4spring:type=TransactionManager,name=<unique name>}) and one for every resource
+ * ({@code nl.futureedge.jta4spring:type=Resource,transactionManager=<unique name>,name=<resource name>}).
+ */
+public final class TransactionMetrics implements TransactionMetricsMXBean {
+
+	private static final Logger LOGGER = LoggerFactory.getLogger(TransactionMetrics.class);
+
+	private static final String DOMAIN = "nl.futureedge.jta4spring";
+
+	private final String uniqueName;
+	private final IntSupplier activeTransactions;
+	private final LongAdder commits = new LongAdder();
+	private final LongAdder rollbacks = new LongAdder();
+	private final LongAdder readOnlyVotes = new LongAdder();
+	private final LongAdder heuristicFailures = new LongAdder();
+	private final Histogram transactionDuration = new Histogram();
+	private final Map<String, ResourceMetrics> resources = new ConcurrentHashMap<>();
+
+	// Guarded by this
+	private MBeanServer mbeanServer;
+
+	/**
+	 * Constructor.
+	 * @param uniqueName unique name of the transaction manager
+	 * @param activeTransactions supplies the number of active transactions
+	 */
+	public TransactionMetrics(final String uniqueName, final IntSupplier activeTransactions) {
+		this.uniqueName = uniqueName;
+		this.activeTransactions = activeTransactions;
+	}
+
+	/**
+	 * Get the metrics of a resource (created, and registered as MBean, on first use).
+	 * @param resourceName name of the resource
+	 * @return metrics of the resource
+	 */
+	public ResourceMetrics getResource(final String resourceName) {
+		final ResourceMetrics result = resources.get(resourceName);
+		if(result != null) {
+			return result;
+		}
+		return createResource(resourceName);
+	}
+
+	private synchronized ResourceMetrics createResource(final String resourceName) {
+		ResourceMetrics result = resources.get(resourceName);
+		if(result == null) {
+			result = new ResourceMetrics(resourceName);
+			resources.put(resourceName, result);
+			if(mbeanServer != null) {
+				register(result, resourceObjectName(resourceName));
+			}
+		}
+		return result;
+	}
+
+	/**
+	 * Record a committed transaction.
+	 * @param durationInNanos duration from begin to the completion of the commit
+	 */
+	public void committed(final long durationInNanos) {
+		commits.increment();
+		transactionDuration.record(durationInNanos);
+	}
+
+	/**
+	 * Record a rolled back transaction.
+	 */
+	public void rolledBack() {
+		rollbacks.increment();
+	}
+
+	/**
+	 * Record a read-only vote.
+	 */
+	public void readOnlyVote() {
+		readOnlyVotes.increment();
+	}
+
+	/**
+	 * Record a heuristically completed branch.
+	 */
+	public void heuristicFailure() {
+		heuristicFailures.increment();
+	}
+
+	@Override
+	public int getActiveTransactions() {
+		return activeTransactions.getAsInt();
+	}
+
+	@Override
+	public long getCommits() {
+		return commits.sum();
+	}
+
+	@Override
+	public long getRollbacks() {
+		return rollbacks.sum();
+	}
+
+	@Override
+	public long getReadOnlyVotes() {
+		return readOnlyVotes.sum();
+	}
+
+	@Override
+	public long getHeuristicFailures() {
+		return heuristicFailures.sum();
+	}
+
+	@Override
+	public HistogramSnapshot getTransactionDuration() {
+		return transactionDuration.snapshot();
+	}
+
+	/* ***************************** */
+	/* *** JMX ********************* */
+	/* ***************************** */
+
+	/**
+	 * Register the MBeans of the transaction manager and its resources (resources used later are registered when they
+	 * are first used). Failures are logged.
+	 * @param server mbean server
+	 */
+	public synchronized void registerMBeans(final MBeanServer server) {
+		LOGGER.trace("registerMBeans(server={})", server);
+		mbeanServer = server;
+		register(this, objectName());
+		for(final ResourceMetrics resource : resources.values()) {
+			register(resource, resourceObjectName(resource.getName()));
+		}
+	}
+
+	/**
+	 * Unregister the MBeans registered by {@link #registerMBeans(MBeanServer)}. Failures are logged.
+	 */
+	public synchronized void unregisterMBeans() {
+		LOGGER.trace("unregisterMBeans()");
+		if(mbeanServer == null) {
+			return;
+		}
+		unregister(objectName());
+		for(final ResourceMetrics resource : resources.values()) {
+			unregister(resourceObjectName(resource.getName()));
+		}
+		mbeanServer = null;
+	}
+
+	private void register(final Object mbean, final String objectName) {
+		try {
+			mbeanServer.registerMBean(mbean, new ObjectName(objectName));
+		} catch (final JMException e) {
+			LOGGER.warn("Could not register MBean {}", objectName, e);
+		}
+	}
+
+	private void unregister(final String objectName) {
+		try {
+			mbeanServer.unregisterMBean(new ObjectName(objectName));
+		} catch (final JMException e) {
+			LOGGER.warn("Could not unregister MBean {}", objectName, e);
+		}
+	}
+
+	private String objectName() {
+		return DOMAIN + ":type=TransactionManager,name=" + ObjectName.quote(uniqueName);
+	}
+
+	private String resourceObjectName(final String resourceName) {
+		return DOMAIN + ":type=Resource,transactionManager=" + ObjectName.quote(uniqueName) + ",name=" + ObjectName.quote(resourceName);
+	}
+}
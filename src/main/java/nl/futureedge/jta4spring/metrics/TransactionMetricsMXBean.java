@@ -0,0 +1,37 @@
+package nl.futureedge.jta4spring.metrics;
+
+/**
+ * JMX interface of the metrics of a transaction manager.
+ */
+public interface TransactionMetricsMXBean {
+
+	/**
+	 * @return number of active transactions
+	 */
+	int getActiveTransactions();
+
+	/**
+	 * @return number of committed transactions
+	 */
+	long getCommits();
+
+	/**
+	 * @return number of rolled back transactions
+	 */
+	long getRollbacks();
+
+	/**
+	 * @return number of read-only votes (branches that did not need to be committed)
+	 */
+	long getReadOnlyVotes();
+
+	/**
+	 * @return number of heuristically completed branches
+	 */
+	long getHeuristicFailures();
+
+	/**
+	 * @return duration (in microseconds) from begin to the completion of the commit of committed transactions
+	 */
+	HistogramSnapshot getTransactionDuration();
+}
@@ -0,0 +1,4 @@
+/**
+ * Metrics (latency histograms and counters) of the transaction manager; exposed via JMX.
+ */
+package nl.futureedge.jta4spring.metrics;
@@ -0,0 +1,344 @@
+package nl.futureedge.jta4spring.xa;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingQueue;
+
+import javax.transaction.xa.Xid;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import nl.futureedge.jta4spring.xa.TransactionLogRecord.State;
+
+/**
+ * File based transaction log.
+ *
+ * Records are appended to a single file by a writer thread. All records that are queued while the writer thread is
+ * writing are written (and forced to disk) together, so concurrent transactions share one fsync (group commit). When
+ * the file exceeds the maximum file size it is compacted; only commit decisions that have not been completed are kept.
+ * The in-memory set of commit decisions only contains records that have been written. A batch that could not be
+ * written is removed from the file, so a partial record never hides the records written after it.
+ */
+public class FileTransactionLog implements TransactionLog {
+
+	private static final Logger LOGGER = LoggerFactory.getLogger(FileTransactionLog.class);
+
+	private static final long DEFAULT_MAX_FILE_SIZE = 16 * 1024 * 1024;
+	private static final int MAX_RECORD_LENGTH = 64 * 1024;
+
+	private final Path file;
+	private long maxFileSize = DEFAULT_MAX_FILE_SIZE;
+
+	private final Map<ByteBuffer, TransactionLogRecord> commitDecisions = new ConcurrentHashMap<>();
+	private final BlockingQueue<PendingWrite> queue = new LinkedBlockingQueue<>();
+	private FileChannel channel;
+	private Thread writerThread;
+	private volatile boolean closed = true;
+	private volatile boolean failed = false;
+
+	/**
+	 * Constructor.
+	 * @param file log file
+	 */
+	public FileTransactionLog(final File file) {
+		this.file = file.toPath();
+	}
+
+	/**
+	 * Set the size (in bytes) after which the log file is compacted (default 16MB).
+	 * @param maxFileSize maximum file size
+	 */
+	public void setMaxFileSize(final long maxFileSize) {
+		this.maxFileSize = maxFileSize;
+	}
+
+	@Override
+	public synchronized void open() throws IOException {
+		LOGGER.trace("open()");
+		if(!closed) {
+			throw new IllegalStateException("Transaction log already opened");
+		}
+		final Path directory = file.toAbsolutePath().getParent();
+		if(directory != null) {
+			Files.createDirectories(directory);
+		}
+
+		// Read existing records
+		if(Files.exists(file)) {
+			try (InputStream input = new BufferedInputStream(Files.newInputStream(file))) {
+				read(input);
+			}
+		}
+		LOGGER.info("Transaction log {} opened; {} commit decision(s) not completed", file, commitDecisions.size());
+
+		// Rewrite file with commit decisions that have not been completed (discards completed records and a possible partial record)
+		compact();
+
+		closed = false;
+		failed = false;
+		writerThread = new Thread(this::write, "jta4spring-log-writer");
+		writerThread.setDaemon(true);
+		writerThread.start();
+	}
+
+	@Override
+	public synchronized void close() throws IOException {
+		LOGGER.trace("close()");
+		if(closed) {
+			return;
+		}
+		closed = true;
+		queue.add(PendingWrite.STOP);
+		try {
+			writerThread.join();
+		} catch (final InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		channel.close();
+	}
+
+	@Override
+	public void logCommitDecision(final Xid xid, final Collection<String> resourceNames) throws IOException {
+		LOGGER.trace("logCommitDecision(xid={}, resourceNames={})", xid, resourceNames);
+		final PendingWrite pendingWrite = enqueue(new TransactionLogRecord(State.COMMITTING, xid, resourceNames), true);
+		try {
+			pendingWrite.future.join();
+		} catch (final CompletionException e) {
+			// The decision could still reach the disk; mark it completed so recovery does not commit a rolled back transaction
+			try {
+				enqueue(new TransactionLogRecord(State.COMPLETED, xid, Collections.<String>emptyList()), true);
+			} catch (final IOException e2) {
+				LOGGER.warn("Could not mark failed commit decision completed", e2);
+			}
+			throw e.getCause() instanceof IOException ? (IOException) e.getCause() : new IOException("Could not log commit decision", e.getCause());
+		}
+	}
+
+	@Override
+	public void logCompletion(final Xid xid) throws IOException {
+		LOGGER.trace("logCompletion(xid={})", xid);
+		enqueue(new TransactionLogRecord(State.COMPLETED, xid, Collections.<String>emptyList()), false);
+	}
+
+	@Override
+	public Collection<TransactionLogRecord> getCommitDecisions() {
+		return Collections.unmodifiableCollection(new ArrayList<>(commitDecisions.values()));
+	}
+
+	private PendingWrite enqueue(final TransactionLogRecord record, final boolean force) throws IOException {
+		if(closed) {
+			throw new IOException("Transaction log is closed");
+		}
+		if(failed) {
+			throw new IOException("Transaction log could not be written; reopen the transaction log");
+		}
+		final PendingWrite pendingWrite = new PendingWrite(record, force);
+		queue.add(pendingWrite);
+		return pendingWrite;
+	}
+
+	/* ***************************** */
+	/* *** READ ******************** */
+	/* ***************************** */
+
+	private void read(final InputStream input) throws IOException {
+		final DataInputStream dataInput = new DataInputStream(input);
+		while(true) {
+			final byte[] bytes;
+			try {
+				final int length = dataInput.readInt();
+				if(length <= 0 || length > MAX_RECORD_LENGTH) {
+					LOGGER.warn("Invalid record length {} in transaction log; ignoring remainder of log", length);
+					return;
+				}
+				bytes = new byte[length];
+				dataInput.readFully(bytes);
+			} catch (final EOFException e) {
+				// End of log (or partial record written during a failure)
+				return;
+			}
+
+			final TransactionLogRecord record;
+			try {
+				record = TransactionLogRecord.decode(ByteBuffer.wrap(bytes));
+			} catch (final IOException e) {
+				LOGGER.warn("Invalid record in transaction log; ignoring remainder of log", e);
+				return;
+			}
+			apply(record);
+		}
+	}
+
+	private void apply(final TransactionLogRecord record) {
+		if(State.COMMITTING == record.getState()) {
+			commitDecisions.put(record.getKey(), record);
+		} else {
+			commitDecisions.remove(record.getKey());
+		}
+	}
+
+	/* ***************************** */
+	/* *** WRITE ******************* */
+	/* ***************************** */
+
+	private void write() {
+		final List<PendingWrite> batch = new ArrayList<>();
+		boolean stop = false;
+		while(!stop) {
+			try {
+				batch.add(queue.take());
+			} catch (final InterruptedException e) {
+				LOGGER.warn("Transaction log writer interrupted");
+				continue;
+			}
+			queue.drainTo(batch);
+			stop = batch.remove(PendingWrite.STOP);
+
+			if(!batch.isEmpty()) {
+				writeBatch(batch);
+			}
+			batch.clear();
+		}
+
+		// Fail records queued concurrently with closing the log
+		queue.drainTo(batch);
+		for(final PendingWrite pendingWrite : batch) {
+			pendingWrite.future.completeExceptionally(new IOException("Transaction log is closed"));
+		}
+	}
+
+	private void writeBatch(final List<PendingWrite> batch) {
+		boolean force = false;
+		long position = -1;
+		try {
+			position = channel.size();
+			final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+			for(final PendingWrite pendingWrite : batch) {
+				writeRecord(bytes, pendingWrite.record);
+				force |= pendingWrite.force;
+			}
+			final ByteBuffer buffer = ByteBuffer.wrap(bytes.toByteArray());
+			while(buffer.hasRemaining()) {
+				channel.write(buffer);
+			}
+			if(force) {
+				channel.force(false);
+			}
+			LOGGER.debug("Written {} record(s) to transaction log (forced: {})", batch.size(), force);
+		} catch (final IOException e) {
+			LOGGER.error("Could not write to transaction log", e);
+			truncate(position);
+			for(final PendingWrite pendingWrite : batch) {
+				pendingWrite.future.completeExceptionally(e);
+			}
+			return;
+		}
+
+		for(final PendingWrite pendingWrite : batch) {
+			apply(pendingWrite.record);
+			pendingWrite.future.complete(null);
+		}
+
+		try {
+			if(channel.size() > maxFileSize) {
+				compact();
+			}
+		} catch (final IOException e) {
+			LOGGER.warn("Could not compact transaction log", e);
+		}
+	}
+
+	/**
+	 * Remove a (partially) written batch; records appended after a partial record would be lost on read.
+	 * @param position size of the file before the batch was written
+	 */
+	private void truncate(final long position) {
+		if(position < 0) {
+			return;
+		}
+		try {
+			channel.truncate(position);
+			channel.force(false);
+		} catch (final IOException e) {
+			LOGGER.error("Could not remove failed records from transaction log; no records are written anymore", e);
+			failed = true;
+		}
+	}
+
+	private void compact() throws IOException {
+		LOGGER.debug("Compacting transaction log {}", file);
+		if(channel != null) {
+			channel.close();
+		}
+
+		final Path compactedFile = file.resolveSibling(file.getFileName() + ".tmp");
+		try (FileChannel compactedChannel = FileChannel.open(compactedFile, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+			final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+			for(final TransactionLogRecord record : commitDecisions.values()) {
+				writeRecord(bytes, record);
+			}
+			final ByteBuffer buffer = ByteBuffer.wrap(bytes.toByteArray());
+			while(buffer.hasRemaining()) {
+				compactedChannel.write(buffer);
+			}
+			compactedChannel.force(true);
+		}
+		Files.move(compactedFile, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+
+		channel = openChannel(file);
+	}
+
+	/**
+	 * Open the log file to append records to.
+	 * @param path log file
+	 * @return channel
+	 * @throws IOException if the file could not be opened
+	 */
+	protected FileChannel openChannel(final Path path) throws IOException {
+		return FileChannel.open(path, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+	}
+
+	private static void writeRecord(final ByteArrayOutputStream bytes, final TransactionLogRecord record) throws IOException {
+		final ByteBuffer recordBuffer = ByteBuffer.allocate(4 + record.getEncodedLength());
+		recordBuffer.putInt(record.getEncodedLength());
+		record.encode(recordBuffer);
+		bytes.write(recordBuffer.array());
+	}
+
+	/**
+	 * Record waiting to be written by the writer thread.
+	 */
+	private static final class PendingWrite {
+		private static final PendingWrite STOP = new PendingWrite(null, false);
+
+		private final TransactionLogRecord record;
+		private final boolean force;
+		private final CompletableFuture<Void> future = new CompletableFuture<>();
+
+		PendingWrite(final TransactionLogRecord record, final boolean force) {
+			this.record = record;
+			this.force = force;
+		}
+	}
+}
@@ -0,0 +1,27 @@
+package nl.futureedge.jta4spring.xa;
+
+import javax.transaction.xa.XAException;
+
+/**
+ * Resource without xa support that participates in a transaction as last resource (last resource commit).
+ *
+ * All xa branches of the transaction are prepared first; then the last resource is committed and its outcome decides
+ * the outcome of the transaction. A transaction can contain at most one last resource. The last resource can not be
+ * recovered: if the transaction manager fails between the commit of the last resource and the logging of the commit
+ * decision, the prepared xa branches are rolled back by recovery.
+ */
+public interface LastResource {
+
+	/**
+	 * Commit the local transaction of the resource.
+	 * @throws XAException if the local transaction could not be committed (an XA_RB* error code if the local
+	 *             transaction is rolled back, XAER_RMFAIL if the outcome is unknown)
+	 */
+	void commit() throws XAException;
+
+	/**
+	 * Rollback the local transaction of the resource.
+	 * @throws XAException if the local transaction could not be rolled back
+	 */
+	void rollback() throws XAException;
+}
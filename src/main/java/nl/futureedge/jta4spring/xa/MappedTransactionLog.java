@@ -0,0 +1,409 @@
+package nl.futureedge.jta4spring.xa;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.zip.CRC32;
+
+import javax.transaction.xa.Xid;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import nl.futureedge.jta4spring.xa.TransactionLogRecord.State;
+
+/**
+ * Memory-mapped transaction log.
+ *
+ * Records are appended to pre-allocated segment files ({@code <name>-<number>.log}) that are mapped into memory;
+ * appending a record is a copy into the mapped buffer. Every record is prefixed by its length and a CRC32 checksum of
+ * its contents, so a partially written record is detected (and ignored) when the log is read. Forcing the segment to
+ * disk is shared between concurrent callers: a caller whose record has already been forced by another caller does not
+ * force again (group commit).
+ *
+ * When a record does not fit in the current segment a new segment is started; the commit decisions that have not been
+ * completed are copied to the new segment, after which the older segments are deleted. The next segment file is
+ * pre-allocated when the current segment is half full, outside the lock of the log, so appending records and forcing
+ * the log are not blocked while the file is written.
+ */
+public class MappedTransactionLog implements TransactionLog {
+
+	private static final Logger LOGGER = LoggerFactory.getLogger(MappedTransactionLog.class);
+
+	private static final int DEFAULT_SEGMENT_SIZE = 4 * 1024 * 1024;
+	private static final int RECORD_HEADER_LENGTH = 8;
+	private static final int PREALLOCATION_CHUNK_SIZE = 64 * 1024;
+
+	private final File directory;
+	private final String name;
+	private final Pattern segmentFilePattern;
+	private int segmentSize = DEFAULT_SEGMENT_SIZE;
+
+	private final Map<ByteBuffer, TransactionLogRecord> commitDecisions = new ConcurrentHashMap<>();
+	private final Object forceLock = new Object();
+	private final AtomicLong forcedPosition = new AtomicLong();
+	private final Object preallocationLock = new Object();
+	// Written while holding preallocationLock
+	private volatile long preallocatedSegmentNumber;
+
+	// Guarded by this
+	private boolean closed = true;
+	private MappedByteBuffer segment;
+	private long segmentNumber;
+	private int segmentOffset;
+	private long writePosition;
+	private boolean preallocationStarted;
+
+	/**
+	 * Constructor.
+	 * @param directory directory containing the segment files
+	 * @param name name of the log (used as prefix of the segment files)
+	 */
+	public MappedTransactionLog(final File directory, final String name) {
+		this.directory = directory;
+		this.name = name;
+		segmentFilePattern = Pattern.compile(Pattern.quote(name) + "-(\\d+)\\.log");
+	}
+
+	/**
+	 * Set the size (in bytes) of a segment file (default 4MB).
+	 * @param segmentSize segment size
+	 */
+	public void setSegmentSize(final int segmentSize) {
+		this.segmentSize = segmentSize;
+	}
+
+	@Override
+	public synchronized void open() throws IOException {
+		LOGGER.trace("open()");
+		if(!closed) {
+			throw new IllegalStateException("Transaction log already opened");
+		}
+		Files.createDirectories(directory.toPath());
+
+		// Read existing segments (in order)
+		final NavigableMap<Long, File> segmentFiles = listSegmentFiles();
+		for(final File segmentFile : segmentFiles.values()) {
+			read(segmentFile);
+		}
+		LOGGER.info("Transaction log {} opened; {} commit decision(s) not completed", name, commitDecisions.size());
+
+		// Start a new segment (copies the commit decisions that have not been completed and deletes the read segments)
+		segmentNumber = segmentFiles.isEmpty() ? 0 : segmentFiles.lastKey();
+		preallocatedSegmentNumber = segmentNumber;
+		preallocate(segmentNumber + 1);
+		startSegment();
+		closed = false;
+	}
+
+	@Override
+	public synchronized void close() throws IOException {
+		LOGGER.trace("close()");
+		if(closed) {
+			return;
+		}
+		closed = true;
+		force(segment);
+		segment = null;
+	}
+
+	@Override
+	public void logCommitDecision(final Xid xid, final Collection<String> resourceNames) throws IOException {
+		LOGGER.trace("logCommitDecision(xid={}, resourceNames={})", xid, resourceNames);
+		final long position = append(new TransactionLogRecord(State.COMMITTING, xid, resourceNames));
+		try {
+			force(position);
+		} catch (final IOException e) {
+			// The decision could still reach the disk; mark it completed so recovery does not commit a rolled back transaction
+			append(new TransactionLogRecord(State.COMPLETED, xid, Collections.<String>emptyList()));
+			throw e;
+		}
+	}
+
+	@Override
+	public void logCompletion(final Xid xid) throws IOException {
+		LOGGER.trace("logCompletion(xid={})", xid);
+		append(new TransactionLogRecord(State.COMPLETED, xid, Collections.<String>emptyList()));
+	}
+
+	@Override
+	public Collection<TransactionLogRecord> getCommitDecisions() {
+		return Collections.unmodifiableCollection(new ArrayList<>(commitDecisions.values()));
+	}
+
+	private void apply(final TransactionLogRecord record) {
+		if(State.COMMITTING == record.getState()) {
+			commitDecisions.put(record.getKey(), record);
+		} else {
+			commitDecisions.remove(record.getKey());
+		}
+	}
+
+	/* ***************************** */
+	/* *** SEGMENTS **************** */
+	/* ***************************** */
+
+	private NavigableMap<Long, File> listSegmentFiles() {
+		final NavigableMap<Long, File> result = new TreeMap<>();
+		final File[] files = directory.listFiles();
+		if(files != null) {
+			for(final File file : files) {
+				final Matcher matcher = segmentFilePattern.matcher(file.getName());
+				if(matcher.matches()) {
+					result.put(Long.valueOf(matcher.group(1)), file);
+				}
+			}
+		}
+		return result;
+	}
+
+	private File segmentFile(final long number) {
+		return new File(directory, name + "-" + number + ".log");
+	}
+
+	/**
+	 * Start a new segment; copies the commit decisions that have not been completed to the new segment and deletes all
+	 * older segments. The segment file should have been pre-allocated.
+	 */
+	private void startSegment() throws IOException {
+		if(segment != null) {
+			force(segment);
+		}
+
+		segmentNumber++;
+		LOGGER.debug("Starting transaction log segment {}", segmentNumber);
+		segment = map(segmentFile(segmentNumber));
+		segmentOffset = 0;
+		preallocationStarted = false;
+
+		for(final TransactionLogRecord record : commitDecisions.values()) {
+			if(!fits(record)) {
+				throw new IOException("Segment size too small to contain all commit decisions that have not been completed");
+			}
+			write(record);
+		}
+		force(segment);
+		forcedPosition.accumulateAndGet(writePosition, Math::max);
+
+		for(final Map.Entry<Long, File> segmentFile : listSegmentFiles().entrySet()) {
+			if(segmentFile.getKey() < segmentNumber) {
+				LOGGER.debug("Deleting transaction log segment {}", segmentFile.getKey());
+				Files.delete(segmentFile.getValue().toPath());
+			}
+		}
+	}
+
+	private MappedByteBuffer map(final File file) throws IOException {
+		try (RandomAccessFile randomAccessFile = new RandomAccessFile(file, "rw")) {
+			return randomAccessFile.getChannel().map(MapMode.READ_WRITE, 0, segmentSize);
+		}
+	}
+
+	/**
+	 * Pre-allocate (write zeros to) the file of a segment, so forcing the segment does not need to update file metadata;
+	 * does nothing if the segment has already been pre-allocated. Not called while holding the lock of the log.
+	 * @param number segment number
+	 */
+	private void preallocate(final long number) throws IOException {
+		synchronized(preallocationLock) {
+			if(preallocatedSegmentNumber >= number) {
+				return;
+			}
+			LOGGER.debug("Pre-allocating transaction log segment {}", number);
+			try (RandomAccessFile randomAccessFile = new RandomAccessFile(segmentFile(number), "rw")) {
+				final FileChannel channel = randomAccessFile.getChannel();
+				channel.truncate(0);
+				final ByteBuffer zeros = ByteBuffer.allocate(PREALLOCATION_CHUNK_SIZE);
+				long position = 0;
+				while(position < segmentSize) {
+					((Buffer) zeros).clear();
+					((Buffer) zeros).limit((int) Math.min(PREALLOCATION_CHUNK_SIZE, segmentSize - position));
+					position += channel.write(zeros, position);
+				}
+				channel.force(true);
+			}
+			preallocatedSegmentNumber = number;
+		}
+	}
+
+	/* ***************************** */
+	/* *** READ ******************** */
+	/* ***************************** */
+
+	private void read(final File file) throws IOException {
+		LOGGER.debug("Reading transaction log segment {}", file);
+		final MappedByteBuffer buffer;
+		try (RandomAccessFile randomAccessFile = new RandomAccessFile(file, "r")) {
+			buffer = randomAccessFile.getChannel().map(MapMode.READ_ONLY, 0, randomAccessFile.length());
+		}
+
+		final CRC32 crc = new CRC32();
+		while(buffer.remaining() >= RECORD_HEADER_LENGTH) {
+			final int length = buffer.getInt();
+			if(length == 0) {
+				// End of segment (pre-allocated space)
+				return;
+			}
+			final int checksum = buffer.getInt();
+			if(length < 0 || length > buffer.remaining()) {
+				LOGGER.warn("Invalid record length {} in transaction log segment {}; ignoring remainder of segment", length, file);
+				return;
+			}
+
+			final byte[] bytes = new byte[length];
+			buffer.get(bytes);
+			crc.reset();
+			crc.update(bytes, 0, length);
+			if((int) crc.getValue() != checksum) {
+				LOGGER.warn("Invalid checksum in transaction log segment {}; ignoring remainder of segment", file);
+				return;
+			}
+
+			try {
+				apply(TransactionLogRecord.decode(ByteBuffer.wrap(bytes)));
+			} catch (final IOException e) {
+				LOGGER.warn("Invalid record in transaction log segment {}; ignoring remainder of segment", file, e);
+				return;
+			}
+		}
+	}
+
+	/* ***************************** */
+	/* *** WRITE ******************* */
+	/* ***************************** */
+
+	/**
+	 * Append a record to the log. When the record does not fit in the current segment the next segment is started; the
+	 * next segment is pre-allocated first (if it has not been yet) without holding the lock of the log.
+	 * @param record record
+	 * @return log position after the record (used to force the log)
+	 * @throws IOException if the log is closed or the record could not be written
+	 */
+	private long append(final TransactionLogRecord record) throws IOException {
+		while(true) {
+			final long position;
+			final long nextSegmentNumber;
+			synchronized(this) {
+				if(closed) {
+					throw new IOException("Transaction log is closed");
+				}
+				if(RECORD_HEADER_LENGTH + record.getEncodedLength() > segmentSize) {
+					throw new IOException("Record does not fit in a segment");
+				}
+				nextSegmentNumber = segmentNumber + 1;
+				if(!fits(record)) {
+					if(preallocatedSegmentNumber < nextSegmentNumber) {
+						// Pre-allocate outside the lock and retry
+						position = -1;
+					} else {
+						startSegment();
+						if(!fits(record)) {
+							throw new IOException("Segment size too small to contain all commit decisions that have not been completed");
+						}
+						position = appendToSegment(record);
+					}
+				} else {
+					position = appendToSegment(record);
+				}
+				if(position != -1 && (preallocationStarted || segmentOffset < segmentSize / 2)) {
+					return position;
+				}
+				preallocationStarted = true;
+			}
+
+			if(position == -1) {
+				preallocate(nextSegmentNumber);
+			} else {
+				// The current segment is half full; pre-allocate the next segment
+				try {
+					preallocate(nextSegmentNumber);
+				} catch (final IOException e) {
+					LOGGER.warn("Could not pre-allocate transaction log segment {}; retrying when the segment is started", nextSegmentNumber, e);
+				}
+				return position;
+			}
+		}
+	}
+
+	private long appendToSegment(final TransactionLogRecord record) {
+		write(record);
+		apply(record);
+		return writePosition;
+	}
+
+	private boolean fits(final TransactionLogRecord record) {
+		return segmentOffset + RECORD_HEADER_LENGTH + record.getEncodedLength() <= segmentSize;
+	}
+
+	private void write(final TransactionLogRecord record) {
+		final int length = record.getEncodedLength();
+		final ByteBuffer bytes = ByteBuffer.allocate(length);
+		record.encode(bytes);
+		final CRC32 crc = new CRC32();
+		crc.update(bytes.array(), 0, length);
+
+		// Write contents and checksum before the length; a record is only read when its length is written
+		final ByteBuffer buffer = segment.duplicate();
+		((Buffer) buffer).position(segmentOffset + RECORD_HEADER_LENGTH);
+		buffer.put(bytes.array());
+		buffer.putInt(segmentOffset + 4, (int) crc.getValue());
+		buffer.putInt(segmentOffset, length);
+
+		segmentOffset += RECORD_HEADER_LENGTH + length;
+		writePosition += RECORD_HEADER_LENGTH + length;
+	}
+
+	/**
+	 * Force the log to disk up to (at least) the given position.
+	 * @param position log position
+	 */
+	private void force(final long position) throws IOException {
+		if(forcedPosition.get() >= position) {
+			return;
+		}
+		synchronized(forceLock) {
+			// Another caller could have forced the log while waiting for the lock
+			if(forcedPosition.get() >= position) {
+				return;
+			}
+
+			final MappedByteBuffer forceSegment;
+			final long forcePosition;
+			synchronized(this) {
+				if(closed) {
+					throw new IOException("Transaction log is closed");
+				}
+				forceSegment = segment;
+				forcePosition = writePosition;
+			}
+			// Segments before the current segment are forced when the segment is started
+			force(forceSegment);
+			forcedPosition.accumulateAndGet(forcePosition, Math::max);
+		}
+	}
+
+	/**
+	 * Force a segment to disk.
+	 * @param forceSegment segment
+	 * @throws IOException if the segment could not be forced
+	 */
+	protected void force(final MappedByteBuffer forceSegment) throws IOException {
+		forceSegment.force();
+	}
+}
@@ -0,0 +1,37 @@
+package nl.futureedge.jta4spring.xa;
+
+import javax.transaction.xa.XAException;
+import javax.transaction.xa.XAResource;
+
+/**
+ * Resource that can be recovered; provides (temporary) access to a xa resource of the resource manager so in-doubt
+ * branches can be completed.
+ */
+public interface RecoverableResource {
+
+	/**
+	 * @return name of the resource (as logged with commit decisions)
+	 */
+	String getName();
+
+	/**
+	 * Execute the callback with a xa resource of the resource manager; the xa resource (and its connection) is released
+	 * when the callback returns.
+	 * @param callback callback
+	 * @throws XAException if no xa resource could be obtained or thrown by the callback
+	 */
+	void recover(XAResourceCallback callback) throws XAException;
+
+	/**
+	 * Callback to execute recovery on a xa resource.
+	 */
+	@FunctionalInterface
+	interface XAResourceCallback {
+		/**
+		 * Execute recovery.
+		 * @param xaResource xa resource
+		 * @throws XAException thrown by the xa resource
+		 */
+		void doWithXAResource(XAResource xaResource) throws XAException;
+	}
+}
@@ -0,0 +1,49 @@
+package nl.futureedge.jta4spring.xa;
+
+import java.io.IOException;
+import java.util.Collection;
+
+import javax.transaction.xa.Xid;
+
+/**
+ * Transaction log; records commit decisions so in-doubt branches can be completed after a failure.
+ *
+ * The transaction manager logs a commit decision after all branches have been prepared (and before the first branch is
+ * committed) and logs the completion after all branches have been committed. Transactions without a logged commit
+ * decision are presumed to be rolled back.
+ */
+public interface TransactionLog {
+
+	/**
+	 * Open the log.
+	 * @throws IOException if the log could not be opened or read
+	 */
+	void open() throws IOException;
+
+	/**
+	 * Close the log.
+	 * @throws IOException if the log could not be closed
+	 */
+	void close() throws IOException;
+
+	/**
+	 * Log the commit decision of a transaction; the decision must be durable when this method returns.
+	 * @param xid xid of the transaction
+	 * @param resourceNames names of the resources participating in the transaction
+	 * @throws IOException if the decision could not be logged
+	 */
+	void logCommitDecision(Xid xid, Collection<String> resourceNames) throws IOException;
+
+	/**
+	 * Log the completion of a transaction (all branches committed); the completion does not need to be durable when this
+	 * method returns.
+	 * @param xid xid of the transaction
+	 * @throws IOException if the completion could not be logged
+	 */
+	void logCompletion(Xid xid) throws IOException;
+
+	/**
+	 * @return commit decisions that have been logged, but have not been completed
+	 */
+	Collection<TransactionLogRecord> getCommitDecisions();
+}
@@ -0,0 +1,171 @@
+package nl.futureedge.jta4spring.xa;
+
+import java.io.IOException;
+import java.nio.Buffer;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+
+import javax.transaction.xa.Xid;
+
+/**
+ * Transaction log record.
+ *
+ * Binary format: state (byte), format id (int), global transaction id length (short), global transaction id (bytes),
+ * number of resource names (short) and per resource name the length (short) and the name (UTF-8).
+ */
+public final class TransactionLogRecord {
+
+	/**
+	 * State of the transaction.
+	 */
+	public enum State {
+		/** Commit decision; all branches are prepared and are to be committed. */
+		COMMITTING,
+		/** All branches have been committed. */
+		COMPLETED;
+	}
+
+	private final State state;
+	private final int formatId;
+	private final byte[] globalTransactionId;
+	private final List<String> resourceNames;
+	private final byte[][] encodedResourceNames;
+
+	/**
+	 * Constructor.
+	 * @param state state
+	 * @param xid xid of the transaction
+	 * @param resourceNames names of the resources participating in the transaction
+	 */
+	public TransactionLogRecord(final State state, final Xid xid, final Collection<String> resourceNames) {
+		this(state, xid.getFormatId(), xid.getGlobalTransactionId(), resourceNames);
+	}
+
+	private TransactionLogRecord(final State state, final int formatId, final byte[] globalTransactionId, final Collection<String> resourceNames) {
+		this.state = state;
+		this.formatId = formatId;
+		this.globalTransactionId = globalTransactionId;
+		this.resourceNames = Collections.unmodifiableList(new ArrayList<>(resourceNames));
+		encodedResourceNames = new byte[this.resourceNames.size()][];
+		for(int i = 0; i < encodedResourceNames.length; i++) {
+			encodedResourceNames[i] = this.resourceNames.get(i).getBytes(StandardCharsets.UTF_8);
+		}
+	}
+
+	/**
+	 * @return state
+	 */
+	public State getState() {
+		return state;
+	}
+
+	/**
+	 * @return format id of the xid of the transaction
+	 */
+	public int getFormatId() {
+		return formatId;
+	}
+
+	/**
+	 * @return global transaction id of the xid of the transaction
+	 */
+	public byte[] getGlobalTransactionId() {
+		return globalTransactionId.clone();
+	}
+
+	/**
+	 * @return names of the resources participating in the transaction
+	 */
+	public List<String> getResourceNames() {
+		return resourceNames;
+	}
+
+	/**
+	 * @return key identifying the transaction (format id and global transaction id); records of the same transaction have equal keys
+	 */
+	public ByteBuffer getKey() {
+		return key(formatId, globalTransactionId);
+	}
+
+	/**
+	 * @param xid xid
+	 * @return key identifying the transaction of the xid (ignores the branch qualifier)
+	 */
+	public static ByteBuffer key(final Xid xid) {
+		return key(xid.getFormatId(), xid.getGlobalTransactionId());
+	}
+
+	private static ByteBuffer key(final int formatId, final byte[] globalTransactionId) {
+		final ByteBuffer key = ByteBuffer.allocate(4 + globalTransactionId.length);
+		key.putInt(formatId).put(globalTransactionId);
+		((Buffer) key).flip();
+		return key.asReadOnlyBuffer();
+	}
+
+	/**
+	 * @return length (in bytes) of the encoded record
+	 */
+	public int getEncodedLength() {
+		int length = 1 + 4 + 2 + globalTransactionId.length + 2;
+		for(final byte[] encodedResourceName : encodedResourceNames) {
+			length += 2 + encodedResourceName.length;
+		}
+		return length;
+	}
+
+	/**
+	 * Encode the record (at the current position of the buffer).
+	 * @param buffer buffer; must have at least {@link #getEncodedLength()} bytes remaining
+	 */
+	public void encode(final ByteBuffer buffer) {
+		buffer.put((byte) state.ordinal());
+		buffer.putInt(formatId);
+		buffer.putShort((short) globalTransactionId.length);
+		buffer.put(globalTransactionId);
+		buffer.putShort((short) encodedResourceNames.length);
+		for(final byte[] encodedResourceName : encodedResourceNames) {
+			buffer.putShort((short) encodedResourceName.length);
+			buffer.put(encodedResourceName);
+		}
+	}
+
+	/**
+	 * Decode a record (from the current position of the buffer).
+	 * @param buffer buffer
+	 * @return record
+	 * @throws IOException if the buffer does not contain a valid record
+	 */
+	public static TransactionLogRecord decode(final ByteBuffer buffer) throws IOException {
+		try {
+			final int stateOrdinal = buffer.get();
+			if(stateOrdinal < 0 || stateOrdinal >= State.values().length) {
+				throw new IOException("Invalid state in transaction log record: " + stateOrdinal);
+			}
+			final int formatId = buffer.getInt();
+			final byte[] globalTransactionId = new byte[buffer.getShort() & 0xFFFF];
+			buffer.get(globalTransactionId);
+			final int resourceNameCount = buffer.getShort() & 0xFFFF;
+			final List<String> resourceNames = new ArrayList<>(resourceNameCount);
+			for(int i = 0; i < resourceNameCount; i++) {
+				final byte[] encodedResourceName = new byte[buffer.getShort() & 0xFFFF];
+				buffer.get(encodedResourceName);
+				resourceNames.add(new String(encodedResourceName, StandardCharsets.UTF_8));
+			}
+			return new TransactionLogRecord(State.values()[stateOrdinal], formatId, globalTransactionId, resourceNames);
+		} catch (final BufferUnderflowException e) {
+			throw new IOException("Incomplete transaction log record", e);
+		}
+	}
+
+	@Override
+	public String toString() {
+		return "TransactionLogRecord [state=" + state + ", formatId=" + formatId + ", globalTransactionId="
+				+ Arrays.toString(globalTransactionId) + ", resourceNames=" + resourceNames + "]";
+	}
+}
@@ -0,0 +1,50 @@
+package nl.futureedge.jta4spring;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class HashedWheelTimerTest {
+
+	private static final long TICK = TimeUnit.MILLISECONDS.toNanos(10);
+
+	@Test
+	public void shortTimeoutAfterWorkerAdvanced() throws Exception {
+		final AtomicLong clock = new AtomicLong();
+		final HashedWheelTimer timer = new HashedWheelTimer("test-timer", 10, TimeUnit.MILLISECONDS, 512, clock::get);
+		try {
+			// Let the worker expire tick 3
+			final CountDownLatch advanced = new CountDownLatch(1);
+			timer.schedule(advanced::countDown, 3 * TICK, TimeUnit.NANOSECONDS);
+			clock.set(3 * TICK);
+			Assert.assertTrue(advanced.await(1, TimeUnit.SECONDS));
+
+			// Timeout shorter than one tick; its deadline maps to the tick the worker has already expired
+			final CountDownLatch expired = new CountDownLatch(1);
+			timer.schedule(expired::countDown, 0, TimeUnit.NANOSECONDS);
+			clock.set(4 * TICK);
+			Assert.assertTrue("Timeout expired a revolution late", expired.await(1, TimeUnit.SECONDS));
+		} finally {
+			timer.stop();
+		}
+	}
+
+	@Test
+	public void cancel() throws Exception {
+		final AtomicLong clock = new AtomicLong();
+		final HashedWheelTimer timer = new HashedWheelTimer("test-timer", 10, TimeUnit.MILLISECONDS, 512, clock::get);
+		try {
+			final CountDownLatch expired = new CountDownLatch(1);
+			final HashedWheelTimer.Timeout timeout = timer.schedule(expired::countDown, 5 * TICK, TimeUnit.NANOSECONDS);
+			Assert.assertTrue(timeout.cancel());
+			clock.set(10 * TICK);
+			Assert.assertFalse(expired.await(200, TimeUnit.MILLISECONDS));
+			Assert.assertFalse(timeout.cancel());
+		} finally {
+			timer.stop();
+		}
+	}
+}
@@ -0,0 +1,94 @@
+package nl.futureedge.jta4spring;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class JtaTransactionIdAllocatorTest {
+
+	@Test
+	public void blocksPerThread() throws Exception {
+		final JtaTransactionIdAllocator allocator = new JtaTransactionIdAllocator(0);
+		final Set<Long> ids = ConcurrentHashMap.newKeySet();
+		final List<Long> firstIds = Collections.synchronizedList(new ArrayList<>());
+		final List<Long> lastIds = Collections.synchronizedList(new ArrayList<>());
+		final CountDownLatch start = new CountDownLatch(1);
+		final List<Thread> threads = new ArrayList<>();
+		for(int i = 0; i < 4; i++) {
+			threads.add(new Thread(() -> {
+				try {
+					start.await(5, TimeUnit.SECONDS);
+				} catch (final InterruptedException e) {
+					Thread.currentThread().interrupt();
+					return;
+				}
+				long previous = -1;
+				for(int j = 0; j < 1000; j++) {
+					final long id = allocator.allocate();
+					if(previous == -1) {
+						firstIds.add(id);
+					} else if(id != previous + 1) {
+						// Ids of a thread are consecutive within its block
+						return;
+					}
+					ids.add(id);
+					previous = id;
+				}
+				lastIds.add(previous);
+			}));
+		}
+		for(final Thread thread : threads) {
+			thread.start();
+		}
+		start.countDown();
+		for(final Thread thread : threads) {
+			thread.join(5000);
+		}
+
+		// Every thread leased one block of 1024 ids from the shared counter
+		Assert.assertEquals(4000, ids.size());
+		Assert.assertEquals(4, lastIds.size());
+		final Set<Long> blocks = new TreeSet<>(firstIds);
+		Assert.assertEquals(new TreeSet<>(Arrays.asList(0L, 1024L, 2048L, 3072L)), blocks);
+
+		// The next block starts after the leased blocks
+		final Set<Long> next = new HashSet<>();
+		final Thread thread = new Thread(() -> next.add(allocator.allocate()));
+		thread.start();
+		thread.join(5000);
+		Assert.assertEquals(Collections.singleton(4096L), next);
+	}
+
+	@Test
+	public void nextBlock() {
+		final JtaTransactionIdAllocator allocator = new JtaTransactionIdAllocator(100);
+		for(long expected = 100; expected < 100 + 1024; expected++) {
+			Assert.assertEquals(expected, allocator.allocate());
+		}
+		// The block is exhausted; the next block is leased from the shared counter
+		Assert.assertEquals(100 + 1024, allocator.allocate());
+	}
+
+	@Test
+	public void bootEpoch() {
+		final long before = System.currentTimeMillis();
+		final JtaTransactionIdAllocator allocator = new JtaTransactionIdAllocator();
+		final long after = System.currentTimeMillis();
+
+		// The first id is the boot time shifted left by 20 bits
+		final long id = allocator.allocate();
+		Assert.assertEquals(0, id & ((1 << 20) - 1));
+		Assert.assertTrue(id >>> 20 >= before);
+		Assert.assertTrue(id >>> 20 <= after);
+	}
+}
@@ -0,0 +1,177 @@
+package nl.futureedge.jta4spring;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import javax.transaction.HeuristicMixedException;
+import javax.transaction.RollbackException;
+import javax.transaction.Status;
+import javax.transaction.Synchronization;
+import javax.transaction.xa.XAException;
+import javax.transaction.xa.XAResource;
+import javax.transaction.xa.Xid;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+public class JtaTransactionTest {
+
+	private JtaMonitor monitor;
+
+	@Before
+	public void setup() throws Exception {
+		monitor = new JtaMonitor();
+		monitor.setUniqueName("test");
+		monitor.setJmxEnabled(false);
+		monitor.afterPropertiesSet();
+	}
+
+	@After
+	public void destroy() throws Exception {
+		monitor.destroy();
+	}
+
+	@Test
+	public void onePhaseCommit() throws Exception {
+		final RecordingXAResource xaResource = new RecordingXAResource(0);
+		final RecordingSynchronization synchronization = begin(xaResource);
+
+		monitor.getTransaction().commit();
+
+		Assert.assertEquals(Arrays.asList("start", "end", "commit(onePhase=true)"), xaResource.calls);
+		Assert.assertEquals(Collections.singletonList(Status.STATUS_COMMITTED), synchronization.statuses);
+		Assert.assertEquals(Status.STATUS_NO_TRANSACTION, monitor.getStatus());
+	}
+
+	@Test
+	public void onePhaseCommitRolledBack() throws Exception {
+		final RecordingXAResource xaResource = new RecordingXAResource(XAException.XA_RBROLLBACK);
+		final RecordingSynchronization synchronization = begin(xaResource);
+
+		try {
+			monitor.getTransaction().commit();
+			Assert.fail("Commit should have failed");
+		} catch (final RollbackException e) {
+			// Expected
+		}
+
+		// The branch is rolled back by the resource manager; no rollback is issued
+		Assert.assertEquals(Arrays.asList("start", "end", "commit(onePhase=true)"), xaResource.calls);
+		Assert.assertEquals(Collections.singletonList(Status.STATUS_ROLLEDBACK), synchronization.statuses);
+		Assert.assertEquals(Status.STATUS_NO_TRANSACTION, monitor.getStatus());
+	}
+
+	@Test
+	public void onePhaseCommitHeuristicMixed() throws Exception {
+		final RecordingXAResource xaResource = new RecordingXAResource(XAException.XA_HEURMIX);
+		final RecordingSynchronization synchronization = begin(xaResource);
+
+		try {
+			monitor.getTransaction().commit();
+			Assert.fail("Commit should have failed");
+		} catch (final HeuristicMixedException e) {
+			// Expected
+		}
+
+		Assert.assertEquals(Arrays.asList("start", "end", "commit(onePhase=true)"), xaResource.calls);
+		Assert.assertEquals(Collections.singletonList(Status.STATUS_UNKNOWN), synchronization.statuses);
+		Assert.assertEquals(Status.STATUS_NO_TRANSACTION, monitor.getStatus());
+	}
+
+	private RecordingSynchronization begin(final XAResource xaResource) throws Exception {
+		monitor.begin();
+		final JtaTransaction transaction = monitor.getTransaction();
+		transaction.enlistResource(xaResource, "resource");
+		final RecordingSynchronization synchronization = new RecordingSynchronization();
+		transaction.registerSynchronization(synchronization);
+		return synchronization;
+	}
+
+	/**
+	 * Synchronization that records the status passed to after completion.
+	 */
+	private static final class RecordingSynchronization implements Synchronization {
+		private final List<Integer> statuses = new ArrayList<>();
+
+		@Override
+		public void beforeCompletion() {
+			// Nothing
+		}
+
+		@Override
+		public void afterCompletion(final int status) {
+			statuses.add(status);
+		}
+	}
+
+	/**
+	 * XA resource that records the calls that complete a branch; the commit fails with the given error code (0 to
+	 * succeed).
+	 */
+	private static final class RecordingXAResource implements XAResource {
+		private final int commitErrorCode;
+		private final List<String> calls = new ArrayList<>();
+
+		RecordingXAResource(final int commitErrorCode) {
+			this.commitErrorCode = commitErrorCode;
+		}
+
+		@Override
+		public void start(final Xid xid, final int flags) {
+			calls.add("start");
+		}
+
+		@Override
+		public void end(final Xid xid, final int flags) {
+			calls.add("end");
+		}
+
+		@Override
+		public int prepare(final Xid xid) {
+			calls.add("prepare");
+			return XA_OK;
+		}
+
+		@Override
+		public void commit(final Xid xid, final boolean onePhase) throws XAException {
+			calls.add("commit(onePhase=" + onePhase + ")");
+			if(commitErrorCode != 0) {
+				throw new XAException(commitErrorCode);
+			}
+		}
+
+		@Override
+		public void rollback(final Xid xid) {
+			calls.add("rollback");
+		}
+
+		@Override
+		public void forget(final Xid xid) {
+			calls.add("forget");
+		}
+
+		@Override
+		public Xid[] recover(final int flag) {
+			return new Xid[0];
+		}
+
+		@Override
+		public boolean isSameRM(final XAResource xaResource) {
+			return false;
+		}
+
+		@Override
+		public int getTransactionTimeout() {
+			return 0;
+		}
+
+		@Override
+		public boolean setTransactionTimeout(final int seconds) {
+			return false;
+		}
+	}
+}
@@ -0,0 +1,52 @@
+package nl.futureedge.jta4spring;
+
+import java.nio.charset.StandardCharsets;
+
+import javax.transaction.xa.Xid;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class JtaXidTest {
+
+	@Test
+	public void isOwnedBy() {
+		final byte[] app = JtaXid.encodeUniqueName("app");
+		final byte[] app2 = JtaXid.encodeUniqueName("app-2");
+
+		Assert.assertTrue(JtaXid.isOwnedBy(new JtaXid("app", 5), app));
+		Assert.assertFalse(JtaXid.isOwnedBy(new JtaXid("app-2", 5), app));
+		Assert.assertTrue(JtaXid.isOwnedBy(new JtaXid("app-2", 5), app2));
+	}
+
+	@Test
+	public void isOwnedByLegacy() {
+		final byte[] app = JtaXid.encodeUniqueName("app");
+		final byte[] app2 = JtaXid.encodeUniqueName("app-2");
+
+		Assert.assertTrue(JtaXid.isOwnedBy(legacyXid("app-17"), app));
+		Assert.assertFalse(JtaXid.isOwnedBy(legacyXid("app-2-17"), app));
+		Assert.assertTrue(JtaXid.isOwnedBy(legacyXid("app-2-17"), app2));
+		Assert.assertFalse(JtaXid.isOwnedBy(legacyXid("app-"), app));
+		Assert.assertFalse(JtaXid.isOwnedBy(legacyXid("app-2"), app2));
+	}
+
+	private static Xid legacyXid(final String globalTransactionId) {
+		return new Xid() {
+			@Override
+			public int getFormatId() {
+				return 0x1ee3;
+			}
+
+			@Override
+			public byte[] getGlobalTransactionId() {
+				return globalTransactionId.getBytes(StandardCharsets.UTF_8);
+			}
+
+			@Override
+			public byte[] getBranchQualifier() {
+				return new byte[] { 0 };
+			}
+		};
+	}
+}
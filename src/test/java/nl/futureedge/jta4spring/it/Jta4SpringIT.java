@@ -1,9 +1,51 @@
 package nl.futureedge.jta4spring.it;
 
+import java.lang.management.ManagementFactory;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.jms.ConnectionConsumer;
+import javax.jms.ConnectionFactory;
 import javax.jms.JMSException;
 import javax.jms.Message;
+import javax.jms.MessageConsumer;
+import javax.jms.MessageProducer;
+import javax.jms.Queue;
+import javax.jms.ServerSession;
+import javax.jms.Session;
 import javax.jms.TextMessage;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import javax.management.openmbean.CompositeData;
+import javax.sql.DataSource;
+import javax.sql.XAConnection;
+import javax.sql.XADataSource;
+import javax.transaction.RollbackException;
+import javax.transaction.Status;
+import javax.transaction.Synchronization;
+import javax.transaction.SystemException;
+import javax.transaction.Transaction;
+import javax.transaction.xa.XAException;
+import javax.transaction.xa.XAResource;
+import javax.transaction.xa.Xid;
 
+import org.apache.activemq.command.ActiveMQQueue;
 import org.junit.Assert;
 import org.junit.Test;
 import org.springframework.beans.factory.annotation.Autowired;
@@ -11,8 +53,19 @@ import org.springframework.jdbc.BadSqlGrammarException;
 import org.springframework.jdbc.core.JdbcTemplate;
 import org.springframework.jms.core.JmsTemplate;
 import org.springframework.jms.core.MessageCreator;
+import org.springframework.transaction.TransactionDefinition;
+import org.springframework.transaction.UnexpectedRollbackException;
 import org.springframework.transaction.support.TransactionTemplate;
 
+import nl.futureedge.jta4spring.JtaMonitor;
+import nl.futureedge.jta4spring.JtaTransaction;
+import nl.futureedge.jta4spring.JtaTransactionManager;
+import nl.futureedge.jta4spring.JtaXid;
+import nl.futureedge.jta4spring.jdbc.XADataSourceWrapper;
+import nl.futureedge.jta4spring.jms.BatchMessageReceiver;
+import nl.futureedge.jta4spring.jms.XAServerSessionPool;
+import nl.futureedge.jta4spring.xa.RecoverableResource;
+
 
 public class Jta4SpringIT extends AbstractIT {
 
@@ -25,6 +78,27 @@ public class Jta4SpringIT extends AbstractIT {
 	@Autowired
 	private JdbcTemplate jdbcTemplate;
 
+	@Autowired
+	private DataSource dataSource;
+
+	@Autowired
+	private DataSource lastResourceDataSource;
+
+	@Autowired
+	private ConnectionFactory connectionFactory;
+
+	@Autowired
+	private ConnectionFactory pooledConnectionFactory;
+
+	@Autowired
+	private XADataSource xaDataSource;
+
+	@Autowired
+	private JtaMonitor jtaMonitor;
+
+	@Autowired
+	private JtaTransactionManager jtaTransactionManager;
+
 	@Test
 	public void nothing() {
 		transactionTemplate.execute(status -> {
@@ -73,6 +147,340 @@ public class Jta4SpringIT extends AbstractIT {
 		});
 	}
 
+	@Test
+	public void jmsSameResourceManager() {
+		transactionTemplate.execute(status -> {
+			// Send messages using two connections (of the same connection factory) within one transaction
+			try {
+				final javax.jms.Connection first = connectionFactory.createConnection();
+				final Session firstSession = first.createSession(true, Session.SESSION_TRANSACTED);
+				firstSession.createProducer(firstSession.createQueue("QueueTwo")).send(firstSession.createTextMessage("first"));
+				final javax.jms.Connection second = connectionFactory.createConnection();
+				final Session secondSession = second.createSession(true, Session.SESSION_TRANSACTED);
+				secondSession.createProducer(secondSession.createQueue("QueueTwo")).send(secondSession.createTextMessage("second"));
+				// One branch per connection factory
+				Assert.assertSame(firstSession, secondSession);
+				Assert.assertEquals(Collections.singletonList("connectionFactory"), jtaMonitor.getTransaction().getResourceNames());
+				firstSession.close();
+				secondSession.close();
+				first.close();
+				second.close();
+			} catch (final JMSException e) {
+				Assert.fail(e.getMessage());
+			}
+			return null;
+		});
+
+		jmsTemplate.setReceiveTimeout(5000);
+		for(int i = 0; i < 2; i++) {
+			Assert.assertNotNull(transactionTemplate.execute(status -> jmsTemplate.receive("QueueTwo")));
+		}
+	}
+
+	@Test
+	public void jmsMultiplePhysicalConnections() {
+		jmsTemplate.send("QueueSeven", (MessageCreator) session -> session.createTextMessage("first"));
+
+		final String text = transactionTemplate.execute(status -> {
+			// Logical connections on different physical connections (round-robin) within one transaction
+			try {
+				final javax.jms.Connection first = pooledConnectionFactory.createConnection();
+				final Session firstSession = first.createSession(true, Session.SESSION_TRANSACTED);
+				firstSession.createProducer(firstSession.createQueue("QueueSeven")).send(firstSession.createTextMessage("second"));
+				final javax.jms.Connection second = pooledConnectionFactory.createConnection();
+				second.start();
+				final Session secondSession = second.createSession(true, Session.SESSION_TRANSACTED);
+				// The second connection uses a session of its own (started) physical connection
+				Assert.assertNotSame(firstSession, secondSession);
+				final MessageConsumer consumer = secondSession.createConsumer(secondSession.createQueue("QueueSeven"));
+				final Message message = consumer.receive(5000);
+				Assert.assertNotNull(message);
+				consumer.close();
+				firstSession.close();
+				secondSession.close();
+				first.close();
+				second.close();
+				return ((TextMessage) message).getText();
+			} catch (final JMSException e) {
+				Assert.fail(e.getMessage());
+				return null;
+			}
+		});
+		Assert.assertEquals("first", text);
+
+		// Both branches are committed
+		jmsTemplate.setReceiveTimeout(5000);
+		final Message message = transactionTemplate.execute(status -> jmsTemplate.receive("QueueSeven"));
+		Assert.assertNotNull(message);
+		try {
+			Assert.assertEquals("second", ((TextMessage) message).getText());
+		} catch (final JMSException e) {
+			Assert.fail(e.getMessage());
+		}
+	}
+
+	@Test
+	public void jmsNonTransactedSessionClosedWithConnection() throws JMSException {
+		// Consumer of a non-transacted session on the shared physical connection
+		final javax.jms.Connection connection = connectionFactory.createConnection();
+		connection.start();
+		final Session session = connection.createSession(false, Session.AUTO_ACKNOWLEDGE);
+		final MessageConsumer consumer = session.createConsumer(session.createQueue("QueueEight"));
+		connection.close();
+		try {
+			consumer.receive(100);
+			Assert.fail("Consumer should have been closed with the connection");
+		} catch (final javax.jms.IllegalStateException e) {
+			// Expected
+		}
+
+		// The closed consumer does not receive (or prefetch) messages anymore
+		jmsTemplate.send("QueueEight", (MessageCreator) messageSession -> messageSession.createTextMessage("after close"));
+		jmsTemplate.setReceiveTimeout(5000);
+		Assert.assertNotNull(transactionTemplate.execute(status -> jmsTemplate.receive("QueueEight")));
+	}
+
+	@Test
+	public void jmsSessionPooling() {
+		final Session[] sessions = new Session[2];
+		for(int i = 0; i < 2; i++) {
+			final int index = i;
+			transactionTemplate.execute(status -> {
+				try {
+					final javax.jms.Connection connection = connectionFactory.createConnection();
+					final Session session = connection.createSession(true, Session.SESSION_TRANSACTED);
+					session.createProducer(session.createQueue("QueueFour")).send(session.createTextMessage("pooled"));
+					session.close();
+					connection.close();
+					sessions[index] = session;
+				} catch (final JMSException e) {
+					Assert.fail(e.getMessage());
+				}
+				return null;
+			});
+		}
+		// Connections share the physical connection; the session is returned to its pool after completion of the first transaction
+		Assert.assertSame(sessions[0], sessions[1]);
+
+		jmsTemplate.setReceiveTimeout(5000);
+		for(int i = 0; i < 2; i++) {
+			Assert.assertNotNull(transactionTemplate.execute(status -> jmsTemplate.receive("QueueFour")));
+		}
+	}
+
+	@Test
+	public void jmsCachedProducer() {
+		for(int i = 0; i < 2; i++) {
+			transactionTemplate.execute(status -> {
+				try {
+					final javax.jms.Connection connection = connectionFactory.createConnection();
+					final Session session = connection.createSession(true, Session.SESSION_TRANSACTED);
+					final Queue queue = session.createQueue("QueueFour");
+
+					// Producers of the same destination share the cached producer, but are closed separately
+					final MessageProducer first = session.createProducer(queue);
+					final MessageProducer second = session.createProducer(queue);
+					Assert.assertNotSame(first, second);
+					Assert.assertEquals(Message.DEFAULT_PRIORITY, first.getPriority());
+					first.setPriority(9);
+					second.close();
+					Assert.assertEquals(9, first.getPriority());
+					try {
+						second.send(session.createTextMessage("closed"));
+						Assert.fail("Closed producer should not be usable");
+					} catch (final javax.jms.IllegalStateException e) {
+						// Expected
+					}
+					first.send(session.createTextMessage("cached"));
+					first.close();
+
+					session.close();
+					connection.close();
+				} catch (final JMSException e) {
+					Assert.fail(e.getMessage());
+				}
+				return null;
+			});
+		}
+
+		jmsTemplate.setReceiveTimeout(5000);
+		for(int i = 0; i < 2; i++) {
+			Assert.assertNotNull(transactionTemplate.execute(status -> jmsTemplate.receive("QueueFour")));
+		}
+	}
+
+	@Test
+	public void jmsConnectionConsumer() throws Exception {
+		final CountDownLatch delivered = new CountDownLatch(2);
+		final AtomicBoolean failed = new AtomicBoolean();
+		final XAServerSessionPool sessionPool = new XAServerSessionPool(message -> {
+			try {
+				final String text = ((TextMessage) message).getText();
+				jdbcTemplate.execute("insert into test(id, description) values(" + text + ", 'consumed')");
+				if("231".equals(text) && failed.compareAndSet(false, true)) {
+					// Rollback (insert and receive); the message is redelivered
+					throw new IllegalStateException("Fail");
+				}
+			} catch (final JMSException e) {
+				Assert.fail(e.getMessage());
+			}
+			delivered.countDown();
+		}, 2);
+
+		final javax.jms.Connection connection = connectionFactory.createConnection();
+		try {
+			final ConnectionConsumer consumer = connection.createConnectionConsumer(new ActiveMQQueue("QueueFive"), null, sessionPool, 1);
+			connection.start();
+			for(final String text : Arrays.asList("230", "231")) {
+				jmsTemplate.send("QueueFive", (MessageCreator) session -> session.createTextMessage(text));
+			}
+			Assert.assertTrue(delivered.await(30, TimeUnit.SECONDS));
+
+			// The listener is called before the transaction commits
+			final long deadline = System.currentTimeMillis() + 30000;
+			while(transactionTemplate.execute(status ->
+					jdbcTemplate.queryForObject("select count(*) from test where description = 'consumed'", Integer.class)) < 2) {
+				Assert.assertTrue("Messages not consumed", System.currentTimeMillis() < deadline);
+				Thread.sleep(100);
+			}
+			consumer.close();
+		} finally {
+			connection.close();
+		}
+
+		Assert.assertTrue(failed.get());
+		Assert.assertEquals(Integer.valueOf(2), transactionTemplate.execute(status ->
+			jdbcTemplate.queryForObject("select count(*) from test where description = 'consumed'", Integer.class)));
+	}
+
+	@Test(expected=javax.jms.IllegalStateException.class)
+	public void jmsServerSessionPoolNotOpened() throws JMSException {
+		new XAServerSessionPool(message -> {}, 1).getServerSession();
+	}
+
+	@Test
+	public void jmsServerSessionPoolWait() throws Exception {
+		final XAServerSessionPool sessionPool = new XAServerSessionPool(message -> {}, 1);
+		sessionPool.setShutdownTimeout(1);
+		final javax.jms.Connection connection = connectionFactory.createConnection();
+		try {
+			final ConnectionConsumer consumer = connection.createConnectionConsumer(new ActiveMQQueue("QueueFive"), "JMSMessageID = 'none'", sessionPool, 1);
+			final ServerSession serverSession = sessionPool.getServerSession();
+
+			// Waits until the session is released
+			final ExecutorService waiter = Executors.newSingleThreadExecutor();
+			try {
+				Future<ServerSession> waiting = waiter.submit(sessionPool::getServerSession);
+				Thread.sleep(200);
+				Assert.assertFalse(waiting.isDone());
+				serverSession.start();
+				Assert.assertSame(serverSession, waiting.get(5, TimeUnit.SECONDS));
+
+				// Waits until the pool is closed
+				waiting = waiter.submit(sessionPool::getServerSession);
+				Thread.sleep(200);
+				Assert.assertFalse(waiting.isDone());
+				consumer.close();
+				try {
+					waiting.get(5, TimeUnit.SECONDS);
+					Assert.fail("Waiting for a session should fail when the pool is closed");
+				} catch (final ExecutionException e) {
+					Assert.assertTrue(e.getCause() instanceof javax.jms.IllegalStateException);
+				}
+			} finally {
+				waiter.shutdownNow();
+			}
+		} finally {
+			connection.close();
+		}
+	}
+
+	@Test
+	public void jmsBatchReceive() throws Exception {
+		final BatchMessageReceiver receiver = new BatchMessageReceiver(connectionFactory, jtaTransactionManager);
+		receiver.setBatchSize(10);
+		receiver.setReceiveTimeout(2000);
+
+		for(final String text : Arrays.asList("240", "241", "242")) {
+			jmsTemplate.send("QueueSix", (MessageCreator) session -> session.createTextMessage(text));
+		}
+		final AtomicInteger batches = new AtomicInteger();
+		Assert.assertEquals(3, receiver.receive(new ActiveMQQueue("QueueSix"), messages -> {
+			batches.incrementAndGet();
+			for(final Message message : messages) {
+				jdbcTemplate.execute("insert into test(id, description) values(" + ((TextMessage) message).getText() + ", 'batch')");
+			}
+		}));
+		Assert.assertEquals(1, batches.get());
+
+		// The consumer is kept for the next batch
+		jmsTemplate.send("QueueSix", (MessageCreator) session -> session.createTextMessage("246"));
+		Assert.assertEquals(1, receiver.receive(new ActiveMQQueue("QueueSix"), messages -> {
+			for(final Message message : messages) {
+				jdbcTemplate.execute("insert into test(id, description) values(" + ((TextMessage) message).getText() + ", 'batch')");
+			}
+		}));
+
+		// Batch rolls back; the messages are processed in separate transactions
+		for(final String text : Arrays.asList("243", "244", "245")) {
+			jmsTemplate.send("QueueSix", (MessageCreator) session -> session.createTextMessage(text));
+		}
+		Assert.assertEquals(2, receiver.receive(new ActiveMQQueue("QueueSix"), messages -> {
+			for(final Message message : messages) {
+				final String text = ((TextMessage) message).getText();
+				jdbcTemplate.execute("insert into test(id, description) values(" + text + ", 'batch')");
+				if("244".equals(text)) {
+					throw new IllegalStateException("Fail");
+				}
+			}
+		}));
+
+		receiver.close();
+
+		Assert.assertEquals(Integer.valueOf(6), transactionTemplate.execute(status ->
+			jdbcTemplate.queryForObject("select count(*) from test where description = 'batch'", Integer.class)));
+	}
+
+	@Test
+	public void jmsBatchReceiveUnknownOutcome() throws Exception {
+		final JtaMonitor noLogMonitor = new JtaMonitor();
+		noLogMonitor.setUniqueName("batch");
+		noLogMonitor.afterPropertiesSet();
+		noLogMonitor.afterSingletonsInstantiated();
+		final JtaTransactionManager noLogTransactionManager = new JtaTransactionManager();
+		noLogTransactionManager.setJtaMonitor(noLogMonitor);
+
+		final BatchMessageReceiver receiver = new BatchMessageReceiver(connectionFactory, noLogTransactionManager);
+		receiver.setReceiveTimeout(2000);
+		try {
+			for(final String text : Arrays.asList("250", "251")) {
+				jmsTemplate.send("QueueNine", (MessageCreator) session -> session.createTextMessage(text));
+			}
+
+			// The session commits and the commit of the other resource fails; the messages are not processed again
+			final AtomicInteger calls = new AtomicInteger();
+			try {
+				receiver.receive(new ActiveMQQueue("QueueNine"), messages -> {
+					calls.incrementAndGet();
+					try {
+						noLogTransactionManager.getTransaction().enlistResource(new FailingCommitXAResource(committingXAResource()), "other");
+					} catch (final RollbackException | SystemException e) {
+						throw new IllegalStateException(e);
+					}
+				});
+				Assert.fail("Receive should have failed");
+			} catch (final JMSException e) {
+				// Expected
+			}
+			Assert.assertEquals(1, calls.get());
+			Assert.assertEquals(0, receiver.receive(new ActiveMQQueue("QueueNine"), messages -> calls.incrementAndGet()));
+			Assert.assertEquals(1, calls.get());
+		} finally {
+			receiver.close();
+			noLogMonitor.destroy();
+		}
+	}
+
 	@Test
 	public void jdbc() {
 		transactionTemplate.execute(status -> {
@@ -83,6 +491,204 @@ public class Jta4SpringIT extends AbstractIT {
 		});
 	}
 
+	@Test
+	public void activeTransactions() {
+		final JtaTransaction active = transactionTemplate.execute(status -> {
+			jdbcTemplate.execute("insert into test(id, description) values(700, 'active')");
+
+			final JtaTransaction current = jtaMonitor.getTransaction();
+			Assert.assertSame(current, jtaMonitor.getActiveTransaction(current.getXid()));
+			Assert.assertTrue(jtaMonitor.getActiveTransactions().contains(current));
+			Assert.assertEquals(Thread.currentThread().getName(), current.getThreadName());
+			Assert.assertEquals(Collections.singletonList("dataSource"), current.getResourceNames());
+			return current;
+		});
+
+		Assert.assertNull(jtaMonitor.getActiveTransaction(active.getXid()));
+		Assert.assertFalse(jtaMonitor.getActiveTransactions().contains(active));
+	}
+
+	@Test
+	public void metrics() throws Exception {
+		final MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+		final ObjectName transactionManager = new ObjectName("nl.futureedge.jta4spring:type=TransactionManager,name=\"test\"");
+		final long commits = (Long) server.getAttribute(transactionManager, "Commits");
+
+		transactionTemplate.execute(status -> {
+			jdbcTemplate.execute("insert into test(id, description) values(800, 'metrics')");
+			return null;
+		});
+
+		Assert.assertEquals(commits + 1, ((Long) server.getAttribute(transactionManager, "Commits")).longValue());
+		final CompositeData duration = (CompositeData) server.getAttribute(transactionManager, "TransactionDuration");
+		Assert.assertTrue((Long) duration.get("count") > 0);
+
+		final ObjectName dataSource = new ObjectName("nl.futureedge.jta4spring:type=Resource,transactionManager=\"test\",name=\"dataSource\"");
+		final CompositeData commitLatency = (CompositeData) server.getAttribute(dataSource, "CommitLatency");
+		Assert.assertTrue((Long) commitLatency.get("count") > 0);
+		Assert.assertTrue((Double) commitLatency.get("p99") > 0);
+	}
+
+	@Test
+	public void jdbcReadOnly() {
+		final TransactionTemplate readOnlyTemplate = new TransactionTemplate(transactionTemplate.getTransactionManager());
+		readOnlyTemplate.setReadOnly(true);
+		readOnlyTemplate.execute(status -> {
+			jdbcTemplate.queryForObject("select count(*) from test", Integer.class);
+
+			// Not enlisted
+			Assert.assertEquals(Collections.emptyList(), jtaMonitor.getTransaction().getResourceNames());
+			return null;
+		});
+	}
+
+	@Test
+	public void jdbcPooled() throws Exception {
+		final AtomicInteger physicalConnections = new AtomicInteger();
+		final JtaMonitor poolMonitor = new JtaMonitor();
+		poolMonitor.setUniqueName("pooled");
+		poolMonitor.afterPropertiesSet();
+		final JtaTransactionManager poolTransactionManager = new JtaTransactionManager();
+		poolTransactionManager.setJtaMonitor(poolMonitor);
+		final XADataSourceWrapper pooledDataSource = pooledDataSource(poolTransactionManager, physicalConnections);
+		try {
+			for(int i = 0; i < 20; i++) {
+				poolTransactionManager.begin();
+				try (Connection connection = pooledDataSource.getObject().getConnection(); Statement statement = connection.createStatement()) {
+					statement.execute("insert into test(id, description) values(" + (100 + i) + ", 'pooled')");
+				}
+				poolTransactionManager.commit();
+			}
+		} finally {
+			pooledDataSource.destroy();
+			poolMonitor.destroy();
+		}
+
+		// The physical connection is reused
+		Assert.assertEquals(1, physicalConnections.get());
+		Assert.assertEquals(Integer.valueOf(20), transactionTemplate.execute(status ->
+			jdbcTemplate.queryForObject("select count(*) from test where description = 'pooled'", Integer.class)));
+	}
+
+	@Test
+	public void jdbcPooledConnectionState() throws Exception {
+		final AtomicInteger physicalConnections = new AtomicInteger();
+		final JtaMonitor poolMonitor = new JtaMonitor();
+		poolMonitor.setUniqueName("pooled-state");
+		poolMonitor.afterPropertiesSet();
+		final JtaTransactionManager poolTransactionManager = new JtaTransactionManager();
+		poolTransactionManager.setJtaMonitor(poolMonitor);
+		final XADataSourceWrapper pooledDataSource = pooledDataSource(poolTransactionManager, physicalConnections);
+		try {
+			final int isolation;
+			poolTransactionManager.begin();
+			try (Connection connection = pooledDataSource.getObject().getConnection()) {
+				isolation = connection.getTransactionIsolation();
+				connection.setReadOnly(true);
+				connection.setTransactionIsolation(Connection.TRANSACTION_SERIALIZABLE);
+				connection.setHoldability(ResultSet.CLOSE_CURSORS_AT_COMMIT);
+			}
+			poolTransactionManager.commit();
+
+			// The state changed by the previous transaction is restored when the connection is released
+			poolTransactionManager.begin();
+			try (Connection connection = pooledDataSource.getObject().getConnection()) {
+				Assert.assertFalse(connection.isReadOnly());
+				Assert.assertEquals(isolation, connection.getTransactionIsolation());
+				Assert.assertEquals(ResultSet.HOLD_CURSORS_OVER_COMMIT, connection.getHoldability());
+			}
+			poolTransactionManager.commit();
+		} finally {
+			pooledDataSource.destroy();
+			poolMonitor.destroy();
+		}
+		Assert.assertEquals(1, physicalConnections.get());
+	}
+
+	/**
+	 * @return data source (with a pool of one connection) of which the physical connections are counted
+	 */
+	private XADataSourceWrapper pooledDataSource(final JtaTransactionManager poolTransactionManager, final AtomicInteger physicalConnections)
+			throws Exception {
+		final XADataSource countingXADataSource = (XADataSource) Proxy.newProxyInstance(XADataSource.class.getClassLoader(),
+				new Class<?>[] {XADataSource.class}, (proxy, method, args) -> {
+					if("getXAConnection".equals(method.getName())) {
+						physicalConnections.incrementAndGet();
+					}
+					try {
+						return method.invoke(xaDataSource, args);
+					} catch (final InvocationTargetException e) {
+						throw e.getCause();
+					}
+				});
+		final XADataSourceWrapper result = new XADataSourceWrapper();
+		result.setBeanName("pooledDataSource");
+		result.setXaDataSource(countingXADataSource);
+		result.setTransactionManager(poolTransactionManager);
+		result.setMaxPoolSize(1);
+		result.setValidationInterval(0);
+		result.afterPropertiesSet();
+		return result;
+	}
+
+	@Test
+	public void jdbcConnectionReuse() {
+		transactionTemplate.execute(status -> {
+			try (Connection first = dataSource.getConnection(); Connection second = dataSource.getConnection()) {
+				Assert.assertSame(first, second);
+				try (Statement statement = first.createStatement()) {
+					statement.execute("insert into test(id, description) values(200, 'reuse')");
+				}
+				try (Statement statement = second.createStatement()) {
+					statement.execute("insert into test(id, description) values(201, 'reuse')");
+				}
+			} catch (final SQLException e) {
+				Assert.fail(e.getMessage());
+			}
+			return null;
+		});
+		Assert.assertEquals(Integer.valueOf(2), transactionTemplate.execute(status ->
+			jdbcTemplate.queryForObject("select count(*) from test where description = 'reuse'", Integer.class)));
+	}
+
+	@Test
+	public void jdbcLazyEnlistment() {
+		transactionTemplate.execute(status -> {
+			try (Connection connection = dataSource.getConnection()) {
+				// Not enlisted until the connection is used
+				Assert.assertEquals(Collections.emptyList(), jtaMonitor.getTransaction().getResourceNames());
+				try (Statement statement = connection.createStatement()) {
+					statement.execute("insert into test(id, description) values(210, 'lazy')");
+				}
+				Assert.assertEquals(Collections.singletonList("dataSource"), jtaMonitor.getTransaction().getResourceNames());
+			} catch (final SQLException e) {
+				Assert.fail(e.getMessage());
+			}
+			return null;
+		});
+		Assert.assertEquals(Integer.valueOf(1), transactionTemplate.execute(status ->
+			jdbcTemplate.queryForObject("select count(*) from test where description = 'lazy'", Integer.class)));
+	}
+
+	@Test
+	public void jdbcLastResource() {
+		final JdbcTemplate lastResourceTemplate = new JdbcTemplate(lastResourceDataSource);
+		transactionTemplate.execute(status -> {
+			jdbcTemplate.execute("insert into test(id, description) values(220, 'last resource')");
+			lastResourceTemplate.execute("insert into test(id, description) values(221, 'last resource')");
+			Assert.assertEquals(Arrays.asList("dataSource", "lastResourceDataSource"), jtaMonitor.getTransaction().getResourceNames());
+			return null;
+		});
+		transactionTemplate.execute(status -> {
+			jdbcTemplate.execute("insert into test(id, description) values(222, 'last resource')");
+			lastResourceTemplate.execute("insert into test(id, description) values(223, 'last resource')");
+			status.setRollbackOnly();
+			return null;
+		});
+		Assert.assertEquals(Integer.valueOf(2), transactionTemplate.execute(status ->
+			jdbcTemplate.queryForObject("select count(*) from test where description = 'last resource'", Integer.class)));
+	}
+
 	@Test(expected=BadSqlGrammarException.class)
 	public void jdbcException() {
 		transactionTemplate.execute(status -> {
@@ -106,4 +712,482 @@ public class Jta4SpringIT extends AbstractIT {
 			return null;
 		});
 	}
+
+	@Test
+	public void jdbcAndJmsTwoPhase() {
+		transactionTemplate.execute(status -> {
+			// Insert
+			jdbcTemplate.execute("insert into test(id, description) values(300, 'two-phase')");
+
+			// Send message (using a transacted session)
+			try {
+				final javax.jms.Connection connection = connectionFactory.createConnection();
+				final Session session = connection.createSession(true, Session.SESSION_TRANSACTED);
+				session.createProducer(session.createQueue("QueueThree")).send(session.createTextMessage("two-phase"));
+				connection.close();
+			} catch (final JMSException e) {
+				Assert.fail(e.getMessage());
+			}
+			return null;
+		});
+
+		Assert.assertEquals(Integer.valueOf(1), transactionTemplate.execute(status ->
+			jdbcTemplate.queryForObject("select count(*) from test where description = 'two-phase'", Integer.class)));
+		jmsTemplate.setReceiveTimeout(5000);
+		Assert.assertNotNull(transactionTemplate.execute(status -> jmsTemplate.receive("QueueThree")));
+	}
+
+	@Test
+	public void jdbcRecovery() throws Exception {
+		// Prepare a branch without completing it (as if the transaction manager failed after prepare)
+		final Xid xid = new JtaXid("test", Long.MAX_VALUE);
+		final XAConnection xaConnection = xaDataSource.getXAConnection();
+		final Connection connection = xaConnection.getConnection();
+		final XAResource xaResource = xaConnection.getXAResource();
+		xaResource.start(xid, XAResource.TMNOFLAGS);
+		try (Statement statement = connection.createStatement()) {
+			statement.execute("insert into test(id, description) values(400, 'in-doubt')");
+		}
+		xaResource.end(xid, XAResource.TMSUCCESS);
+		Assert.assertEquals(XAResource.XA_OK, xaResource.prepare(xid));
+
+		// No commit decision logged; recovery rolls back the branch
+		jtaMonitor.recover();
+		xaConnection.close();
+
+		Assert.assertEquals(Integer.valueOf(0), transactionTemplate.execute(status ->
+			jdbcTemplate.queryForObject("select count(*) from test where description = 'in-doubt'", Integer.class)));
+	}
+
+	@Test
+	public void jdbcBackgroundRecovery() throws Exception {
+		// Prepare a branch without completing it (as if a resource failed during commit)
+		final Xid xid = new JtaXid("test", Long.MAX_VALUE - 1);
+		final XAConnection xaConnection = xaDataSource.getXAConnection();
+		final Connection connection = xaConnection.getConnection();
+		final XAResource xaResource = xaConnection.getXAResource();
+		xaResource.start(xid, XAResource.TMNOFLAGS);
+		try (Statement statement = connection.createStatement()) {
+			statement.execute("insert into test(id, description) values(401, 'background')");
+		}
+		xaResource.end(xid, XAResource.TMSUCCESS);
+		Assert.assertEquals(XAResource.XA_OK, xaResource.prepare(xid));
+
+		// Background recovery (every second in the test context) rolls back the branch
+		final long deadline = System.currentTimeMillis() + 10000;
+		while(xaResource.recover(XAResource.TMSTARTRSCAN | XAResource.TMENDRSCAN).length > 0) {
+			Assert.assertTrue("In-doubt branch not recovered", System.currentTimeMillis() < deadline);
+			Thread.sleep(100);
+		}
+		xaConnection.close();
+
+		Assert.assertEquals(Integer.valueOf(0), transactionTemplate.execute(status ->
+			jdbcTemplate.queryForObject("select count(*) from test where description = 'background'", Integer.class)));
+	}
+
+	@Test
+	public void jdbcRecoveryWithoutLog() throws Exception {
+		final JtaMonitor noLogMonitor = new JtaMonitor();
+		noLogMonitor.setUniqueName("nolog");
+		noLogMonitor.setRecoveryInterval(0);
+		noLogMonitor.afterPropertiesSet();
+		noLogMonitor.registerRecoverableResource(recoverableResource("dataSource"));
+
+		// Prepare a branch without completing it; without a log it is unknown whether the transaction was committed
+		final Xid xid = new JtaXid("nolog", 1);
+		final XAConnection xaConnection = xaDataSource.getXAConnection();
+		final XAResource xaResource = xaConnection.getXAResource();
+		try {
+			prepare(xaConnection, xid, 402, "no-log");
+
+			// Startup recovery only reports the branch
+			noLogMonitor.afterSingletonsInstantiated();
+			Assert.assertFalse(noLogMonitor.recover());
+			Assert.assertEquals(1, xaResource.recover(XAResource.TMSTARTRSCAN | XAResource.TMENDRSCAN).length);
+
+			// Complete the branch manually
+			xaResource.commit(xid, false);
+		} finally {
+			noLogMonitor.destroy();
+			xaConnection.close();
+		}
+
+		Assert.assertEquals(Integer.valueOf(1), transactionTemplate.execute(status ->
+			jdbcTemplate.queryForObject("select count(*) from test where description = 'no-log'", Integer.class)));
+	}
+
+	private static void prepare(final XAConnection xaConnection, final Xid xid, final int id, final String description)
+			throws SQLException, XAException {
+		final XAResource xaResource = xaConnection.getXAResource();
+		xaResource.start(xid, XAResource.TMNOFLAGS);
+		try (Statement statement = xaConnection.getConnection().createStatement()) {
+			statement.execute("insert into test(id, description) values(" + id + ", '" + description + "')");
+		}
+		xaResource.end(xid, XAResource.TMSUCCESS);
+		Assert.assertEquals(XAResource.XA_OK, xaResource.prepare(xid));
+	}
+
+	private RecoverableResource recoverableResource(final String name) {
+		return new RecoverableResource() {
+			@Override
+			public String getName() {
+				return name;
+			}
+
+			@Override
+			public void recover(final XAResourceCallback callback) throws XAException {
+				try {
+					final XAConnection xaConnection = xaDataSource.getXAConnection();
+					try {
+						callback.doWithXAResource(xaConnection.getXAResource());
+					} finally {
+						xaConnection.close();
+					}
+				} catch (final SQLException e) {
+					final XAException xaException = new XAException(XAException.XAER_RMFAIL);
+					xaException.initCause(e);
+					throw xaException;
+				}
+			}
+		};
+	}
+
+	@Test
+	public void jdbcPartialCommitWithoutLog() throws Exception {
+		final JtaMonitor noLogMonitor = new JtaMonitor();
+		noLogMonitor.setUniqueName("partial");
+		noLogMonitor.setRecoveryInterval(1);
+		noLogMonitor.afterPropertiesSet();
+		noLogMonitor.registerRecoverableResource(recoverableResource("dataSource"));
+		noLogMonitor.afterSingletonsInstantiated();
+
+		final XAConnection xaConnection = xaDataSource.getXAConnection();
+		final XAResource xaResource = xaConnection.getXAResource();
+		try {
+			// Two-phase commit where the branch of another resource manager commits and the commit of the data source fails
+			noLogMonitor.begin();
+			final JtaTransaction transaction = noLogMonitor.getTransaction();
+			transaction.enlistResource(committingXAResource(), "other");
+			transaction.enlistResource(new FailingCommitXAResource(xaResource), "dataSource");
+			try (Statement statement = xaConnection.getConnection().createStatement()) {
+				statement.execute("insert into test(id, description) values(403, 'partial')");
+			}
+			try {
+				transaction.commit();
+				Assert.fail("Commit should have failed");
+			} catch (final SystemException e) {
+				// Expected
+			}
+
+			// Background recovery is disabled; the prepared branch is not rolled back
+			Thread.sleep(2500);
+			final Xid[] inDoubt = xaResource.recover(XAResource.TMSTARTRSCAN | XAResource.TMENDRSCAN);
+			Assert.assertEquals(1, inDoubt.length);
+
+			// Complete the branch manually
+			xaResource.commit(inDoubt[0], false);
+		} finally {
+			noLogMonitor.destroy();
+			xaConnection.close();
+		}
+
+		Assert.assertEquals(Integer.valueOf(1), transactionTemplate.execute(status ->
+			jdbcTemplate.queryForObject("select count(*) from test where description = 'partial'", Integer.class)));
+	}
+
+	/**
+	 * @return xa resource (of another resource manager) of which all operations succeed
+	 */
+	private static XAResource committingXAResource() {
+		return (XAResource) Proxy.newProxyInstance(XAResource.class.getClassLoader(), new Class<?>[] {XAResource.class},
+				(proxy, method, args) -> {
+					switch(method.getName()) {
+						case "equals":
+							return proxy == args[0];
+						case "hashCode":
+							return System.identityHashCode(proxy);
+						case "toString":
+							return "CommittingXAResource";
+						case "isSameRM":
+						case "setTransactionTimeout":
+							return false;
+						case "prepare":
+							return XAResource.XA_OK;
+						case "getTransactionTimeout":
+							return 0;
+						default:
+							return null;
+					}
+				});
+	}
+
+	/**
+	 * XA resource of which the commit fails (as if the resource manager is not available).
+	 */
+	private static final class FailingCommitXAResource implements XAResource {
+		private final XAResource delegate;
+
+		FailingCommitXAResource(final XAResource delegate) {
+			this.delegate = delegate;
+		}
+
+		@Override
+		public void commit(final Xid xid, final boolean onePhase) throws XAException {
+			throw new XAException(XAException.XAER_RMFAIL);
+		}
+
+		@Override
+		public void end(final Xid xid, final int flags) throws XAException {
+			delegate.end(xid, flags);
+		}
+
+		@Override
+		public void forget(final Xid xid) throws XAException {
+			delegate.forget(xid);
+		}
+
+		@Override
+		public int getTransactionTimeout() throws XAException {
+			return delegate.getTransactionTimeout();
+		}
+
+		@Override
+		public boolean isSameRM(final XAResource xares) throws XAException {
+			return delegate.isSameRM(xares);
+		}
+
+		@Override
+		public int prepare(final Xid xid) throws XAException {
+			return delegate.prepare(xid);
+		}
+
+		@Override
+		public Xid[] recover(final int flag) throws XAException {
+			return delegate.recover(flag);
+		}
+
+		@Override
+		public void rollback(final Xid xid) throws XAException {
+			delegate.rollback(xid);
+		}
+
+		@Override
+		public boolean setTransactionTimeout(final int seconds) throws XAException {
+			return delegate.setTransactionTimeout(seconds);
+		}
+
+		@Override
+		public void start(final Xid xid, final int flags) throws XAException {
+			delegate.start(xid, flags);
+		}
+	}
+
+	@Test
+	public void jdbcTimeout() {
+		final TransactionTemplate timeoutTemplate = new TransactionTemplate(transactionTemplate.getTransactionManager());
+		timeoutTemplate.setTimeout(1);
+		try {
+			timeoutTemplate.execute(status -> {
+				jdbcTemplate.execute("insert into test(id, description) values(500, 'timeout')");
+				try {
+					Thread.sleep(1500);
+				} catch (final InterruptedException e) {
+					Thread.currentThread().interrupt();
+				}
+				return null;
+			});
+			Assert.fail("Transaction should have timed out");
+		} catch (final UnexpectedRollbackException e) {
+			// Expected
+		}
+
+		Assert.assertEquals(Integer.valueOf(0), transactionTemplate.execute(status ->
+			jdbcTemplate.queryForObject("select count(*) from test where description = 'timeout'", Integer.class)));
+	}
+
+	@Test
+	public void jdbcRollbackOnTimeout() throws Exception {
+		final JtaMonitor timeoutMonitor = new JtaMonitor();
+		timeoutMonitor.setUniqueName("rollback-on-timeout");
+		timeoutMonitor.setRollbackOnTimeout(true);
+		timeoutMonitor.afterPropertiesSet();
+		timeoutMonitor.afterSingletonsInstantiated();
+
+		final XAConnection xaConnection = xaDataSource.getXAConnection();
+		final XAConnection otherXaConnection = xaDataSource.getXAConnection();
+		try {
+			timeoutMonitor.setTransactionTimeout(1);
+			timeoutMonitor.begin();
+			final JtaTransaction transaction = timeoutMonitor.getTransaction();
+			transaction.enlistResource(xaConnection.getXAResource(), "dataSource");
+			try (Statement statement = xaConnection.getConnection().createStatement()) {
+				statement.execute("insert into test(id, description) values(501, 'rollback-on-timeout')");
+			}
+
+			// The branch is rolled back on another thread when the transaction times out
+			final long deadline = System.currentTimeMillis() + 10000;
+			while(Status.STATUS_ROLLEDBACK != timeoutMonitor.getStatus()) {
+				Assert.assertTrue("Branches not rolled back", System.currentTimeMillis() < deadline);
+				Thread.sleep(100);
+			}
+
+			// The application thread fails cleanly when it completes the transaction
+			try {
+				transaction.commit();
+				Assert.fail("Commit should have failed");
+			} catch (final RollbackException e) {
+				// Expected
+			}
+			Assert.assertEquals(Status.STATUS_NO_TRANSACTION, timeoutMonitor.getStatus());
+
+			// The thread can start a new transaction
+			timeoutMonitor.setTransactionTimeout(0);
+			timeoutMonitor.begin();
+			final JtaTransaction next = timeoutMonitor.getTransaction();
+			next.enlistResource(otherXaConnection.getXAResource(), "dataSource");
+			try (Statement statement = otherXaConnection.getConnection().createStatement()) {
+				statement.execute("insert into test(id, description) values(502, 'rollback-on-timeout')");
+			}
+			next.commit();
+		} finally {
+			timeoutMonitor.destroy();
+			xaConnection.close();
+			otherXaConnection.close();
+		}
+
+		Assert.assertEquals(Arrays.asList(502), transactionTemplate.execute(status ->
+			jdbcTemplate.queryForList("select id from test where description = 'rollback-on-timeout'", Integer.class)));
+	}
+
+	@Test
+	public void jdbcRequiresNew() {
+		final TransactionTemplate requiresNewTemplate = new TransactionTemplate(transactionTemplate.getTransactionManager());
+		requiresNewTemplate.setPropagationBehavior(TransactionDefinition.PROPAGATION_REQUIRES_NEW);
+
+		transactionTemplate.execute(status -> {
+			jdbcTemplate.execute("insert into test(id, description) values(600, 'outer')");
+
+			// Inner transaction commits independently of the (suspended) outer transaction
+			requiresNewTemplate.execute(innerStatus -> {
+				jdbcTemplate.execute("insert into test(id, description) values(601, 'inner')");
+				return null;
+			});
+
+			jdbcTemplate.execute("insert into test(id, description) values(602, 'outer')");
+			status.setRollbackOnly();
+			return null;
+		});
+
+		Assert.assertEquals(Integer.valueOf(1), transactionTemplate.execute(status ->
+			jdbcTemplate.queryForObject("select count(*) from test where description = 'inner'", Integer.class)));
+		Assert.assertEquals(Integer.valueOf(0), transactionTemplate.execute(status ->
+			jdbcTemplate.queryForObject("select count(*) from test where description = 'outer'", Integer.class)));
+	}
+
+	@Test
+	public void drainOnShutdown() throws Exception {
+		final JtaMonitor shutdownMonitor = new JtaMonitor();
+		shutdownMonitor.setUniqueName("shutdown");
+		shutdownMonitor.setShutdownTimeout(1);
+		shutdownMonitor.afterPropertiesSet();
+
+		// Transaction that is never completed by the thread that began it
+		final Transaction[] straggler = new Transaction[1];
+		final Thread thread = new Thread(() -> {
+			try {
+				shutdownMonitor.begin();
+				straggler[0] = shutdownMonitor.getTransaction();
+			} catch (final Exception e) {
+				throw new IllegalStateException(e);
+			}
+		});
+		thread.start();
+		thread.join();
+
+		shutdownMonitor.destroy();
+		Assert.assertEquals(Status.STATUS_ROLLEDBACK, straggler[0].getStatus());
+		try {
+			shutdownMonitor.begin();
+			Assert.fail("Transaction should have been rejected");
+		} catch (final SystemException e) {
+			// Expected
+		}
+	}
+
+	@Test
+	public void drainOnShutdownWhileInUse() throws Exception {
+		final JtaMonitor shutdownMonitor = new JtaMonitor();
+		shutdownMonitor.setUniqueName("shutdown-in-use");
+		shutdownMonitor.setShutdownTimeout(1);
+		shutdownMonitor.afterPropertiesSet();
+
+		// Transactions whose threads are still alive during shutdown and complete them afterwards
+		final CountDownLatch begun = new CountDownLatch(2);
+		final CountDownLatch drained = new CountDownLatch(1);
+		final List<String> completions = Collections.synchronizedList(new ArrayList<>());
+		final List<Object> outcomes = Collections.synchronizedList(new ArrayList<>());
+		// The transaction only references its synchronizations weakly
+		final List<Synchronization> synchronizations = Collections.synchronizedList(new ArrayList<>());
+		final List<Thread> threads = new ArrayList<>();
+		for(final boolean commit : new boolean[] {true, false}) {
+			threads.add(new Thread(() -> {
+				try {
+					shutdownMonitor.begin();
+					final JtaTransaction transaction = shutdownMonitor.getTransaction();
+					transaction.enlistResource(committingXAResource(), "fake");
+					final Synchronization synchronization = new Synchronization() {
+						@Override
+						public void beforeCompletion() {
+							// Nothing
+						}
+
+						@Override
+						public void afterCompletion(final int status) {
+							completions.add(Thread.currentThread().getName() + ":" + status);
+						}
+					};
+					synchronizations.add(synchronization);
+					transaction.registerSynchronization(synchronization);
+					begun.countDown();
+					drained.await();
+
+					Assert.assertEquals(Status.STATUS_ROLLEDBACK, shutdownMonitor.getStatus());
+					try {
+						if(commit) {
+							transaction.commit();
+						} else {
+							transaction.rollback();
+						}
+						outcomes.add(Thread.currentThread().getName() + ":completed");
+					} catch (final RollbackException e) {
+						outcomes.add(Thread.currentThread().getName() + ":rolledback");
+					}
+					// The transaction is no longer associated with the thread
+					Assert.assertEquals(Status.STATUS_NO_TRANSACTION, shutdownMonitor.getStatus());
+				} catch (final Exception | AssertionError e) {
+					outcomes.add(e);
+				}
+			}, commit ? "committer" : "rollbacker"));
+		}
+		for(final Thread thread : threads) {
+			thread.start();
+		}
+		Assert.assertTrue(begun.await(5, TimeUnit.SECONDS));
+
+		shutdownMonitor.destroy();
+		// Completion (and synchronizations) is left to the threads that own the transactions
+		Assert.assertTrue(completions.isEmpty());
+
+		drained.countDown();
+		for(final Thread thread : threads) {
+			thread.join(5000);
+		}
+		Assert.assertEquals(outcomes.toString(), 2, outcomes.size());
+		Assert.assertTrue(outcomes.toString(), outcomes.contains("committer:rolledback"));
+		Assert.assertTrue(outcomes.toString(), outcomes.contains("rollbacker:completed"));
+		Assert.assertEquals(2, synchronizations.size());
+		Assert.assertEquals(2, completions.size());
+		Assert.assertTrue(completions.toString(), completions.contains("committer:" + Status.STATUS_ROLLEDBACK));
+		Assert.assertTrue(completions.toString(), completions.contains("rollbacker:" + Status.STATUS_ROLLEDBACK));
+	}
 }
@@ -0,0 +1,362 @@
+package nl.futureedge.jta4spring.xa;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.transaction.xa.Xid;
+
+import org.junit.Assert;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import nl.futureedge.jta4spring.JtaXid;
+
+public class FileTransactionLogTest {
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	@Test
+	public void groupCommit() throws Exception {
+		final File file = new File(folder.getRoot(), "group.log");
+		final CountDownLatch firstForce = new CountDownLatch(1);
+		final CountDownLatch release = new CountDownLatch(1);
+		final ControlledTransactionLog log = new ControlledTransactionLog(file) {
+			@Override
+			void beforeForce(final int count) throws IOException {
+				if(count == 1) {
+					// Keep the writer busy with the first batch
+					firstForce.countDown();
+					await(release);
+				}
+			}
+		};
+		log.open();
+		try {
+			final List<Thread> writers = new ArrayList<>();
+			final List<Throwable> failures = Collections.synchronizedList(new ArrayList<>());
+			for(int i = 1; i <= 4; i++) {
+				final Xid xid = new JtaXid("test", i);
+				writers.add(new Thread(() -> {
+					try {
+						log.logCommitDecision(xid, Collections.singletonList("resource"));
+					} catch (final IOException e) {
+						failures.add(e);
+					}
+				}));
+			}
+			writers.get(0).start();
+			Assert.assertTrue(firstForce.await(5, TimeUnit.SECONDS));
+
+			// Queue the other decisions while the writer forces the first batch
+			for(final Thread writer : writers.subList(1, writers.size())) {
+				writer.start();
+			}
+			for(final Thread writer : writers.subList(1, writers.size())) {
+				awaitWaiting(writer);
+			}
+			release.countDown();
+			for(final Thread writer : writers) {
+				writer.join(5000);
+			}
+
+			Assert.assertEquals(Collections.emptyList(), failures);
+			Assert.assertEquals(2, log.forces.get());
+			Assert.assertEquals(4, log.getCommitDecisions().size());
+		} finally {
+			release.countDown();
+			log.close();
+		}
+	}
+
+	@Test
+	public void reopen() throws Exception {
+		final File file = new File(folder.getRoot(), "reopen.log");
+		final FileTransactionLog log = new FileTransactionLog(file);
+		log.open();
+		log.logCommitDecision(new JtaXid("test", 1), Collections.singletonList("first"));
+		log.logCommitDecision(new JtaXid("test", 2), Collections.singletonList("second"));
+		log.logCompletion(new JtaXid("test", 1));
+		log.close();
+
+		final FileTransactionLog reopened = new FileTransactionLog(file);
+		reopened.open();
+		try {
+			Assert.assertEquals(transactionIds(2), transactionIds(reopened));
+			Assert.assertEquals(Collections.singletonList("second"), reopened.getCommitDecisions().iterator().next().getResourceNames());
+		} finally {
+			reopened.close();
+		}
+	}
+
+	@Test
+	public void compaction() throws Exception {
+		final File file = new File(folder.getRoot(), "compaction.log");
+		final FileTransactionLog log = new FileTransactionLog(file);
+		log.setMaxFileSize(1024);
+		log.open();
+		for(int i = 1; i <= 100; i++) {
+			log.logCommitDecision(new JtaXid("test", i), Collections.singletonList("resource"));
+			if(i != 50) {
+				log.logCompletion(new JtaXid("test", i));
+			}
+		}
+		// Completion is not forced; close waits for the writer
+		log.close();
+
+		Assert.assertTrue(Files.size(file.toPath()) <= 1024);
+		final FileTransactionLog reopened = new FileTransactionLog(file);
+		reopened.open();
+		try {
+			Assert.assertEquals(transactionIds(50), transactionIds(reopened));
+		} finally {
+			reopened.close();
+		}
+	}
+
+	@Test
+	public void failedForceCompletesDecision() throws Exception {
+		final File file = new File(folder.getRoot(), "force.log");
+		final ControlledTransactionLog log = new ControlledTransactionLog(file) {
+			@Override
+			void beforeForce(final int count) throws IOException {
+				if(count == 1) {
+					throw new IOException("Force failed");
+				}
+			}
+		};
+		log.open();
+		try {
+			log.logCommitDecision(new JtaXid("test", 1), Collections.singletonList("resource"));
+			Assert.fail("Logging the commit decision should fail");
+		} catch (final IOException e) {
+			// Expected
+		}
+		Assert.assertTrue(log.getCommitDecisions().isEmpty());
+		log.logCommitDecision(new JtaXid("test", 2), Collections.singletonList("resource"));
+		log.close();
+
+		// The failed decision is not committed by recovery
+		final FileTransactionLog reopened = new FileTransactionLog(file);
+		reopened.open();
+		try {
+			Assert.assertEquals(transactionIds(2), transactionIds(reopened));
+		} finally {
+			reopened.close();
+		}
+	}
+
+	@Test
+	public void partialWriteIsRemoved() throws Exception {
+		final File file = new File(folder.getRoot(), "partial.log");
+		final ControlledTransactionLog log = new ControlledTransactionLog(file) {
+			@Override
+			int write(final FileChannel delegate, final ByteBuffer source, final int count) throws IOException {
+				if(count == 2) {
+					// Write part of the record and fail
+					final ByteBuffer part = source.duplicate();
+					part.limit(part.position() + part.remaining() / 2);
+					delegate.write(part);
+					throw new IOException("Write failed");
+				}
+				return delegate.write(source);
+			}
+		};
+		log.open();
+		log.logCommitDecision(new JtaXid("test", 1), Collections.singletonList("resource"));
+		try {
+			log.logCommitDecision(new JtaXid("test", 2), Collections.singletonList("resource"));
+			Assert.fail("Logging the commit decision should fail");
+		} catch (final IOException e) {
+			// Expected
+		}
+		log.logCommitDecision(new JtaXid("test", 3), Collections.singletonList("resource"));
+		log.close();
+
+		// The decision written after the failed write is not lost
+		final FileTransactionLog reopened = new FileTransactionLog(file);
+		reopened.open();
+		try {
+			Assert.assertEquals(transactionIds(1, 3), transactionIds(reopened));
+		} finally {
+			reopened.close();
+		}
+	}
+
+	private static Set<ByteBuffer> transactionIds(final TransactionLog log) {
+		final Set<ByteBuffer> result = new HashSet<>();
+		for(final TransactionLogRecord record : log.getCommitDecisions()) {
+			result.add(ByteBuffer.wrap(record.getGlobalTransactionId()));
+		}
+		return result;
+	}
+
+	private static Set<ByteBuffer> transactionIds(final long... transactionIds) {
+		final Set<ByteBuffer> result = new HashSet<>();
+		for(final long transactionId : transactionIds) {
+			result.add(ByteBuffer.wrap(new JtaXid("test", transactionId).getGlobalTransactionId()));
+		}
+		return result;
+	}
+
+	private static void await(final CountDownLatch latch) throws IOException {
+		try {
+			latch.await(5, TimeUnit.SECONDS);
+		} catch (final InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IOException(e);
+		}
+	}
+
+	private static void awaitWaiting(final Thread thread) throws InterruptedException {
+		final long deadline = System.currentTimeMillis() + 5000;
+		while(thread.getState() != Thread.State.WAITING && System.currentTimeMillis() < deadline) {
+			Thread.sleep(10);
+		}
+		Assert.assertEquals(Thread.State.WAITING, thread.getState());
+	}
+
+	/**
+	 * File transaction log of which the writes and forces of the log file can be controlled.
+	 */
+	private static class ControlledTransactionLog extends FileTransactionLog {
+		private final AtomicInteger writes = new AtomicInteger();
+		private final AtomicInteger forces = new AtomicInteger();
+
+		ControlledTransactionLog(final File file) {
+			super(file);
+		}
+
+		@Override
+		protected FileChannel openChannel(final Path path) throws IOException {
+			return new ControlledFileChannel(super.openChannel(path), this);
+		}
+
+		int write(final FileChannel delegate, final ByteBuffer source, final int count) throws IOException {
+			return delegate.write(source);
+		}
+
+		void beforeForce(final int count) throws IOException {
+			// Nothing
+		}
+	}
+
+	/**
+	 * File channel that delegates to a file channel; writes and forces are passed to the transaction log.
+	 */
+	private static final class ControlledFileChannel extends FileChannel {
+		private final FileChannel delegate;
+		private final ControlledTransactionLog log;
+
+		ControlledFileChannel(final FileChannel delegate, final ControlledTransactionLog log) {
+			this.delegate = delegate;
+			this.log = log;
+		}
+
+		@Override
+		public int write(final ByteBuffer source) throws IOException {
+			return log.write(delegate, source, log.writes.incrementAndGet());
+		}
+
+		@Override
+		public void force(final boolean metaData) throws IOException {
+			final int count = log.forces.incrementAndGet();
+			log.beforeForce(count);
+			delegate.force(metaData);
+		}
+
+		@Override
+		public int read(final ByteBuffer destination) throws IOException {
+			return delegate.read(destination);
+		}
+
+		@Override
+		public long read(final ByteBuffer[] destinations, final int offset, final int length) throws IOException {
+			return delegate.read(destinations, offset, length);
+		}
+
+		@Override
+		public long write(final ByteBuffer[] sources, final int offset, final int length) throws IOException {
+			return delegate.write(sources, offset, length);
+		}
+
+		@Override
+		public long position() throws IOException {
+			return delegate.position();
+		}
+
+		@Override
+		public FileChannel position(final long newPosition) throws IOException {
+			delegate.position(newPosition);
+			return this;
+		}
+
+		@Override
+		public long size() throws IOException {
+			return delegate.size();
+		}
+
+		@Override
+		public FileChannel truncate(final long size) throws IOException {
+			delegate.truncate(size);
+			return this;
+		}
+
+		@Override
+		public long transferTo(final long position, final long count, final WritableByteChannel target) throws IOException {
+			return delegate.transferTo(position, count, target);
+		}
+
+		@Override
+		public long transferFrom(final ReadableByteChannel source, final long position, final long count) throws IOException {
+			return delegate.transferFrom(source, position, count);
+		}
+
+		@Override
+		public int read(final ByteBuffer destination, final long position) throws IOException {
+			return delegate.read(destination, position);
+		}
+
+		@Override
+		public int write(final ByteBuffer source, final long position) throws IOException {
+			return delegate.write(source, position);
+		}
+
+		@Override
+		public MappedByteBuffer map(final MapMode mode, final long position, final long size) throws IOException {
+			return delegate.map(mode, position, size);
+		}
+
+		@Override
+		public FileLock lock(final long position, final long size, final boolean shared) throws IOException {
+			return delegate.lock(position, size, shared);
+		}
+
+		@Override
+		public FileLock tryLock(final long position, final long size, final boolean shared) throws IOException {
+			return delegate.tryLock(position, size, shared);
+		}
+
+		@Override
+		protected void implCloseChannel() throws IOException {
+			delegate.close();
+		}
+	}
+}
@@ -0,0 +1,184 @@
+package nl.futureedge.jta4spring.xa;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.transaction.xa.Xid;
+
+import org.junit.Assert;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import nl.futureedge.jta4spring.JtaXid;
+
+public class MappedTransactionLogTest {
+
+	private static final int SEGMENT_SIZE = 64 * 1024;
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	@Test
+	public void sharedForce() throws Exception {
+		final CountDownLatch firstForce = new CountDownLatch(1);
+		final CountDownLatch release = new CountDownLatch(1);
+		final AtomicInteger forces = new AtomicInteger();
+		final MappedTransactionLog log = new MappedTransactionLog(folder.getRoot(), "shared") {
+			@Override
+			protected void force(final MappedByteBuffer forceSegment) throws IOException {
+				if(forces.incrementAndGet() == 2) {
+					// Keep the first caller forcing (the first force starts the segment on open)
+					firstForce.countDown();
+					await(release);
+				}
+				super.force(forceSegment);
+			}
+		};
+		log.setSegmentSize(SEGMENT_SIZE);
+		log.open();
+		try {
+			final List<Thread> writers = new ArrayList<>();
+			final List<Throwable> failures = Collections.synchronizedList(new ArrayList<>());
+			for(int i = 1; i <= 4; i++) {
+				final Xid xid = new JtaXid("test", i);
+				writers.add(new Thread(() -> {
+					try {
+						log.logCommitDecision(xid, Collections.singletonList("resource"));
+					} catch (final IOException e) {
+						failures.add(e);
+					}
+				}));
+			}
+			writers.get(0).start();
+			Assert.assertTrue(firstForce.await(5, TimeUnit.SECONDS));
+
+			// Append the other decisions while the first caller forces the segment
+			for(final Thread writer : writers.subList(1, writers.size())) {
+				writer.start();
+			}
+			for(final Thread writer : writers.subList(1, writers.size())) {
+				awaitBlocked(writer);
+			}
+			release.countDown();
+			for(final Thread writer : writers) {
+				writer.join(5000);
+			}
+
+			// One force for the first decision and one (by the next caller) for the other decisions
+			Assert.assertEquals(Collections.emptyList(), failures);
+			Assert.assertEquals(3, forces.get());
+			Assert.assertEquals(4, log.getCommitDecisions().size());
+		} finally {
+			release.countDown();
+			log.close();
+		}
+	}
+
+	@Test
+	public void segmentRollover() throws Exception {
+		final MappedTransactionLog log = new MappedTransactionLog(folder.getRoot(), "rollover");
+		log.setSegmentSize(512);
+		log.open();
+		log.logCommitDecision(new JtaXid("test", 1), Collections.singletonList("resource"));
+		for(int i = 2; i <= 50; i++) {
+			log.logCommitDecision(new JtaXid("test", i), Collections.singletonList("resource"));
+			log.logCompletion(new JtaXid("test", i));
+		}
+		Assert.assertEquals(transactionIds(1), transactionIds(log));
+		log.close();
+
+		// The decision that has not been completed is copied to every new segment; older segments are deleted
+		final String[] segmentFiles = folder.getRoot().list();
+		Arrays.sort(segmentFiles);
+		Assert.assertFalse(Arrays.toString(segmentFiles), Arrays.asList(segmentFiles).contains("rollover-1.log"));
+		Assert.assertFalse(Arrays.toString(segmentFiles), Arrays.asList(segmentFiles).contains("rollover-2.log"));
+		// The current segment and (when it is half full) the pre-allocated next segment
+		Assert.assertTrue(Arrays.toString(segmentFiles), segmentFiles.length <= 2);
+
+		final MappedTransactionLog reopened = new MappedTransactionLog(folder.getRoot(), "rollover");
+		reopened.setSegmentSize(512);
+		reopened.open();
+		try {
+			Assert.assertEquals(transactionIds(1), transactionIds(reopened));
+		} finally {
+			reopened.close();
+		}
+	}
+
+	@Test
+	public void corruptRecord() throws Exception {
+		final MappedTransactionLog log = new MappedTransactionLog(folder.getRoot(), "corrupt");
+		log.setSegmentSize(SEGMENT_SIZE);
+		log.open();
+		for(int i = 1; i <= 3; i++) {
+			log.logCommitDecision(new JtaXid("test", i), Collections.singletonList("resource"));
+		}
+		log.close();
+
+		// Change the contents of the second record; its checksum no longer matches
+		try (RandomAccessFile file = new RandomAccessFile(new File(folder.getRoot(), "corrupt-1.log"), "rw")) {
+			final int firstLength = file.readInt();
+			final long position = 8 + firstLength + 8;
+			file.seek(position);
+			final int value = file.read();
+			file.seek(position);
+			file.write(value ^ 0xff);
+		}
+
+		// Reading stops at the corrupt record; the records after it are ignored
+		final MappedTransactionLog reopened = new MappedTransactionLog(folder.getRoot(), "corrupt");
+		reopened.setSegmentSize(SEGMENT_SIZE);
+		reopened.open();
+		try {
+			Assert.assertEquals(transactionIds(1), transactionIds(reopened));
+		} finally {
+			reopened.close();
+		}
+	}
+
+	private static Set<ByteBuffer> transactionIds(final TransactionLog log) {
+		final Set<ByteBuffer> result = new HashSet<>();
+		for(final TransactionLogRecord record : log.getCommitDecisions()) {
+			result.add(ByteBuffer.wrap(record.getGlobalTransactionId()));
+		}
+		return result;
+	}
+
+	private static Set<ByteBuffer> transactionIds(final long... transactionIds) {
+		final Set<ByteBuffer> result = new HashSet<>();
+		for(final long transactionId : transactionIds) {
+			result.add(ByteBuffer.wrap(new JtaXid("test", transactionId).getGlobalTransactionId()));
+		}
+		return result;
+	}
+
+	private static void await(final CountDownLatch latch) throws IOException {
+		try {
+			latch.await(5, TimeUnit.SECONDS);
+		} catch (final InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IOException(e);
+		}
+	}
+
+	private static void awaitBlocked(final Thread thread) throws InterruptedException {
+		final long deadline = System.currentTimeMillis() + 5000;
+		while(thread.getState() != Thread.State.BLOCKED && System.currentTimeMillis() < deadline) {
+			Thread.sleep(10);
+		}
+		Assert.assertEquals(Thread.State.BLOCKED, thread.getState());
+	}
+}